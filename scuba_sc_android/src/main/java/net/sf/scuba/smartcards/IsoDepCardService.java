@@ -27,6 +27,7 @@ package net.sf.scuba.smartcards;
 
 import java.io.IOException;
 
+import net.sf.scuba.smartcards.CardCapabilities;
 import net.sf.scuba.smartcards.CardService;
 import net.sf.scuba.smartcards.CardServiceException;
 import net.sf.scuba.smartcards.CommandAPDU;
@@ -76,7 +77,7 @@ public class IsoDepCardService extends CardService {
       if (!isoDep.isConnected()) {
         throw new CardServiceException("Failed to connect");
       }
-      state = SESSION_STARTED_STATE;
+      notifySessionStarted();
     } catch (IOException e) {
       throw new CardServiceException("Failed to connect", e);
     }
@@ -144,6 +145,26 @@ public class IsoDepCardService extends CardService {
     return isoDep.getHistoricalBytes();
   }
 
+  /**
+   * Determines the capabilities of the card. On Android {@link #getATR()} returns
+   * the historical bytes (or higher layer response), and the maximum lengths are
+   * bounded by the maximum transceive length.
+   */
+  @Override
+  protected CardCapabilities createCardCapabilities(byte[] atr) {
+    CardCapabilities capabilities = new CardCapabilities(atr, atr);
+    if (isoDep != null && isExtendedAPDULengthSupported()) {
+      int maxTransceiveLength = isoDep.getMaxTransceiveLength();
+      /* Leave room for an extended length header and status word. */
+      int maxNc = Math.min(CardCapabilities.EXTENDED_MAX_NC, maxTransceiveLength - 9);
+      int maxNe = Math.min(CardCapabilities.EXTENDED_MAX_NE, maxTransceiveLength - 2);
+      if (maxNc > 0 && maxNe > 0) {
+        capabilities = capabilities.withMaxLengths(maxNc, maxNe);
+      }
+    }
+    return capabilities;
+  }
+
   @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
   public boolean isExtendedAPDULengthSupported() {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
@@ -22,6 +22,10 @@
 
 package net.sf.scuba.smartcards;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,12 +47,22 @@ public class TerminalCardService extends CardService {
 
   private static final Logger LOGGER = Logger.getLogger("net.sf.scuba");
 
+  /** The maximum length of an extended length command APDU. */
+  private static final int MAX_COMMAND_APDU_LENGTH = 65544;
+
+  /** The maximum length of an extended length response APDU, including the status word. */
+  private static final int MAX_RESPONSE_APDU_LENGTH = 65538;
+
   private CardTerminal terminal;
   private Card card;
   private CardChannel channel;
   private long lastActiveTime;
   private int apduCount;
 
+  /* Reused by transmit(CommandAPDU), allocated on first use. */
+  private ByteBuffer commandBuffer;
+  private ByteBuffer responseBuffer;
+
   /**
    * Constructs a new card service.
    *
@@ -83,7 +97,7 @@ public class TerminalCardService extends CardService {
       if (channel == null) {
         throw new CardServiceException("channel == null");
       }
-      state = SESSION_STARTED_STATE;
+      notifySessionStarted();
     } catch (CardException ce) {
       throw new CardServiceException("Exception opening connection to terminal", ce);
     }
@@ -107,33 +121,199 @@ public class TerminalCardService extends CardService {
    * @throws CardServiceException - if the card operation failed
    */
   @Override
-  public ResponseAPDU transmit(CommandAPDU ourCommandAPDU) throws CardServiceException {
+  public synchronized ResponseAPDU transmit(CommandAPDU ourCommandAPDU) throws CardServiceException {
     try {
       if (channel == null) {
         throw new CardServiceException("channel == null");
       }
-      javax.smartcardio.CommandAPDU command = new javax.smartcardio.CommandAPDU(ourCommandAPDU.getBytes());
-      javax.smartcardio.ResponseAPDU response = channel.transmit(command);
-      ResponseAPDU ourResponseAPDU = new ResponseAPDU(response.getBytes());
-      notifyExchangedAPDU(new APDUEvent(this, "RAW", ++apduCount, ourCommandAPDU, ourResponseAPDU));
+      ResponseAPDU ourResponseAPDU = transmitBuffered(ourCommandAPDU);
       lastActiveTime = System.currentTimeMillis();
+      notifyExchangedAPDU(new APDUEvent(this, "RAW", ++apduCount, ourCommandAPDU, ourResponseAPDU));
       return ourResponseAPDU;
     } catch (CardException ce) {
       throw new CardServiceException("Exception during transmit", ce);
     }
   }
 
+  /**
+   * Sends a batch of APDUs to the card.
+   *
+   * The service is locked for the duration of the batch, and exclusive access
+   * to the card is requested (a PC/SC transaction), so that no other
+   * application's commands are interleaved. If exclusive access cannot be
+   * obtained, for instance because the caller already has it, the batch is sent
+   * without it. Listeners are notified after the batch, also if it failed
+   * halfway, of all APDUs exchanged.
+   *
+   * @param commandAPDUs the command APDUs to send
+   * @param stopCondition decides whether to stop after a response, or {@code null} to send all commands
+   *
+   * @return the responses from the card, one for each command sent
+   *
+   * @throws CardServiceException - if the card operation failed
+   */
+  @Override
+  public synchronized List<ResponseAPDU> transmitBatch(List<CommandAPDU> commandAPDUs, BatchStopCondition stopCondition) throws CardServiceException {
+    if (channel == null) {
+      throw new CardServiceException("channel == null");
+    }
+    List<ResponseAPDU> responseAPDUs = new ArrayList<ResponseAPDU>(commandAPDUs.size());
+    List<APDUEvent> events = hasAPDUListeners() ? new ArrayList<APDUEvent>(commandAPDUs.size()) : null;
+    boolean isExclusive = beginExclusive();
+    try {
+      int index = 0;
+      for (CommandAPDU ourCommandAPDU: commandAPDUs) {
+        ResponseAPDU ourResponseAPDU = transmitBuffered(ourCommandAPDU);
+        responseAPDUs.add(ourResponseAPDU);
+        apduCount++;
+        if (events != null) {
+          events.add(new APDUEvent(this, "RAW", apduCount, ourCommandAPDU, ourResponseAPDU));
+        }
+        if (stopCondition != null && stopCondition.shouldStop(index, ourCommandAPDU, ourResponseAPDU)) {
+          break;
+        }
+        index++;
+      }
+      return responseAPDUs;
+    } catch (CardException ce) {
+      throw new CardServiceException("Exception during transmit", ce);
+    } finally {
+      if (isExclusive) {
+        endExclusive();
+      }
+      lastActiveTime = System.currentTimeMillis();
+      if (events != null) {
+        notifyExchangedAPDUs(events);
+      }
+    }
+  }
+
+  /**
+   * Sends an APDU to the card using
+   * {@link CardChannel#transmit(ByteBuffer, ByteBuffer)}.
+   * If there are no APDU listeners, no objects are constructed per command.
+   *
+   * @param command the buffer containing the command APDU
+   * @param response the buffer to write the response APDU to
+   *
+   * @return the length of the response APDU
+   *
+   * @throws CardServiceException - if the card operation failed
+   */
+  @Override
+  public synchronized int transmit(ByteBuffer command, ByteBuffer response) throws CardServiceException {
+    try {
+      if (channel == null) {
+        throw new CardServiceException("channel == null");
+      }
+      if (!hasAPDUListeners()) {
+        int responseLength = channel.transmit(command, response);
+        apduCount++;
+        lastActiveTime = System.currentTimeMillis();
+        return responseLength;
+      }
+
+      /* Listeners need the APDUs as objects. */
+      CommandAPDU ourCommandAPDU = new CommandAPDU(command.duplicate());
+      int responseOffset = response.position();
+      int responseLength = channel.transmit(command, response);
+      ByteBuffer responseBytes = response.duplicate();
+      ((Buffer)responseBytes).limit(responseOffset + responseLength);
+      ((Buffer)responseBytes).position(responseOffset);
+      ResponseAPDU ourResponseAPDU = new ResponseAPDU(responseBytes);
+      lastActiveTime = System.currentTimeMillis();
+      notifyExchangedAPDU(new APDUEvent(this, "RAW", ++apduCount, ourCommandAPDU, ourResponseAPDU));
+      return responseLength;
+    } catch (CardException ce) {
+      throw new CardServiceException("Exception during transmit", ce);
+    }
+  }
+
+  /**
+   * Sends a command APDU to the card using the reused command and response buffers.
+   * The caller should hold the lock on this service.
+   *
+   * @param ourCommandAPDU the command APDU to send
+   *
+   * @return the response APDU
+   *
+   * @throws CardException if the card operation failed
+   */
+  private ResponseAPDU transmitBuffered(CommandAPDU ourCommandAPDU) throws CardException {
+    if (commandBuffer == null) {
+      commandBuffer = ByteBuffer.allocate(MAX_COMMAND_APDU_LENGTH);
+      responseBuffer = ByteBuffer.allocate(MAX_RESPONSE_APDU_LENGTH);
+    }
+    /* NOTE: casting to Buffer, as ByteBuffer overrides these methods in later JDKs only. */
+    ((Buffer)commandBuffer).clear();
+    ourCommandAPDU.encode(commandBuffer);
+    ((Buffer)commandBuffer).flip();
+    ((Buffer)responseBuffer).clear();
+    int responseLength = channel.transmit(commandBuffer, responseBuffer);
+    return new ResponseAPDU(responseBuffer.array(), 0, responseLength);
+  }
+
+  /**
+   * Tries to get exclusive access to the card.
+   *
+   * @return whether exclusive access was obtained
+   */
+  private boolean beginExclusive() {
+    try {
+      card.beginExclusive();
+      return true;
+    } catch (CardException ce) {
+      LOGGER.log(Level.FINE, "Could not get exclusive access, continuing without", ce);
+      return false;
+    } catch (IllegalStateException ise) {
+      LOGGER.log(Level.FINE, "Could not get exclusive access, continuing without", ise);
+      return false;
+    }
+  }
+
+  /**
+   * Releases exclusive access to the card.
+   */
+  private void endExclusive() {
+    try {
+      card.endExclusive();
+    } catch (CardException ce) {
+      LOGGER.log(Level.FINE, "Could not release exclusive access", ce);
+    } catch (IllegalStateException ise) {
+      LOGGER.log(Level.FINE, "Could not release exclusive access", ise);
+    }
+  }
+
   @Override
   public byte[] getATR() {
+    if (channel == null) {
+      return null;
+    }
     javax.smartcardio.ATR atr = channel.getCard().getATR();
     return atr.getBytes();
   }
 
+  /**
+   * Whether the card supports extended length APDUs, according to
+   * the card capabilities in its ATR or as set after probing the card.
+   * If neither says anything about extended length, this returns {@code true},
+   * as this method always did before card capabilities were taken into account.
+   * Returns {@code false} if no session has been opened.
+   *
+   * @return whether extended length APDUs are supported
+   */
   @Override
   public boolean isExtendedAPDULengthSupported() {
-    //		javax.smartcardio.ATR atr = channel.getCard().getATR();
-    //		byte[] historicalBytes = atr.getHistoricalBytes();
-    return true; // FIXME: check ATR to see if really true
+    if (channel == null) {
+      return false;
+    }
+    try {
+      CardCapabilities capabilities = getCardCapabilities();
+      return !capabilities.isKnown() || capabilities.isExtendedLengthSupported();
+    } catch (CardServiceException cse) {
+      LOGGER.log(Level.FINE, "Could not determine card capabilities", cse);
+      return true;
+    }
   }
 
   /**
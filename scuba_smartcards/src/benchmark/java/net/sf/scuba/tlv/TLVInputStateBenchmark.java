@@ -0,0 +1,153 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the array based {@link TLVInputState} with the former
+ * {@code Deque} based implementation ({@link LegacyTLVInputState}).
+ *
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec}.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TLVInputStateBenchmark {
+
+  /** The tag of all nested constructed values. */
+  private static final int CONSTRUCTED_TAG = 0x7F61;
+
+  /** The tag of the primitive innermost value. */
+  private static final int PRIMITIVE_TAG = 0x5F2E;
+
+  private static final int VALUE_LENGTH = 16;
+
+  @Param({ "2", "8", "32" })
+  private int depth;
+
+  private TLVInputState state;
+  private TLVInputState markedState;
+
+  private LegacyTLVInputState legacyState;
+
+  /** The lengths of the nested values, outermost first. */
+  private int[] lengths;
+
+  @Setup
+  public void setup() {
+    state = new TLVInputState();
+    markedState = new TLVInputState();
+    legacyState = new LegacyTLVInputState();
+    lengths = new int[depth];
+    int length = VALUE_LENGTH;
+    for (int i = depth - 1; i >= 0; i--) {
+      lengths[i] = length;
+      length += TLVUtil.getTagLength(CONSTRUCTED_TAG) + TLVUtil.getLengthLength(length);
+    }
+    /* Position both states at the start of the innermost value. */
+    for (int i = 0; i < depth; i++) {
+      int tag = i == depth - 1 ? PRIMITIVE_TAG : CONSTRUCTED_TAG;
+      state.setTagProcessed(tag, TLVUtil.getTagLength(tag));
+      state.setLengthProcessed(lengths[i], TLVUtil.getLengthLength(lengths[i]));
+      legacyState.setTagProcessed(tag, TLVUtil.getTagLength(tag));
+      legacyState.setLengthProcessed(lengths[i], TLVUtil.getLengthLength(lengths[i]));
+    }
+  }
+
+  @Benchmark
+  public TLVInputState mark() {
+    markedState.copyFrom(state);
+    return markedState;
+  }
+
+  @Benchmark
+  public LegacyTLVInputState legacyMark() {
+    return new LegacyTLVInputState(legacyState);
+  }
+
+  @Benchmark
+  public int parse() {
+    TLVInputState parseState = new TLVInputState();
+    return parse(parseState, lengths);
+  }
+
+  @Benchmark
+  public int legacyParse() {
+    LegacyTLVInputState parseState = new LegacyTLVInputState();
+    return parse(parseState, lengths);
+  }
+
+  /**
+   * Walks a nested structure, first peeking at each tag with mark and reset,
+   * the way decoders typically use {@link TLVInputStream}.
+   */
+  private static int parse(TLVInputState parseState, int[] lengths) {
+    TLVInputState mark = new TLVInputState();
+    int depth = lengths.length;
+    for (int i = 0; i < depth; i++) {
+      int tag = i == depth - 1 ? PRIMITIVE_TAG : CONSTRUCTED_TAG;
+      mark.copyFrom(parseState);
+      parseState.setTagProcessed(tag, TLVUtil.getTagLength(tag));
+      parseState.copyFrom(mark);
+      parseState.setTagProcessed(tag, TLVUtil.getTagLength(tag));
+      parseState.setLengthProcessed(lengths[i], TLVUtil.getLengthLength(lengths[i]));
+    }
+    parseState.updateValueBytesProcessed(VALUE_LENGTH);
+    return parseState.isAtStartOfTag() ? 1 : 0;
+  }
+
+  private static int parse(LegacyTLVInputState parseState, int[] lengths) {
+    int depth = lengths.length;
+    for (int i = 0; i < depth; i++) {
+      int tag = i == depth - 1 ? PRIMITIVE_TAG : CONSTRUCTED_TAG;
+      LegacyTLVInputState mark = new LegacyTLVInputState(parseState);
+      parseState.setTagProcessed(tag, TLVUtil.getTagLength(tag));
+      parseState = mark;
+      parseState.setTagProcessed(tag, TLVUtil.getTagLength(tag));
+      parseState.setLengthProcessed(lengths[i], TLVUtil.getLengthLength(lengths[i]));
+    }
+    parseState.updateValueBytesProcessed(VALUE_LENGTH);
+    return parseState.isAtStartOfTag() ? 1 : 0;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares extracting a few fields with a compiled {@link TLVQuery} to
+ * repeated {@code skipToTag} calls.
+ *
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=TLVQueryBenchmark}.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TLVQueryBenchmark {
+
+  private static final int[] TAGS = { 0x5F1F, 0x5F0E, 0x7F2E };
+
+  private byte[] encoded;
+
+  private TLVQuery query;
+
+  /**
+   * Builds a document resembling a data group: a large constructed element
+   * that does not contain any of the tags, followed by the elements of interest.
+   */
+  @Setup
+  public void setup() throws IOException {
+    Random random = new Random(0);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    TLVOutputStream tlvOutputStream = new TLVOutputStream(byteArrayOutputStream);
+    tlvOutputStream.writeTag(0x61);
+    tlvOutputStream.writeTag(0x7F61);
+    for (int i = 0; i < 50; i++) {
+      tlvOutputStream.writeTag(0x7F60);
+      tlvOutputStream.writeTag(0x5F2E);
+      tlvOutputStream.writeValue(randomBytes(random, 200));
+      tlvOutputStream.writeValueEnd(); /* 0x7F60 */
+    }
+    tlvOutputStream.writeValueEnd(); /* 0x7F61 */
+    tlvOutputStream.writeTag(0x75);
+    tlvOutputStream.writeTag(0x5F1F);
+    tlvOutputStream.writeValue(randomBytes(random, 90));
+    tlvOutputStream.writeTag(0x5F0E);
+    tlvOutputStream.writeValue(randomBytes(random, 40));
+    tlvOutputStream.writeTag(0x7F2E);
+    tlvOutputStream.writeValue(randomBytes(random, 2000));
+    tlvOutputStream.writeValueEnd(); /* 0x75 */
+    tlvOutputStream.writeValueEnd(); /* 0x61 */
+    tlvOutputStream.close();
+    encoded = byteArrayOutputStream.toByteArray();
+
+    query = TLVQuery.compile("61/75/5F1F", "61/75/5F0E", "61/75/7F2E");
+  }
+
+  @Benchmark
+  public ByteBuffer[] query() {
+    return query.extract(encoded);
+  }
+
+  @Benchmark
+  public ByteBuffer[] cursorSkipToTag() {
+    ByteBuffer[] result = new ByteBuffer[TAGS.length];
+    TLVCursor cursor = new TLVCursor(encoded);
+    for (int i = 0; i < TAGS.length; i++) {
+      cursor.rewind();
+      if (cursor.skipToTag(TAGS[i])) {
+        result[i] = cursor.getValue();
+      }
+    }
+    return result;
+  }
+
+  @Benchmark
+  public byte[][] streamSkipToTag() throws IOException {
+    byte[][] result = new byte[TAGS.length][];
+    for (int i = 0; i < TAGS.length; i++) {
+      TLVInputStream tlvInputStream = new TLVInputStream(new ByteArrayInputStream(encoded));
+      try {
+        tlvInputStream.skipToTag(TAGS[i]);
+        tlvInputStream.readLength();
+        result[i] = tlvInputStream.readValue();
+      } finally {
+        tlvInputStream.close();
+      }
+    }
+    return result;
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -22,11 +22,25 @@
 
 package net.sf.scuba.smartcards;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class implements some basic file selection / reading / writing
  * routines from the  ISO7816-4 standard.
  *
+ * The file system keeps track of the currently selected DF and EF, as far as
+ * known from the selections made through this class, so that
+ * {@link #selectFilePath(short[])} can select a file with the least number of commands.
+ * If the short EF identifier (SFI) of an EF is known, either from its file control
+ * parameters or from {@link #setShortFileIdentifier(short, int)}, then
+ * {@link #readBinary(short[], int, byte[], int, int)} reads the first block of the EF
+ * without selecting it.
+ *
+ * With a {@link FileInfoCache}, the file information of files selected before is
+ * kept, so that it can be used, and optionally need not be asked for, on later selections.
+ *
  * TODO: Work in heavy progress
  *
  * @author woj
@@ -44,6 +58,26 @@ public abstract class AbstractFileSystemStructured implements FileSystemStructur
   private int selectLe = 256;
   private ISOFileInfo fileInfo = null;
 
+  /* The path of the selected DF below the MF, or null if unknown, and the selected EF, or -1. */
+  private short[] selectedDFPath = null;
+  private int selectedEF = -1;
+  private boolean isPathSelectionSupported = true;
+
+  /* Whether the selected EF was reached by a read by SFI, so that its file information is unknown. */
+  private boolean isSelectedBySFI = false;
+
+  /* The short EF identifiers of EFs, by file identifier. */
+  private Map<Short, Integer> shortFileIdentifiers = new HashMap<Short, Integer>();
+
+  private FileInfoCache fileInfoCache = null;
+  private CardIdentityProvider cardIdentityProvider = null;
+  private boolean isFileInfoOmittedWhenCached = false;
+
+  /* The identity of the card, for the file information cache, and the ATR and session it belongs to. */
+  private byte[] cardIdentity = null;
+  private byte[] cardIdentityATR = null;
+  private int cardIdentitySession = -1;
+
   public AbstractFileSystemStructured(CardService service) {
     this.service = service;
   }
@@ -64,26 +98,114 @@ public abstract class AbstractFileSystemStructured implements FileSystemStructur
 
   public abstract byte[] readBinary(int offset, int length);
 
+  /**
+   * Reads a fragment of the currently selected file into a caller supplied array.
+   *
+   * This implementation copies the result of {@link #readBinary(int, int)}.
+   * Subclasses can override it to copy the response data straight into {@code dst},
+   * for instance using {@link ResponseAPDU#copyDataTo(byte[], int)}.
+   *
+   * @param offset the offset in the file
+   * @param dst the destination array
+   * @param dstOffset the offset in the destination array
+   * @param length the number of bytes to read (the result may be shorter, though)
+   *
+   * @return the number of bytes read, at most {@code length}
+   *
+   * @throws CardServiceException on error (for instance: end of file)
+   */
+  public int readBinary(int offset, byte[] dst, int dstOffset, int length) throws CardServiceException {
+    return copy(readBinary(offset, length), dst, dstOffset, length);
+  }
+
+  /**
+   * Returns the largest number of bytes to request in a single READ BINARY,
+   * based on the capabilities of the card. Subclasses that add overhead to
+   * responses, for instance for secure messaging, should override this.
+   *
+   * @return the largest block size
+   *
+   * @throws CardServiceException on error determining the capabilities of the card
+   */
+  public int getMaxReadBinaryLength() throws CardServiceException {
+    return service.getCardCapabilities().getMaxResponseDataLength();
+  }
+
+  /**
+   * Sets a cache for the file information of selected files. Entries are keyed by
+   * the path of the file and the identity of the card, which is its ATR followed by
+   * the identifier given by {@code cardIdentityProvider}. Many cards share an ATR, so a
+   * provider is required. The identity is determined again in each session of the card
+   * service, see {@link CardService#getSessionNumber()}, so that a card presented later
+   * is not taken for the previous one. Cached file information is used when the SELECT
+   * response holds none.
+   *
+   * @param fileInfoCache the cache, or {@code null} to stop using a cache
+   * @param cardIdentityProvider tells cards with the same ATR apart
+   * @param isFileInfoOmittedWhenCached whether to ask the card for no file information
+   *                                    (P2 is {@code 0x0C}) when selecting a file
+   *                                    whose file information is cached
+   */
+  public void setFileInfoCache(FileInfoCache fileInfoCache, CardIdentityProvider cardIdentityProvider, boolean isFileInfoOmittedWhenCached) {
+    if (fileInfoCache != null && cardIdentityProvider == null) {
+      throw new IllegalArgumentException("A file information cache requires a card identity provider");
+    }
+    this.fileInfoCache = fileInfoCache;
+    this.cardIdentityProvider = cardIdentityProvider;
+    this.isFileInfoOmittedWhenCached = isFileInfoOmittedWhenCached;
+    this.cardIdentity = null;
+    this.cardIdentityATR = null;
+    this.cardIdentitySession = -1;
+  }
+
   private void selectFile(byte[] data, int p1) throws CardServiceException {
-    CommandAPDU command = createSelectFileAPDU(p1, p2, data, selectLe);
+    short[] cachePath = fileInfoCache == null ? null : getTargetPath(data, p1);
+    byte[] identity = cachePath == null ? null : getCardIdentity();
+    ISOFileInfo cachedFileInfo = identity == null ? null : fileInfoCache.get(identity, cachePath);
+    boolean isFileInfoOmitted = cachedFileInfo != null && isFileInfoOmittedWhenCached;
+    CommandAPDU command = isFileInfoOmitted
+        ? createSelectFileAPDU(p1, 0x0C, data, 0)
+        : createSelectFileAPDU(p1, p2, data, selectLe);
+    /* NOTE: the selection is unknown until we know this selection succeeded. */
+    short[] previousDFPath = selectedDFPath;
+    int previousEF = selectedEF;
+    invalidateSelectedPath();
     ResponseAPDU response = service.transmit(command);
 
     int respSW = response.getSW();
-    byte[] respData = response.getData();
-
-    if( respSW != ISO7816.SW_NO_ERROR) {
+    if( respSW != (ISO7816.SW_NO_ERROR & 0xFFFF)) {
       throw new CardServiceException("File could not be selected.", respSW);
     }
+    setSelected(previousDFPath, previousEF);
+    updateSelectedPath(data, p1);
+    isSelectedBySFI = false;
     // store selected fid:
     // 0, 4, 8 absolute
     // 1, 2, 9, relative
     // 3 parent
-    this.fileInfo = new ISOFileInfo( respData );
-    if(this.fileInfo.fid != -1) {
-      selectedFID = this.fileInfo.fid;
+    if (cachedFileInfo != null && response.getNr() == 0) {
+      this.fileInfo = cachedFileInfo;
+    } else {
+      /* NOTE: the file information refers to the response, rather than to a copy of its data. */
+      this.fileInfo = new ISOFileInfo(response.getBuffer(), 0, response.getNr());
+      if (identity != null && response.getNr() > 0) {
+        fileInfoCache.put(identity, cachePath, this.fileInfo);
+      }
+    }
+    short fileID = this.fileInfo.getFID();
+    if(fileID != -1) {
+      selectedFID = fileID;
+    }
+    int sfi = this.fileInfo.getShortFileIdentifier();
+    if (sfi != -1) {
+      short fid = fileID != -1 ? fileID : getFID(data, p1);
+      if (fid != -1) {
+        shortFileIdentifiers.put(fid, sfi);
+      }
     }
-    if(this.fileInfo.fileLength != -1) {
-      length = this.fileInfo.fileLength;
+    int fileLength = this.fileInfo.getFileLength();
+    if(fileLength != -1) {
+      length = fileLength;
     }
   }
 
@@ -124,6 +246,465 @@ public abstract class AbstractFileSystemStructured implements FileSystemStructur
     selectFile(path, 0x09);
   }
 
+  /**
+   * Selects the EF with the given path, using the least number of commands
+   * given the currently selected DF and EF: none if the EF is already selected,
+   * a single SELECT of the EF if it is in the currently selected DF, or else a
+   * single SELECT by path, relative to the currently selected DF if possible.
+   * If the card does not support selection by path, the DFs and the EF are
+   * selected one by one.
+   *
+   * @param path the file identifiers of the DFs and the EF, starting below the MF,
+   *             the MF identifier itself may be included
+   *
+   * @throws CardServiceException on error
+   */
+  public void selectFilePath(short[] path) throws CardServiceException {
+    int start = (path.length > 0 && path[0] == MF_ID) ? 1 : 0;
+    if (path.length - start == 0) {
+      if (selectedDFPath == null || selectedDFPath.length != 0 || selectedEF != -1) {
+        selectMF();
+      }
+      return;
+    }
+    short[] dfPath = Arrays.copyOfRange(path, start, path.length - 1);
+    short ef = path[path.length - 1];
+    int efID = ef & 0xFFFF;
+
+    if (selectedDFPath != null && Arrays.equals(selectedDFPath, dfPath)) {
+      if (selectedEF != efID || isSelectedBySFI) {
+        selectEFRelative(ef);
+      }
+      return;
+    }
+
+    if (isPathSelectionSupported) {
+      try {
+        if (selectedDFPath != null && isPrefix(selectedDFPath, dfPath)) {
+          selectPathRelative(toBytes(dfPath, selectedDFPath.length, ef));
+        } else {
+          selectPath(toBytes(dfPath, 0, ef));
+        }
+        setSelected(dfPath, efID);
+        return;
+      } catch (CardServiceException cse) {
+        if (!isPathSelectionNotSupported(cse.getSW())) {
+          throw cse;
+        }
+        /* Selection by path is not supported, try step by step. */
+        selectStepByStep(dfPath, ef);
+        isPathSelectionSupported = false;
+        return;
+      }
+    }
+    selectStepByStep(dfPath, ef);
+  }
+
+  /**
+   * Whether a status word in response to a SELECT by path means
+   * the card does not support selection by path.
+   *
+   * @param sw the status word
+   *
+   * @return whether selection by path is not supported
+   */
+  private static boolean isPathSelectionNotSupported(int sw) {
+    switch ((short)sw) {
+      case ISO7816.SW_FUNC_NOT_SUPPORTED:
+      case ISO7816.SW_INCORRECT_P1P2:
+      case ISO7816.SW_INS_NOT_SUPPORTED:
+      case ISO7816.SW_CLA_NOT_SUPPORTED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Forgets the currently selected DF and EF. Subclasses that select files
+   * other than through the methods of this class should call this.
+   */
+  protected void invalidateSelectedPath() {
+    selectedDFPath = null;
+    selectedEF = -1;
+    isSelectedBySFI = false;
+  }
+
+  /**
+   * Selects the given path in any file system, if it is not the selected path.
+   * The file system layer chooses how, for instance using {@link #selectFilePath(short[])}
+   * for paths starting at the MF.
+   *
+   * @param fs the file system
+   * @param path the path to select
+   *
+   * @throws CardServiceException on error
+   */
+  /* package visible */ static void selectPath(FileSystemStructured fs, FileInfo[] path) throws CardServiceException {
+    if (Arrays.equals(fs.getSelectedPath(), path)) {
+      return;
+    }
+    if (fs instanceof AbstractFileSystemStructured && path.length > 0 && path[0].getFID() == MF_ID) {
+      ((AbstractFileSystemStructured)fs).selectFilePath(toFIDs(path));
+      return;
+    }
+    for (FileInfo fileInfo: path) {
+      fs.selectFile(fileInfo.getFID());
+    }
+  }
+
+  /**
+   * Sets the short EF identifier of an EF, for cards that do not return it in the
+   * file control parameters, or for files that are selected without asking for those.
+   *
+   * @param fid the file identifier of the EF
+   * @param sfi the short EF identifier, between 1 and 30
+   */
+  public void setShortFileIdentifier(short fid, int sfi) {
+    if (sfi < 1 || sfi > 30) {
+      throw new IllegalArgumentException("Invalid short EF identifier " + sfi);
+    }
+    shortFileIdentifiers.put(fid, sfi);
+  }
+
+  /**
+   * Returns the short EF identifier of an EF, if known.
+   *
+   * @param fid the file identifier of the EF
+   *
+   * @return the short EF identifier, or -1 if unknown
+   */
+  public int getShortFileIdentifier(short fid) {
+    Integer sfi = shortFileIdentifiers.get(fid);
+    return sfi == null ? -1 : sfi;
+  }
+
+  /**
+   * Reads a fragment of the EF with the given path into a caller supplied array.
+   *
+   * If the EF is in the currently selected DF, its short EF identifier is known, and
+   * the offset fits in P2, then the EF is read with its short EF identifier in P1, which
+   * also selects it, so that no separate SELECT is needed. If the card rejects that, the short
+   * EF identifier is forgotten. If the EF is already selected, also by an earlier read by
+   * short EF identifier, it is read using {@link #readBinary(int, byte[], int, int)}.
+   * Otherwise the EF is selected using {@link #selectFilePath(short[])} and read likewise.
+   *
+   * @param path the file identifiers of the DFs and the EF, as in {@link #selectFilePath(short[])}
+   * @param offset the offset in the file
+   * @param dst the destination array
+   * @param dstOffset the offset in the destination array
+   * @param length the number of bytes to read (the result may be shorter, though)
+   *
+   * @return the number of bytes read, at most {@code length}
+   *
+   * @throws CardServiceException on error
+   */
+  public int readBinary(short[] path, int offset, byte[] dst, int dstOffset, int length) throws CardServiceException {
+    int start = (path.length > 0 && path[0] == MF_ID) ? 1 : 0;
+    if (path.length - start > 0 && selectedDFPath != null
+        && Arrays.equals(selectedDFPath, Arrays.copyOfRange(path, start, path.length - 1))) {
+      short ef = path[path.length - 1];
+      if (selectedEF == (ef & 0xFFFF)) {
+        return readBinary(offset, dst, dstOffset, length);
+      }
+      int sfi = getShortFileIdentifier(ef);
+      if (sfi != -1 && offset >= 0 && offset <= 0xFF) {
+        int n = readBinaryBySFI(ef, sfi, offset, dst, dstOffset, length);
+        if (n >= 0) {
+          return n;
+        }
+      }
+    }
+    selectFilePath(path);
+    return readBinary(offset, dst, dstOffset, length);
+  }
+
+  /**
+   * Reads a fragment of an EF in the currently selected DF, using its short EF identifier.
+   *
+   * @param fid the file identifier of the EF
+   * @param sfi the short EF identifier of the EF
+   * @param offset the offset in the file, at most 255
+   * @param dst the destination array
+   * @param dstOffset the offset in the destination array
+   * @param length the number of bytes to read
+   *
+   * @return the number of bytes read, or -1 if the card rejected the command
+   *
+   * @throws CardServiceException on error sending the command
+   */
+  private int readBinaryBySFI(short fid, int sfi, int offset, byte[] dst, int dstOffset, int length) throws CardServiceException {
+    CommandAPDU command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_READ_BINARY, 0x80 | sfi, offset, length);
+    /* NOTE: the selected EF is unknown until we know this read succeeded. */
+    short[] dfPath = selectedDFPath;
+    selectedEF = -1;
+    ResponseAPDU response = service.transmit(command);
+    int sw = response.getSW();
+    if (sw != (ISO7816.SW_NO_ERROR & 0xFFFF) && sw != (ISO7816.SW_END_OF_FILE & 0xFFFF)) {
+      /* Maybe the card does not support this, select and read instead. */
+      shortFileIdentifiers.remove(fid);
+      invalidateSelectedPath();
+      return -1;
+    }
+    setSelected(dfPath, fid & 0xFFFF);
+    /* NOTE: the file information of the EF is unknown, selectFilePath selects it to learn it. */
+    isSelectedBySFI = true;
+    this.selectedFID = fid;
+    this.length = -1;
+    this.fileInfo = null;
+    if (response.getNr() > length) {
+      return copy(response.getData(), dst, dstOffset, length);
+    }
+    return response.copyDataTo(dst, dstOffset);
+  }
+
+  private void selectStepByStep(short[] dfPath, short ef) throws CardServiceException {
+    selectMF();
+    for (short df: dfPath) {
+      selectDFRelative(df);
+    }
+    selectEFRelative(ef);
+  }
+
+  private void setSelected(short[] dfPath, int ef) {
+    selectedDFPath = dfPath;
+    selectedEF = ef;
+  }
+
+  /**
+   * Returns the path of the file that a SELECT will select, given the currently selected DF.
+   *
+   * @param data the command data of the SELECT
+   * @param p1 the selection method
+   *
+   * @return the file identifiers of the file and its DFs, starting below the MF, or null if not known
+   */
+  private short[] getTargetPath(byte[] data, int p1) {
+    switch (p1) {
+      case 0x00:
+        if (data.length == 0 || (data.length == 2 && getFID(data, p1) == MF_ID)) {
+          return new short[0];
+        }
+        /* Could be a child, the parent, or a sibling of the selected DF. */
+        return null;
+      case 0x01:
+      case 0x02:
+        if (selectedDFPath == null || data.length != 2) {
+          return null;
+        }
+        return concat(selectedDFPath, toFIDs(data));
+      case 0x08:
+        if (data.length % 2 != 0) {
+          return null;
+        }
+        short[] path = toFIDs(data);
+        return (path.length > 0 && path[0] == MF_ID) ? Arrays.copyOfRange(path, 1, path.length) : path;
+      case 0x09:
+        if (selectedDFPath == null || data.length % 2 != 0) {
+          return null;
+        }
+        return concat(selectedDFPath, toFIDs(data));
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the identity of the card, for the file information cache. It is
+   * determined again in each session of the card service, and when the ATR changes.
+   *
+   * @return the ATR of the card followed by its identifier, or null if the card has no known identifier
+   *
+   * @throws CardServiceException on error determining the identity
+   */
+  private byte[] getCardIdentity() throws CardServiceException {
+    byte[] atr = service.getATR();
+    if (atr == null) {
+      atr = new byte[0];
+    }
+    int session = service.getSessionNumber();
+    if (session != cardIdentitySession || !Arrays.equals(atr, cardIdentityATR)) {
+      byte[] identifier = cardIdentityProvider.getCardIdentifier(service);
+      byte[] identity = null;
+      if (identifier != null) {
+        identity = Arrays.copyOf(atr, atr.length + identifier.length);
+        System.arraycopy(identifier, 0, identity, atr.length, identifier.length);
+      }
+      cardIdentity = identity;
+      cardIdentityATR = atr;
+      cardIdentitySession = session;
+    }
+    return cardIdentity;
+  }
+
+  private static short[] toFIDs(byte[] data) {
+    short[] fids = new short[data.length / 2];
+    for (int i = 0; i < fids.length; i++) {
+      fids[i] = (short)(((data[2 * i] & 0xFF) << 8) | (data[2 * i + 1] & 0xFF));
+    }
+    return fids;
+  }
+
+  private static short[] concat(short[] a, short[] b) {
+    short[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  /**
+   * Returns the file identifier of the file selected by a SELECT, if the command data tells.
+   *
+   * @param data the command data of the SELECT
+   * @param p1 the selection method
+   *
+   * @return the file identifier, or -1
+   */
+  private static short getFID(byte[] data, int p1) {
+    switch (p1) {
+      case 0x00:
+      case 0x02:
+        return data.length == 2 ? (short)(((data[0] & 0xFF) << 8) | (data[1] & 0xFF)) : -1;
+      case 0x08:
+      case 0x09:
+        /* The last file identifier in the path. */
+        int n = data.length;
+        return (n >= 2 && n % 2 == 0) ? (short)(((data[n - 2] & 0xFF) << 8) | (data[n - 1] & 0xFF)) : -1;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Updates the selected DF and EF after a successful selection.
+   *
+   * @param data the command data of the SELECT
+   * @param p1 the selection method
+   */
+  private void updateSelectedPath(byte[] data, int p1) {
+    short fid = data.length == 2 ? (short)(((data[0] & 0xFF) << 8) | (data[1] & 0xFF)) : -1;
+    switch (p1) {
+      case 0x00:
+        if (data.length == 0 || fid == MF_ID) {
+          setSelected(new short[0], -1);
+        } else {
+          /* Could be a DF or an EF. */
+          invalidateSelectedPath();
+        }
+        break;
+      case 0x01:
+        if (selectedDFPath != null) {
+          short[] dfPath = Arrays.copyOf(selectedDFPath, selectedDFPath.length + 1);
+          dfPath[selectedDFPath.length] = fid;
+          setSelected(dfPath, -1);
+        }
+        break;
+      case 0x02:
+        if (selectedDFPath != null) {
+          selectedEF = fid & 0xFFFF;
+        }
+        break;
+      case 0x03:
+        if (selectedDFPath != null && selectedDFPath.length > 0) {
+          setSelected(Arrays.copyOf(selectedDFPath, selectedDFPath.length - 1), -1);
+        } else {
+          invalidateSelectedPath();
+        }
+        break;
+      default:
+        /* By DF name or by path, only the caller knows what was selected. */
+        invalidateSelectedPath();
+        break;
+    }
+  }
+
+  private static short[] toFIDs(FileInfo[] path) {
+    short[] fids = new short[path.length];
+    for (int i = 0; i < path.length; i++) {
+      fids[i] = path[i].getFID();
+    }
+    return fids;
+  }
+
+  private static boolean isPrefix(short[] prefix, short[] path) {
+    if (prefix.length > path.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (prefix[i] != path[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] toBytes(short[] dfPath, int start, short ef) {
+    byte[] result = new byte[2 * (dfPath.length - start + 1)];
+    int offset = 0;
+    for (int i = start; i < dfPath.length; i++) {
+      result[offset++] = (byte)((dfPath[i] >> 8) & 0xFF);
+      result[offset++] = (byte)(dfPath[i] & 0xFF);
+    }
+    result[offset++] = (byte)((ef >> 8) & 0xFF);
+    result[offset] = (byte)(ef & 0xFF);
+    return result;
+  }
+
+  /**
+   * Reads a fragment of the currently selected file of any file system into a caller supplied array,
+   * without an intermediate copy if the file system supports that.
+   *
+   * @param fs the file system
+   * @param offset the offset in the file
+   * @param dst the destination array
+   * @param dstOffset the offset in the destination array
+   * @param length the number of bytes to read
+   *
+   * @return the number of bytes read, at most {@code length}
+   *
+   * @throws CardServiceException on error
+   */
+  /* package visible */ static int readBinary(FileSystemStructured fs, int offset, byte[] dst, int dstOffset, int length) throws CardServiceException {
+    if (fs instanceof AbstractFileSystemStructured) {
+      return ((AbstractFileSystemStructured)fs).readBinary(offset, dst, dstOffset, length);
+    }
+    return copy(fs.readBinary(offset, length), dst, dstOffset, length);
+  }
+
+  /**
+   * Reads a fragment of the file with the given path in any file system into a caller
+   * supplied array, selecting the file first if it is not the selected file. The file system
+   * layer chooses how, for instance using {@link #readBinary(short[], int, byte[], int, int)}
+   * for paths starting at the MF.
+   *
+   * @param fs the file system
+   * @param path the path of the file
+   * @param offset the offset in the file
+   * @param dst the destination array
+   * @param dstOffset the offset in the destination array
+   * @param length the number of bytes to read
+   *
+   * @return the number of bytes read, at most {@code length}
+   *
+   * @throws CardServiceException on error
+   */
+  /* package visible */ static int readBinary(FileSystemStructured fs, FileInfo[] path, int offset, byte[] dst, int dstOffset, int length) throws CardServiceException {
+    if (!Arrays.equals(fs.getSelectedPath(), path)
+        && fs instanceof AbstractFileSystemStructured && path.length > 0 && path[0].getFID() == MF_ID) {
+      return ((AbstractFileSystemStructured)fs).readBinary(toFIDs(path), offset, dst, dstOffset, length);
+    }
+    selectPath(fs, path);
+    return readBinary(fs, offset, dst, dstOffset, length);
+  }
+
+  private static int copy(byte[] data, byte[] dst, int dstOffset, int length) {
+    if (data == null) {
+      return 0;
+    }
+    int n = Math.min(data.length, length);
+    System.arraycopy(data, 0, dst, dstOffset, n);
+    return n;
+  }
+
   private CommandAPDU createSelectFileAPDU(int p1, int p2, byte[] data, int le) {
     if( le == 0) {
       return new CommandAPDU( ISO7816.CLA_ISO7816, ISO7816.INS_SELECT_FILE, p1, p2, data );
@@ -0,0 +1,295 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.smartcards;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs operations on a card service asynchronously, one at a time, on a
+ * thread dedicated to the card.
+ *
+ * Callers submit APDUs or composite {@link CardOperation}s and get a
+ * {@link Future} back, instead of blocking on the service's lock. Using an
+ * {@code AsyncCardService} per card, a caller can fan out over many cards.
+ * The thread factory can be supplied, for instance one producing virtual
+ * threads on JDKs that have them.
+ *
+ * The {@code Future}s throw an {@link java.util.concurrent.ExecutionException}
+ * whose cause is the {@link CardServiceException} if the operation failed.
+ *
+ * The number of queued operations and the time operations waited in the
+ * queue are available as metrics.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class AsyncCardService implements Closeable {
+
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  private final CardService service;
+  private final ExecutorService executor;
+
+  private final AtomicInteger queueDepth;
+  private final AtomicLong submittedCount;
+  private final AtomicLong completedCount;
+  private final AtomicLong totalWaitTimeNanos;
+  private final AtomicLong maxWaitTimeNanos;
+
+  /**
+   * Constructs an asynchronous service that runs operations on a daemon thread.
+   *
+   * @param service the card service to use
+   */
+  public AsyncCardService(CardService service) {
+    this(service, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "scuba-card-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Constructs an asynchronous service that runs operations on a thread made by the given factory.
+   *
+   * @param service the card service to use
+   * @param threadFactory the factory for the thread dedicated to this card
+   */
+  public AsyncCardService(CardService service, ThreadFactory threadFactory) {
+    if (service == null) {
+      throw new IllegalArgumentException("Service cannot be null");
+    }
+    this.service = service;
+    this.executor = Executors.newSingleThreadExecutor(threadFactory);
+    this.queueDepth = new AtomicInteger();
+    this.submittedCount = new AtomicLong();
+    this.completedCount = new AtomicLong();
+    this.totalWaitTimeNanos = new AtomicLong();
+    this.maxWaitTimeNanos = new AtomicLong();
+  }
+
+  /**
+   * Returns the card service used by this asynchronous service.
+   *
+   * @return the card service
+   */
+  public CardService getService() {
+    return service;
+  }
+
+  /**
+   * Sends an APDU to the card.
+   *
+   * @param commandAPDU the command APDU to send
+   *
+   * @return the future response APDU from the card
+   */
+  public Future<ResponseAPDU> transmitAsync(final CommandAPDU commandAPDU) {
+    return submit(new CardOperation<ResponseAPDU>() {
+      public ResponseAPDU run(CardService service) throws CardServiceException {
+        return service.transmit(commandAPDU);
+      }
+    });
+  }
+
+  /**
+   * Sends a batch of APDUs to the card, using
+   * {@link CardService#transmitBatch(List, BatchStopCondition)}.
+   *
+   * @param commandAPDUs the command APDUs to send
+   * @param stopCondition decides whether to stop after a response, or {@code null} to send all commands
+   *
+   * @return the future response APDUs from the card
+   */
+  public Future<List<ResponseAPDU>> transmitBatchAsync(final List<CommandAPDU> commandAPDUs, final BatchStopCondition stopCondition) {
+    return submit(new CardOperation<List<ResponseAPDU>>() {
+      public List<ResponseAPDU> run(CardService service) throws CardServiceException {
+        return service.transmitBatch(commandAPDUs, stopCondition);
+      }
+    });
+  }
+
+  /**
+   * Submits a composite operation. Operations run in the order in which they are submitted.
+   *
+   * @param <T> the type of the result
+   *
+   * @param operation the operation
+   *
+   * @return the future result of the operation
+   *
+   * @throws java.util.concurrent.RejectedExecutionException if this service is closed
+   */
+  public <T> Future<T> submit(final CardOperation<T> operation) {
+    final long submitTime = System.nanoTime();
+    final QueuedTask<T> task = new QueuedTask<T>(new Callable<T>() {
+      public T call() throws CardServiceException {
+        recordWaitTime(System.nanoTime() - submitTime);
+        try {
+          return operation.run(service);
+        } finally {
+          completedCount.incrementAndGet();
+        }
+      }
+    });
+    queueDepth.incrementAndGet();
+    submittedCount.incrementAndGet();
+    try {
+      executor.execute(task);
+      return task;
+    } catch (RuntimeException re) {
+      task.dequeue();
+      submittedCount.decrementAndGet();
+      throw re;
+    }
+  }
+
+  /**
+   * Returns the number of operations waiting to be run.
+   *
+   * @return the number of queued operations
+   */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * Returns the number of operations submitted so far.
+   *
+   * @return the number of submitted operations
+   */
+  public long getSubmittedCount() {
+    return submittedCount.get();
+  }
+
+  /**
+   * Returns the number of operations that have run so far, successfully or not.
+   *
+   * @return the number of completed operations
+   */
+  public long getCompletedCount() {
+    return completedCount.get();
+  }
+
+  /**
+   * Returns the total time that operations have waited in the queue before being run.
+   *
+   * @param unit the unit of the result
+   *
+   * @return the total wait time
+   */
+  public long getTotalWaitTime(TimeUnit unit) {
+    return unit.convert(totalWaitTimeNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the longest time that an operation has waited in the queue before being run.
+   *
+   * @param unit the unit of the result
+   *
+   * @return the maximum wait time
+   */
+  public long getMaxWaitTime(TimeUnit unit) {
+    return unit.convert(maxWaitTimeNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stops accepting operations. Operations already submitted are still run.
+   * Does not close the card service.
+   */
+  public void close() {
+    executor.shutdown();
+  }
+
+  /**
+   * Waits for the operations submitted before {@link #close()} to complete.
+   *
+   * @param timeout the maximum time to wait
+   * @param unit the unit of the timeout
+   *
+   * @return whether all operations completed before the timeout
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public String toString() {
+    return "AsyncCardService [" + service + ", queue depth " + queueDepth.get() + "]";
+  }
+
+  private void recordWaitTime(long waitTimeNanos) {
+    totalWaitTimeNanos.addAndGet(waitTimeNanos);
+    long max = maxWaitTimeNanos.get();
+    while (waitTimeNanos > max && !maxWaitTimeNanos.compareAndSet(max, waitTimeNanos)) {
+      max = maxWaitTimeNanos.get();
+    }
+  }
+
+  /**
+   * A task that leaves the queue when it starts running, or when it is done
+   * without having run, for instance because it was cancelled.
+   */
+  private class QueuedTask<T> extends FutureTask<T> {
+
+    private final AtomicBoolean isDequeued = new AtomicBoolean();
+
+    public QueuedTask(Callable<T> callable) {
+      super(callable);
+    }
+
+    @Override
+    public void run() {
+      dequeue();
+      super.run();
+    }
+
+    @Override
+    protected void done() {
+      dequeue();
+    }
+
+    void dequeue() {
+      if (isDequeued.compareAndSet(false, true)) {
+        queueDepth.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.smartcards;
+
+/**
+ * Decides whether a batch of commands sent with
+ * {@link CardService#transmitBatch(java.util.List, BatchStopCondition)}
+ * should stop after a response.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public interface BatchStopCondition {
+
+  /**
+   * Stops the batch after a response with an execution or checking error
+   * status word, i.e. with SW1 in the range {@code 0x64} to {@code 0x6F}.
+   * Warnings ({@code 0x62}, {@code 0x63}) and bytes remaining ({@code 0x61})
+   * do not stop the batch.
+   */
+  BatchStopCondition ON_ERROR = new BatchStopCondition() {
+    public boolean shouldStop(int index, CommandAPDU command, ResponseAPDU response) {
+      int sw1 = response.getSW1();
+      return sw1 >= 0x64 && sw1 <= 0x6F;
+    }
+  };
+
+  /**
+   * Whether the batch should stop after the given response.
+   * The remaining commands are then not sent.
+   *
+   * @param index the index of the command in the batch
+   * @param command the command that was sent
+   * @param response the response to the command
+   *
+   * @return whether to stop the batch
+   */
+  boolean shouldStop(int index, CommandAPDU command, ResponseAPDU response);
+}
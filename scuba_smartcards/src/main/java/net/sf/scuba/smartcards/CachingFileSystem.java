@@ -0,0 +1,393 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+package net.sf.scuba.smartcards;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A file system that serves the contents of card files from a {@link CardFileStore}
+ * when it has seen them before, for files that do not change once issued.
+ *
+ * On the first read after a file is selected, a fingerprint of the file is determined.
+ * By default this is the identity of the card together with the path and length of the
+ * file and its first block, which costs a single READ BINARY. The identity of the card is
+ * given by a {@link CardIdentityProvider}, see {@link #setCardIdentityProvider(CardService, CardIdentityProvider)},
+ * and without one files are not cached by default. Alternatively, the fingerprint can be taken
+ * from the contents of another EF that holds hashes of files, see {@link #setHashFile(short, short)},
+ * which is read once per card session. If the store has contents for the fingerprint, those are returned
+ * without reading from the card. Otherwise the file is read completely from the card and stored.
+ *
+ * Only contents with a fingerprint from a hash file are shared between cards, as the
+ * hash file identifies the contents. The default fingerprint only serves a card its own files.
+ *
+ * Files should be selected through this file system. Like other file systems,
+ * it should be locked when used by more than one thread.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class CachingFileSystem implements FileSystemStructured {
+
+  private static final Logger LOGGER = Logger.getLogger("net.sf.scuba");
+
+  private final FileSystemStructured fs;
+  private final CardFileStore store;
+  private final int maxBlockSize;
+
+  /* The hash files of files, by file identifier, and the contents of hash files read in this session. */
+  private final Map<Short, Short> hashFiles = new HashMap<Short, Short>();
+  private final Map<Short, byte[]> hashFileContents = new HashMap<Short, byte[]>();
+  private byte[] hashFileATR;
+  private int hashFileSession = -1;
+
+  /* Determines the identity of the card for the default fingerprint, once per session. */
+  private CardService service;
+  private CardIdentityProvider cardIdentityProvider;
+  private byte[] cardIdentity;
+  private byte[] cardIdentityATR;
+  private int cardIdentitySession = -1;
+
+  /* The contents of the selected file, if known, and whether the store has been consulted. */
+  private ByteBuffer contents;
+  private boolean isLookedUp;
+
+  /**
+   * Constructs a file system that reads blocks of the largest size supported by the card,
+   * if the underlying file system knows it.
+   *
+   * @param fs the underlying file system
+   * @param store the store
+   *
+   * @throws CardServiceException on error determining the capabilities of the card
+   */
+  public CachingFileSystem(FileSystemStructured fs, CardFileStore store) throws CardServiceException {
+    this(fs, store, CardFileInputStream.getMaxBlockSize(fs));
+  }
+
+  /**
+   * Constructs a file system.
+   *
+   * @param fs the underlying file system
+   * @param store the store
+   * @param maxBlockSize the maximum number of bytes to read from the card in a single READ BINARY
+   */
+  public CachingFileSystem(FileSystemStructured fs, CardFileStore store, int maxBlockSize) {
+    if (fs == null || store == null) {
+      throw new IllegalArgumentException("File system and store cannot be null");
+    }
+    if (maxBlockSize < 1) {
+      throw new IllegalArgumentException("Block size should be positive");
+    }
+    this.fs = fs;
+    this.store = store;
+    this.maxBlockSize = maxBlockSize;
+  }
+
+  /**
+   * Takes the fingerprint of a file from the contents of a hash file, instead of from
+   * the first block of the file. The hash file should be in the same DF, its contents
+   * should change whenever the contents of the file change, and its length should be
+   * known when it is selected.
+   *
+   * The hash file is read once per session of the service set with {@link #setCardService(CardService)}
+   * or {@link #setCardIdentityProvider(CardService, CardIdentityProvider)}, and again when the ATR
+   * changes. Without a service it is read again for each file.
+   *
+   * @param fid the file identifier of the file
+   * @param hashFID the file identifier of the hash file
+   */
+  public void setHashFile(short fid, short hashFID) {
+    hashFiles.put(fid, hashFID);
+  }
+
+  /**
+   * Sets the card service that the underlying file system talks to, which tells
+   * when the card session changes, so that hash files are read again.
+   *
+   * @param service the card service, or {@code null}
+   */
+  public void setCardService(CardService service) {
+    this.service = service;
+    this.cardIdentityProvider = null;
+    this.cardIdentity = null;
+    this.cardIdentityATR = null;
+    this.cardIdentitySession = -1;
+    hashFileContents.clear();
+    this.hashFileATR = null;
+    this.hashFileSession = -1;
+  }
+
+  /**
+   * Sets the provider of the identity of the card, which is part of the default fingerprint.
+   * Without a provider, or if it does not know the identity of the card, only files with a
+   * hash file are cached.
+   *
+   * @param service the card service that the underlying file system talks to
+   * @param cardIdentityProvider tells cards with the same ATR apart
+   */
+  public void setCardIdentityProvider(CardService service, CardIdentityProvider cardIdentityProvider) {
+    if ((service == null) != (cardIdentityProvider == null)) {
+      throw new IllegalArgumentException("Both service and provider should be given, or neither");
+    }
+    setCardService(service);
+    this.cardIdentityProvider = cardIdentityProvider;
+  }
+
+  public void selectFile(short fid) throws CardServiceException {
+    contents = null;
+    isLookedUp = false;
+    fs.selectFile(fid);
+  }
+
+  /**
+   * Reads a fragment of the currently selected file, from the store if
+   * the store has the contents of the file.
+   *
+   * @param offset offset
+   * @param length the number of bytes to read (the result may be shorter, though)
+   *
+   * @return contents of currently selected file, contains at least 1 byte, at most length
+   *
+   * @throws CardServiceException on error (for instance: end of file)
+   */
+  public byte[] readBinary(int offset, int length) throws CardServiceException {
+    if (!isLookedUp) {
+      isLookedUp = true;
+      contents = lookUp();
+    }
+    if (contents == null) {
+      return fs.readBinary(offset, length);
+    }
+    if (offset < 0 || offset >= contents.limit()) {
+      throw new CardServiceException("Offset " + offset + " beyond end of file", ISO7816.SW_WRONG_P1P2 & 0xFFFF);
+    }
+    byte[] result = new byte[Math.min(length, contents.limit() - offset)];
+    ByteBuffer buffer = contents.duplicate();
+    ((Buffer)buffer).position(offset);
+    buffer.get(result);
+    return result;
+  }
+
+  public FileInfo[] getSelectedPath() throws CardServiceException {
+    return fs.getSelectedPath();
+  }
+
+  /**
+   * Determines the fingerprint of the selected file, and returns its contents,
+   * from the store if possible, otherwise from the card.
+   *
+   * @return the contents, or {@code null} if the file cannot be cached
+   *
+   * @throws CardServiceException on error reading from the card
+   */
+  private ByteBuffer lookUp() throws CardServiceException {
+    FileInfo[] path = fs.getSelectedPath();
+    if (path == null || path.length == 0) {
+      return null;
+    }
+    FileInfo fileInfo = path[path.length - 1];
+    int fileLength = fileInfo.getFileLength();
+    if (fileLength <= 0) {
+      return null;
+    }
+    byte[] data = null;
+    int count = 0;
+    byte[] hashFileData = null;
+    Short hashFID = hashFiles.get(fileInfo.getFID());
+    if (hashFID != null) {
+      hashFileData = getHashFileContents(hashFID, fileInfo.getFID());
+    }
+    byte[] identity = null;
+    if (hashFileData == null) {
+      identity = getCardIdentity();
+      if (identity == null) {
+        return null;
+      }
+      data = new byte[fileLength];
+      count = readFully(data, 0, Math.min(maxBlockSize, fileLength));
+    }
+    byte[] fingerprint = getFingerprint(identity, path, fileLength, hashFileData != null ? hashFileData : data, hashFileData != null ? hashFileData.length : count);
+
+    try {
+      ByteBuffer storedContents = store.get(fingerprint);
+      if (storedContents != null && storedContents.limit() == fileLength) {
+        return storedContents;
+      }
+    } catch (IOException ioe) {
+      LOGGER.log(Level.WARNING, "Could not read from card file store", ioe);
+    }
+
+    if (data == null) {
+      data = new byte[fileLength];
+    }
+    readFully(data, count, fileLength - count);
+    try {
+      store.put(fingerprint, data);
+    } catch (IOException ioe) {
+      LOGGER.log(Level.WARNING, "Could not write to card file store", ioe);
+    }
+    return ByteBuffer.wrap(data).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the contents of a hash file, reading it from the card the first time,
+   * after which the given file is selected again.
+   *
+   * @param hashFID the file identifier of the hash file
+   * @param fid the file identifier of the file to select again
+   *
+   * @return the contents, or {@code null} if the length of the hash file is not known
+   *
+   * @throws CardServiceException on error reading from the card
+   */
+  private byte[] getHashFileContents(short hashFID, short fid) throws CardServiceException {
+    forgetHashFileContentsOfOtherCards();
+    byte[] result = hashFileContents.get(hashFID);
+    if (result != null) {
+      return result;
+    }
+    fs.selectFile(hashFID);
+    try {
+      FileInfo[] path = fs.getSelectedPath();
+      int length = (path == null || path.length == 0) ? -1 : path[path.length - 1].getFileLength();
+      if (length < 0) {
+        return null;
+      }
+      result = new byte[length];
+      readFully(result, 0, length);
+      hashFileContents.put(hashFID, result);
+      return result;
+    } finally {
+      fs.selectFile(fid);
+    }
+  }
+
+  /**
+   * Forgets the contents of hash files read in an earlier session, or from a card with
+   * another ATR. Without a service the session is unknown, so all contents are forgotten.
+   *
+   * @throws CardServiceException on error getting the ATR
+   */
+  private void forgetHashFileContentsOfOtherCards() throws CardServiceException {
+    if (service == null) {
+      hashFileContents.clear();
+      return;
+    }
+    byte[] atr = service.getATR();
+    if (atr == null) {
+      atr = new byte[0];
+    }
+    int session = service.getSessionNumber();
+    if (session != hashFileSession || !Arrays.equals(atr, hashFileATR)) {
+      hashFileContents.clear();
+      hashFileATR = atr;
+      hashFileSession = session;
+    }
+  }
+
+  /**
+   * Returns the identity of the card, for the default fingerprint. It is
+   * determined again in each session of the card service, and when the ATR changes.
+   *
+   * @return the ATR of the card followed by its identifier, or {@code null} if the card has no known identifier
+   *
+   * @throws CardServiceException on error determining the identity
+   */
+  private byte[] getCardIdentity() throws CardServiceException {
+    if (cardIdentityProvider == null) {
+      return null;
+    }
+    byte[] atr = service.getATR();
+    if (atr == null) {
+      atr = new byte[0];
+    }
+    int session = service.getSessionNumber();
+    if (session != cardIdentitySession || !Arrays.equals(atr, cardIdentityATR)) {
+      byte[] identifier = cardIdentityProvider.getCardIdentifier(service);
+      byte[] identity = null;
+      if (identifier != null) {
+        identity = Arrays.copyOf(atr, atr.length + identifier.length);
+        System.arraycopy(identifier, 0, identity, atr.length, identifier.length);
+      }
+      cardIdentity = identity;
+      cardIdentityATR = atr;
+      cardIdentitySession = session;
+    }
+    return cardIdentity;
+  }
+
+  /**
+   * Reads from the selected file of the underlying file system.
+   *
+   * @param dest the destination array, the offset in the file is the offset in this array
+   * @param offset the offset in the file
+   * @param length the number of bytes to read
+   *
+   * @return the number of bytes read, which is {@code length}
+   *
+   * @throws CardServiceException on error, or if the file ends before
+   */
+  private int readFully(byte[] dest, int offset, int length) throws CardServiceException {
+    int count = 0;
+    while (count < length) {
+      byte[] block = fs.readBinary(offset + count, Math.min(maxBlockSize, length - count));
+      if (block == null || block.length == 0) {
+        throw new CardServiceException("Could not read file at offset " + (offset + count));
+      }
+      int n = Math.min(block.length, length - count);
+      System.arraycopy(block, 0, dest, offset + count, n);
+      count += n;
+    }
+    return count;
+  }
+
+  private static byte[] getFingerprint(byte[] identity, FileInfo[] path, int fileLength, byte[] data, int dataLength) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      if (identity != null) {
+        int identityLength = identity.length;
+        digest.update(new byte[] { (byte)(identityLength >> 24), (byte)(identityLength >> 16), (byte)(identityLength >> 8), (byte)identityLength });
+        digest.update(identity);
+      }
+      for (FileInfo fileInfo: path) {
+        short fid = fileInfo.getFID();
+        digest.update(new byte[] { (byte)((fid >> 8) & 0xFF), (byte)(fid & 0xFF) });
+      }
+      digest.update(new byte[] { (byte)(fileLength >> 24), (byte)(fileLength >> 16), (byte)(fileLength >> 8), (byte)fileLength });
+      digest.update(data, 0, dataLength);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException("SHA-256 not available", nsae);
+    }
+  }
+}
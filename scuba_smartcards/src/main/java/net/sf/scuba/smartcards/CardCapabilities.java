@@ -0,0 +1,366 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.smartcards;
+
+import java.util.Arrays;
+
+import net.sf.scuba.util.Hex;
+
+/**
+ * The capabilities of a card relevant for APDU sizes, as indicated by the
+ * card capabilities in the historical bytes of the ATR (ISO 7816-4, 8.1.1.2.7)
+ * or as learned from the extended length information (ISO 7816-4, 12.7.1).
+ *
+ * Instances are immutable.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public final class CardCapabilities {
+
+  /** The maximum number of data bytes in a short command APDU. */
+  public static final int SHORT_MAX_NC = 255;
+
+  /** The maximum number of data bytes in the response to a short command APDU. */
+  public static final int SHORT_MAX_NE = 256;
+
+  /** The maximum number of data bytes in an extended length command APDU. */
+  public static final int EXTENDED_MAX_NC = 65535;
+
+  /** The maximum number of data bytes in the response to an extended length command APDU. */
+  public static final int EXTENDED_MAX_NE = 65536;
+
+  private static final int CARD_CAPABILITIES_TAG = 0x7;
+
+  private static final int COMMAND_CHAINING_BIT = 0x80;
+  private static final int EXTENDED_LENGTH_BIT = 0x40;
+  private static final int EXTENDED_LENGTH_INFO_BIT = 0x20;
+
+  private final byte[] atr;
+  private final byte[] historicalBytes;
+  private final boolean isCommandChainingSupported;
+  private final boolean isExtendedLengthSupported;
+  private final boolean hasExtendedLengthInfo;
+  private final boolean isKnown;
+  private final int logicalChannelCount;
+  private final int maxNc;
+  private final int maxNe;
+
+  /**
+   * Constructs the capabilities indicated by historical bytes.
+   *
+   * @param atr the answer to reset (or other identification of the card, such as the
+   *            historical bytes themselves for contactless cards), used as a key for caching
+   * @param historicalBytes the historical bytes
+   */
+  public CardCapabilities(byte[] atr, byte[] historicalBytes) {
+    this.atr = atr == null ? new byte[0] : atr.clone();
+    this.historicalBytes = historicalBytes == null ? new byte[0] : historicalBytes.clone();
+
+    byte[] cardCapabilities = findCardCapabilities(this.historicalBytes);
+    int thirdByte = cardCapabilities.length >= 3 ? cardCapabilities[2] & 0xFF : 0;
+    this.isCommandChainingSupported = (thirdByte & COMMAND_CHAINING_BIT) != 0;
+    this.isExtendedLengthSupported = (thirdByte & EXTENDED_LENGTH_BIT) != 0;
+    this.hasExtendedLengthInfo = (thirdByte & EXTENDED_LENGTH_INFO_BIT) != 0;
+    this.isKnown = cardCapabilities.length >= 3;
+    /* Bits 3-1 encode the maximum number of logical channels minus one, 7 meaning 8 or more. */
+    this.logicalChannelCount = cardCapabilities.length >= 3 ? (thirdByte & 0x07) + 1 : 1;
+    this.maxNc = isExtendedLengthSupported ? EXTENDED_MAX_NC : SHORT_MAX_NC;
+    this.maxNe = isExtendedLengthSupported ? EXTENDED_MAX_NE : SHORT_MAX_NE;
+  }
+
+  private CardCapabilities(CardCapabilities other, boolean isExtendedLengthSupported, int maxNc, int maxNe) {
+    this.atr = other.atr;
+    this.historicalBytes = other.historicalBytes;
+    this.isCommandChainingSupported = other.isCommandChainingSupported;
+    this.hasExtendedLengthInfo = other.hasExtendedLengthInfo;
+    this.isKnown = true;
+    this.logicalChannelCount = other.logicalChannelCount;
+    this.isExtendedLengthSupported = isExtendedLengthSupported;
+    this.maxNc = maxNc;
+    this.maxNe = maxNe;
+  }
+
+  /**
+   * Constructs the capabilities indicated by an answer to reset.
+   * An ATR that cannot be parsed results in capabilities for short length APDUs only.
+   *
+   * @param atr the answer to reset
+   *
+   * @return the capabilities
+   */
+  public static CardCapabilities fromATR(byte[] atr) {
+    return new CardCapabilities(atr, getHistoricalBytes(atr));
+  }
+
+  /**
+   * Returns a copy of these capabilities with the given maximum lengths,
+   * for instance found by probing the card.
+   *
+   * @param maxNc the maximum number of data bytes in a command APDU
+   * @param maxNe the maximum number of data bytes in a response APDU
+   *
+   * @return the new capabilities
+   */
+  public CardCapabilities withMaxLengths(int maxNc, int maxNe) {
+    if (maxNc < 1 || maxNc > EXTENDED_MAX_NC || maxNe < 1 || maxNe > EXTENDED_MAX_NE) {
+      throw new IllegalArgumentException("Illegal maximum lengths " + maxNc + ", " + maxNe);
+    }
+    return new CardCapabilities(this, maxNc > SHORT_MAX_NC || maxNe > SHORT_MAX_NE, maxNc, maxNe);
+  }
+
+  /**
+   * Returns a copy of these capabilities with the maximum lengths in the
+   * extended length information data object (tag {@code 7F66}), as found
+   * in EF.ATR/INFO.
+   *
+   * @param extendedLengthInfo the encoded extended length information data object
+   *
+   * @return the new capabilities
+   *
+   * @throws IllegalArgumentException if the data object cannot be parsed
+   */
+  public CardCapabilities withExtendedLengthInfo(byte[] extendedLengthInfo) {
+    byte[] info = extendedLengthInfo;
+    if (info.length < 3 || (info[0] & 0xFF) != 0x7F || (info[1] & 0xFF) != 0x66) {
+      throw new IllegalArgumentException("Expected tag 7F66");
+    }
+    int offset = 2;
+    int length = info[offset++] & 0xFF;
+    if (length == 0x81) {
+      length = info[offset++] & 0xFF;
+    } else if (length > 0x7F) {
+      throw new IllegalArgumentException("Unsupported length encoding in extended length information");
+    }
+    int end = offset + length;
+    if (end > info.length) {
+      throw new IllegalArgumentException("Extended length information is truncated");
+    }
+    int[] values = new int[2];
+    for (int i = 0; i < values.length; i++) {
+      if (offset + 2 > end || info[offset] != 0x02) {
+        throw new IllegalArgumentException("Expected INTEGER in extended length information");
+      }
+      int intLength = info[offset + 1] & 0xFF;
+      offset += 2;
+      if (intLength < 1 || intLength > 3 || offset + intLength > end) {
+        throw new IllegalArgumentException("Illegal INTEGER in extended length information");
+      }
+      for (int j = 0; j < intLength; j++) {
+        values[i] = (values[i] << 8) | (info[offset++] & 0xFF);
+      }
+    }
+    return withMaxLengths(Math.min(values[0], EXTENDED_MAX_NC), Math.min(values[1], EXTENDED_MAX_NE));
+  }
+
+  /**
+   * Returns the answer to reset (or other identification of the card) these capabilities are for.
+   *
+   * @return the answer to reset
+   */
+  public byte[] getATR() {
+    return atr.clone();
+  }
+
+  /**
+   * Returns the historical bytes.
+   *
+   * @return the historical bytes
+   */
+  public byte[] getHistoricalBytes() {
+    return historicalBytes.clone();
+  }
+
+  /**
+   * Whether the card supports command chaining.
+   *
+   * @return whether command chaining is supported
+   */
+  public boolean isCommandChainingSupported() {
+    return isCommandChainingSupported;
+  }
+
+  /**
+   * Whether the card supports extended Lc and Le fields.
+   *
+   * @return whether extended length APDUs are supported
+   */
+  public boolean isExtendedLengthSupported() {
+    return isExtendedLengthSupported;
+  }
+
+  /**
+   * Whether the card indicates that EF.ATR/INFO contains extended length information,
+   * which can be passed to {@link #withExtendedLengthInfo(byte[])}.
+   *
+   * @return whether the card has extended length information
+   */
+  public boolean hasExtendedLengthInfo() {
+    return hasExtendedLengthInfo;
+  }
+
+  /**
+   * Whether these capabilities are indicated by the card, either by the card
+   * capabilities in the historical bytes or by maximum lengths found by probing
+   * the card. If not, these capabilities are the short length defaults.
+   *
+   * @return whether the capabilities are known
+   */
+  public boolean isKnown() {
+    return isKnown;
+  }
+
+  /**
+   * Returns the maximum number of logical channels, 8 meaning 8 or more.
+   *
+   * @return the maximum number of logical channels
+   */
+  public int getLogicalChannelCount() {
+    return logicalChannelCount;
+  }
+
+  /**
+   * Returns the maximum number of data bytes in a command APDU (Nc).
+   *
+   * @return the maximum Nc
+   */
+  public int getMaxCommandDataLength() {
+    return maxNc;
+  }
+
+  /**
+   * Returns the maximum number of data bytes in a response APDU (Ne),
+   * which is the largest block size for READ BINARY.
+   *
+   * @return the maximum Ne
+   */
+  public int getMaxResponseDataLength() {
+    return maxNe;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) {
+      return true;
+    }
+    if (!(other instanceof CardCapabilities)) {
+      return false;
+    }
+    CardCapabilities otherCapabilities = (CardCapabilities)other;
+    return Arrays.equals(atr, otherCapabilities.atr)
+        && Arrays.equals(historicalBytes, otherCapabilities.historicalBytes)
+        && isExtendedLengthSupported == otherCapabilities.isExtendedLengthSupported
+        && maxNc == otherCapabilities.maxNc
+        && maxNe == otherCapabilities.maxNe;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(atr) + 7 * maxNc + maxNe;
+  }
+
+  @Override
+  public String toString() {
+    return "CardCapabilities [ATR: " + Hex.bytesToHexString(atr)
+        + ", command chaining: " + isCommandChainingSupported
+        + ", extended length: " + isExtendedLengthSupported
+        + ", logical channels: " + logicalChannelCount
+        + ", max Nc: " + maxNc
+        + ", max Ne: " + maxNe + "]";
+  }
+
+  /**
+   * Extracts the historical bytes from an answer to reset (ISO 7816-3, 8.2).
+   *
+   * @param atr the answer to reset
+   *
+   * @return the historical bytes, or an empty array if the ATR cannot be parsed
+   */
+  static byte[] getHistoricalBytes(byte[] atr) {
+    if (atr == null || atr.length < 2) {
+      return new byte[0];
+    }
+    int t0 = atr[1] & 0xFF;
+    int historicalLength = t0 & 0x0F;
+    int y = t0 & 0xF0;
+    int offset = 2;
+    while (y != 0) {
+      /* TA, TB, and TC. */
+      offset += Integer.bitCount(y & 0x70);
+      if ((y & 0x80) == 0) {
+        break;
+      }
+      /* TD. */
+      if (offset >= atr.length) {
+        return new byte[0];
+      }
+      y = atr[offset++] & 0xF0;
+    }
+    if (offset + historicalLength > atr.length) {
+      return new byte[0];
+    }
+    return Arrays.copyOfRange(atr, offset, offset + historicalLength);
+  }
+
+  /**
+   * Finds the card capabilities data object in the historical bytes (ISO 7816-4, 8.1.1).
+   *
+   * @param historicalBytes the historical bytes
+   *
+   * @return the value of the card capabilities data object, or an empty array
+   */
+  private static byte[] findCardCapabilities(byte[] historicalBytes) {
+    if (historicalBytes.length < 1) {
+      return new byte[0];
+    }
+    int end;
+    switch (historicalBytes[0] & 0xFF) {
+      case 0x00:
+        /* Compact-TLV data objects, followed by a three byte status indicator. */
+        end = historicalBytes.length - 3;
+        break;
+      case 0x80:
+        /* Compact-TLV data objects, possibly including a status indicator. */
+        end = historicalBytes.length;
+        break;
+      default:
+        return new byte[0];
+    }
+    int offset = 1;
+    while (offset < end) {
+      int tag = (historicalBytes[offset] & 0xF0) >> 4;
+      int length = historicalBytes[offset] & 0x0F;
+      offset++;
+      if (offset + length > end) {
+        break;
+      }
+      if (tag == CARD_CAPABILITIES_TAG) {
+        return Arrays.copyOfRange(historicalBytes, offset, offset + length);
+      }
+      offset += length;
+    }
+    return new byte[0];
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.smartcards;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.scuba.util.Hex;
+
+/**
+ * A persistent cache of card capabilities, keyed by ATR, so that capabilities
+ * found by probing a card type are known the next time a card of that type
+ * is seen, also by later processes.
+ *
+ * The cache is stored as a properties file. It is read on first use and
+ * rewritten, through a temporary file, on every change.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class CardCapabilitiesCache {
+
+  private static final Logger LOGGER = Logger.getLogger("net.sf.scuba");
+
+  private final File file;
+  private Properties entries;
+
+  /**
+   * Constructs a cache stored in the given file. The file need not exist.
+   *
+   * @param file the file
+   */
+  public CardCapabilitiesCache(File file) {
+    if (file == null) {
+      throw new IllegalArgumentException("File cannot be null");
+    }
+    this.file = file;
+  }
+
+  /**
+   * Returns the cached capabilities for the given ATR.
+   *
+   * @param atr the answer to reset
+   *
+   * @return the cached capabilities, or {@code null} if not cached
+   */
+  public synchronized CardCapabilities get(byte[] atr) {
+    String entry = getEntries().getProperty(Hex.bytesToHexString(atr));
+    if (entry == null) {
+      return null;
+    }
+    try {
+      String[] fields = entry.split(" ", -1);
+      byte[] historicalBytes = Hex.hexStringToBytes(fields[0]);
+      int maxNc = Integer.parseInt(fields[1]);
+      int maxNe = Integer.parseInt(fields[2]);
+      return new CardCapabilities(atr, historicalBytes).withMaxLengths(maxNc, maxNe);
+    } catch (RuntimeException re) {
+      LOGGER.log(Level.WARNING, "Ignoring malformed cache entry for ATR " + Hex.bytesToHexString(atr), re);
+      return null;
+    }
+  }
+
+  /**
+   * Adds or replaces the capabilities for the ATR of the given capabilities, and
+   * writes the cache to its file.
+   *
+   * @param capabilities the capabilities
+   *
+   * @throws IOException if the cache could not be written
+   */
+  public synchronized void put(CardCapabilities capabilities) throws IOException {
+    String entry = Hex.bytesToHexString(capabilities.getHistoricalBytes())
+        + " " + capabilities.getMaxCommandDataLength()
+        + " " + capabilities.getMaxResponseDataLength();
+    String key = Hex.bytesToHexString(capabilities.getATR());
+    Properties entries = getEntries();
+    if (entry.equals(entries.getProperty(key))) {
+      return;
+    }
+    entries.setProperty(key, entry);
+    store(entries);
+  }
+
+  private Properties getEntries() {
+    if (entries == null) {
+      entries = new Properties();
+      if (file.exists()) {
+        InputStream in = null;
+        try {
+          in = new FileInputStream(file);
+          entries.load(in);
+        } catch (IOException ioe) {
+          LOGGER.log(Level.WARNING, "Could not read card capabilities cache " + file, ioe);
+        } finally {
+          close(in);
+        }
+      }
+    }
+    return entries;
+  }
+
+  private void store(Properties entries) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    File tmpFile = new File(file.getPath() + ".tmp");
+    OutputStream out = new FileOutputStream(tmpFile);
+    try {
+      entries.store(out, "SCUBA card capabilities, by ATR: historical bytes, max Nc, max Ne");
+    } finally {
+      close(out);
+    }
+    /* NOTE: renameTo does not replace an existing file on all platforms. */
+    if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+      throw new IOException("Could not write card capabilities cache " + file);
+    }
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException ioe) {
+      LOGGER.log(Level.FINE, "Exception closing stream", ioe);
+    }
+  }
+}
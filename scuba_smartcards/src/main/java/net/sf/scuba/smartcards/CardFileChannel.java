@@ -0,0 +1,283 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.smartcards;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only channel for random access to a file on an ISO 7816 file system card.
+ *
+ * The file is read in blocks of a fixed size, which are kept in a least recently used
+ * cache. Reads are served from the cache when possible. Adjacent blocks that are
+ * not in the cache are read from the card together, in a single READ BINARY of at
+ * most the maximum read length.
+ *
+ * As in {@link CardFileInputStream}, the file is selected again if another file has
+ * been selected in the meantime, while holding the lock on the file system.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class CardFileChannel implements SeekableByteChannel {
+
+  /** The default size of cached blocks. */
+  public static final int DEFAULT_BLOCK_SIZE = 64;
+
+  /** The default maximum number of cached blocks. */
+  public static final int DEFAULT_CACHE_SIZE = 256;
+
+  private final FileSystemStructured fs;
+  private final FileInfo[] path;
+  private final int fileLength;
+  private final int blockSize;
+  private final int maxReadLength;
+  private final Map<Integer, byte[]> cache;
+
+  /* Reused for reading runs of blocks. */
+  private final byte[] readBuffer;
+
+  private long position;
+  private boolean isOpen;
+
+  /**
+   * Constructs a channel for the currently selected file, with the default block and
+   * cache sizes and the largest read length supported by the card, if the file system knows it.
+   *
+   * @param fs the file system
+   *
+   * @throws CardServiceException on error
+   */
+  public CardFileChannel(FileSystemStructured fs) throws CardServiceException {
+    this(fs, DEFAULT_BLOCK_SIZE, CardFileInputStream.getMaxBlockSize(fs), DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Constructs a channel for the currently selected file.
+   *
+   * @param fs the file system
+   * @param blockSize the size of cached blocks
+   * @param maxReadLength the maximum number of bytes to read in a single READ BINARY,
+   *                      rounded down to a multiple of the block size, but at least one block
+   * @param cacheSize the maximum number of cached blocks
+   *
+   * @throws CardServiceException on error
+   */
+  public CardFileChannel(FileSystemStructured fs, int blockSize, int maxReadLength, int cacheSize) throws CardServiceException {
+    if (blockSize < 1 || maxReadLength < 1 || cacheSize < 1) {
+      throw new IllegalArgumentException("Block size, read length, and cache size should be positive");
+    }
+    this.fs = fs;
+    synchronized(fs) {
+      FileInfo[] fsPath = fs.getSelectedPath();
+      if (fsPath == null || fsPath.length < 1) {
+        throw new CardServiceException("No valid file selected, path = " + Arrays.toString(fsPath));
+      }
+      this.path = fsPath.clone();
+      this.fileLength = fsPath[fsPath.length - 1].getFileLength();
+    }
+    this.blockSize = blockSize;
+    this.maxReadLength = Math.max(blockSize, maxReadLength - maxReadLength % blockSize);
+    this.readBuffer = new byte[this.maxReadLength];
+    final int maxEntries = cacheSize;
+    this.cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = -2411528458745513236L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    this.position = 0;
+    this.isOpen = true;
+  }
+
+  /**
+   * Reads bytes from the file at the current position, from the cache or from the card.
+   *
+   * @param dst the buffer to read into
+   *
+   * @return the number of bytes read, or -1 if the position is at or beyond the end of the file
+   *
+   * @throws IOException on error reading from the card
+   */
+  public int read(ByteBuffer dst) throws IOException {
+    synchronized(fs) {
+      checkOpen();
+      if (position >= fileLength) {
+        return -1;
+      }
+      int start = (int)position;
+      int length = (int)Math.min(dst.remaining(), fileLength - position);
+      int end = start + length;
+      int blockIndex = start / blockSize;
+      int offset = start;
+      while (offset < end) {
+        byte[] block = cache.get(blockIndex);
+        if (block == null) {
+          block = fetch(blockIndex, (end - 1) / blockSize);
+        }
+        int offsetInBlock = offset - blockIndex * blockSize;
+        int n = Math.min(end - offset, block.length - offsetInBlock);
+        dst.put(block, offsetInBlock, n);
+        offset += n;
+        blockIndex++;
+      }
+      position = end;
+      return length;
+    }
+  }
+
+  /**
+   * Not supported, this channel is read-only.
+   *
+   * @throws NonWritableChannelException always
+   */
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  public long position() throws IOException {
+    synchronized(fs) {
+      checkOpen();
+      return position;
+    }
+  }
+
+  public CardFileChannel position(long newPosition) throws IOException {
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Negative position " + newPosition);
+    }
+    synchronized(fs) {
+      checkOpen();
+      position = newPosition;
+      return this;
+    }
+  }
+
+  public long size() throws IOException {
+    synchronized(fs) {
+      checkOpen();
+      return fileLength;
+    }
+  }
+
+  /**
+   * Not supported, this channel is read-only.
+   *
+   * @throws NonWritableChannelException always
+   */
+  public CardFileChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  public boolean isOpen() {
+    synchronized(fs) {
+      return isOpen;
+    }
+  }
+
+  /**
+   * Closes this channel and discards the cached blocks.
+   */
+  public void close() {
+    synchronized(fs) {
+      isOpen = false;
+      cache.clear();
+    }
+  }
+
+  private void checkOpen() throws ClosedChannelException {
+    if (!isOpen) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  /**
+   * Reads the block with the given index from the card, together with the adjacent
+   * blocks up to {@code lastBlockIndex} that are not cached, as far as the maximum
+   * read length allows, and caches them. The caller should hold the lock on {@code fs}.
+   *
+   * @param blockIndex the index of the block to read
+   * @param lastBlockIndex the index of the last block that is needed
+   *
+   * @return the block with index {@code blockIndex}
+   *
+   * @throws IOException on error reading from the card
+   */
+  private byte[] fetch(int blockIndex, int lastBlockIndex) throws IOException {
+    int maxBlockCount = maxReadLength / blockSize;
+    int blockCount = 1;
+    while (blockCount < maxBlockCount && blockIndex + blockCount <= lastBlockIndex
+        && !cache.containsKey(blockIndex + blockCount)) {
+      blockCount++;
+    }
+    int start = blockIndex * blockSize;
+    int length = Math.min(blockCount * blockSize, fileLength - start);
+    readFully(start, length);
+
+    byte[] first = null;
+    for (int i = 0; i < blockCount; i++) {
+      int offset = i * blockSize;
+      byte[] block = Arrays.copyOfRange(readBuffer, offset, Math.min(offset + blockSize, length));
+      cache.put(blockIndex + i, block);
+      if (i == 0) {
+        first = block;
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Reads the given range of the file into the read buffer, using as many READ BINARY
+   * commands as the card needs. The caller should hold the lock on {@code fs}.
+   *
+   * @param offsetInFile the offset in the file
+   * @param length the number of bytes to read
+   *
+   * @throws IOException on error reading from the card, or if the card returns no data
+   */
+  private void readFully(int offsetInFile, int length) throws IOException {
+    try {
+      int count = 0;
+      while (count < length) {
+        int n = AbstractFileSystemStructured.readBinary(fs, path, offsetInFile + count, readBuffer, count, length - count);
+        if (n <= 0) {
+          throw new EOFException("No data at offset " + (offsetInFile + count) + " of file");
+        }
+        count += n;
+      }
+    } catch (CardServiceException cse) {
+      throw new IOException("Unexpected exception", cse);
+    }
+  }
+}
@@ -22,22 +22,41 @@
 
 package net.sf.scuba.smartcards;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Inputstream for reading files on ISO 7816 file system cards.
  *
+ * Optionally, the stream reads ahead: while the caller consumes a block,
+ * the next blocks are read from the card on a background thread.
+ * Each block is read while holding the lock on the file system, so that
+ * no other file gets selected between selecting the file and reading it.
+ *
  * @author Martijn Oostdijk (martijn.oostdijk@gmail.com)
  */
 public class CardFileInputStream extends InputStream {
 
   private static final Logger LOGGER = Logger.getLogger("net.sf.scuba");
 
+  /** The block size used if the file system does not know the capabilities of the card. */
+  private static final int DEFAULT_MAX_BLOCK_SIZE = 0xDF;
+
   private FileInfo[] path;
-  private final byte[] buffer;
+  private byte[] buffer;
   private int bufferLength;
   private int offsetBufferInFile;
   private int offsetInBuffer;
@@ -45,6 +64,27 @@ public class CardFileInputStream extends InputStream {
   private int fileLength;
   private FileSystemStructured fs;
 
+  /* Read-ahead, only used if readAheadDepth > 0. */
+  private int readAheadDepth;
+  private Executor readAheadExecutor;
+  private ThreadPoolExecutor ownedReadAheadExecutor;
+  private Deque<ReadAheadBlock> readAheadBlocks;
+  private byte[] spareBuffer;
+
+  /**
+   * An input stream for reading from the currently selected file in the indicated file system,
+   * using the largest block size supported by the card, if the file system knows it.
+   *
+   * @param fs the file system
+   *
+   * @throws CardServiceException on error
+   *
+   * @see AbstractFileSystemStructured#getMaxReadBinaryLength()
+   */
+  public CardFileInputStream(FileSystemStructured fs) throws CardServiceException {
+    this(getMaxBlockSize(fs), fs);
+  }
+
   /**
    * An input stream for reading from the currently selected file in the indicated file system.
    *
@@ -63,7 +103,8 @@ public class CardFileInputStream extends InputStream {
       this.path = new FileInfo[fsPath.length];
       System.arraycopy(fsPath, 0, this.path, 0, fsPath.length);
       fileLength = fsPath[fsPath.length - 1].getFileLength();
-      buffer = new byte[maxBlockSize];
+      /* No need for a buffer larger than the file. */
+      buffer = new byte[fileLength > 0 ? Math.min(maxBlockSize, fileLength) : maxBlockSize];
       bufferLength = 0;
       offsetBufferInFile = 0;
       offsetInBuffer = 0;
@@ -71,42 +112,47 @@ public class CardFileInputStream extends InputStream {
     }
   }
 
+  /**
+   * An input stream for reading from the currently selected file in the indicated file system,
+   * reading up to {@code readAheadDepth} blocks ahead on a background thread.
+   *
+   * @param maxBlockSize maximum block size to use for read binaries
+   * @param fs the file system
+   * @param readAheadDepth the number of blocks to read ahead, 0 to not read ahead
+   * @param executor the executor to read blocks on, or {@code null} to use a thread owned by this stream
+   *
+   * @throws CardServiceException on error
+   */
+  public CardFileInputStream(int maxBlockSize, FileSystemStructured fs, int readAheadDepth, Executor executor) throws CardServiceException {
+    this(maxBlockSize, fs);
+    if (readAheadDepth < 0) {
+      throw new IllegalArgumentException("Negative read-ahead depth " + readAheadDepth);
+    }
+    this.readAheadDepth = readAheadDepth;
+    this.readAheadBlocks = new ArrayDeque<ReadAheadBlock>(readAheadDepth);
+    if (readAheadDepth > 0 && executor == null) {
+      ownedReadAheadExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "scuba-read-ahead");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      ownedReadAheadExecutor.allowCoreThreadTimeOut(true);
+      executor = ownedReadAheadExecutor;
+    }
+    this.readAheadExecutor = executor;
+  }
+
   @Override
   public int read() throws IOException {
     synchronized(fs) {
-      try {
-        if (!Arrays.equals(path, fs.getSelectedPath())) {
-          for (FileInfo fileInfo: path) {
-            fs.selectFile(fileInfo.getFID());
-          }
-        }
-      } catch (CardServiceException cse) {
-        /* ERROR: selecting proper path failed. */
-        throw new IOException("Unexpected exception", cse); // FIXME: proper error handling here
-      }
-
       int offsetInFile = offsetBufferInFile + offsetInBuffer;
       if (offsetInFile >= fileLength) {
         return -1;
       }
       if (offsetInBuffer >= bufferLength) {
-        int le = Math.min(buffer.length, fileLength - offsetInFile);
-        try {
-          /* NOTE: using tmp variables here, in case fill throws an exception (which we don't catch). */
-          int newOffsetBufferInFile = offsetBufferInFile + bufferLength;
-          int newOffsetInBuffer = 0;
-          int newBufferLength = 0;
-          while (newBufferLength == 0) {
-            newBufferLength = fillBufferFromFile(path, newOffsetBufferInFile, le);
-          }
-          offsetBufferInFile = newOffsetBufferInFile;
-          offsetInBuffer = newOffsetInBuffer;
-          bufferLength = newBufferLength;
-        } catch (CardServiceException cse) {
-          throw new IOException("Unexpected exception", cse);
-        } catch (Exception e) {
-          throw new IOException("Unexpected exception", e);
-        }
+        fillBuffer(offsetInFile);
       }
       int result = buffer[offsetInBuffer] & 0xFF;
       offsetInBuffer++;
@@ -114,22 +160,109 @@ public class CardFileInputStream extends InputStream {
     }
   }
 
+  /**
+   * Reads up to {@code length} bytes. Bytes already buffered are copied from the buffer,
+   * further blocks of the size of the buffer are read from the card straight into {@code dest},
+   * and a remaining partial block is read through the buffer.
+   *
+   * @param dest the destination array
+   * @param offset the offset in the destination array
+   * @param length the maximum number of bytes to read
+   *
+   * @return the number of bytes read, or -1 at the end of the file
+   *
+   * @throws IOException on error reading from the card
+   */
+  @Override
+  public int read(byte[] dest, int offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || length > dest.length - offset) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (length == 0) {
+      return 0;
+    }
+    synchronized(fs) {
+      int offsetInFile = offsetBufferInFile + offsetInBuffer;
+      if (offsetInFile >= fileLength) {
+        return -1;
+      }
+      length = Math.min(length, fileLength - offsetInFile);
+      int count = 0;
+
+      /* Bytes already in the buffer. */
+      int buffered = Math.min(length, bufferLength - offsetInBuffer);
+      if (buffered > 0) {
+        System.arraycopy(buffer, offsetInBuffer, dest, offset, buffered);
+        offsetInBuffer += buffered;
+        count += buffered;
+      }
+
+      /* Whole blocks, bypassing the buffer, unless those are being read ahead. */
+      while (readAheadDepth == 0 && length - count >= buffer.length) {
+        int blockLength = readBlock(dest, offset + count, offsetInFile + count, buffer.length);
+        count += blockLength;
+        offsetBufferInFile = offsetInFile + count;
+        offsetInBuffer = 0;
+        bufferLength = 0;
+      }
+
+      /* The rest, through the buffer. */
+      while (count < length) {
+        int offsetInBlock = offsetInFile + count;
+        fillBuffer(offsetInBlock);
+        int n = Math.min(length - count, bufferLength);
+        System.arraycopy(buffer, 0, dest, offset + count, n);
+        offsetInBuffer = n;
+        count += n;
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Skips over at most {@code n} bytes, not beyond the end of the file.
+   *
+   * @param n the number of bytes to skip
+   *
+   * @return the number of bytes skipped
+   */
   @Override
   public long skip(long n) {
     synchronized(fs) {
+      int offsetInFile = offsetBufferInFile + offsetInBuffer;
+      if (n <= 0 || offsetInFile >= fileLength) {
+        return 0;
+      }
+      n = Math.min(n, fileLength - offsetInFile);
       if (n < (bufferLength - offsetInBuffer)) {
         offsetInBuffer += n;
       } else {
-        int offsetInFile = offsetBufferInFile + offsetInBuffer;
-        offsetBufferInFile = (int) (offsetInFile + n); /* FIXME: shouldn't we check for EOF? We know fileLength... */
+        offsetBufferInFile = (int)(offsetInFile + n);
         offsetInBuffer = 0;
         bufferLength = 0;
-        offsetInFile = offsetBufferInFile + offsetInBuffer;
       }
       return n;
     }
   }
 
+  /**
+   * Stops reading ahead. Blocks already being read are discarded.
+   * The stream can still be read from, without reading ahead.
+   */
+  @Override
+  public void close() {
+    synchronized(fs) {
+      if (readAheadDepth == 0) {
+        return;
+      }
+      readAheadDepth = 0;
+      cancelReadAhead();
+      if (ownedReadAheadExecutor != null) {
+        ownedReadAheadExecutor.shutdown();
+      }
+    }
+  }
+
   @Override
   public synchronized int available() {
     return bufferLength - offsetInBuffer;
@@ -175,31 +308,183 @@ public class CardFileInputStream extends InputStream {
   }
 
   /**
-   * Reads from file with id <code>fid</code>.
+   * Returns the largest block size to use for READ BINARY on the given file system.
    *
-   * @param fid the file to read
-   * @param offsetInFile starting offset in file
-   * @param length the number of bytes to read, or -1 to read until EOF
+   * @param fs the file system
+   *
+   * @return the largest block size
    *
-   * @return the number of bytes that were actually buffered (at most {@code le})
+   * @throws CardServiceException on error determining the capabilities of the card
    */
-  private int fillBufferFromFile(FileInfo[] path, int offsetInFile, int le) throws CardServiceException {
-    synchronized(fs) {
-      if (le > buffer.length) {
-        throw new IllegalArgumentException("length too big");
+  /* package visible */ static int getMaxBlockSize(FileSystemStructured fs) throws CardServiceException {
+    if (fs instanceof AbstractFileSystemStructured) {
+      return ((AbstractFileSystemStructured)fs).getMaxReadBinaryLength();
+    }
+    return DEFAULT_MAX_BLOCK_SIZE;
+  }
+
+  /**
+   * Fills the buffer with the block starting at the given offset. The caller should hold the lock on {@code fs}.
+   *
+   * @param offsetInFile the offset of the block in the file
+   *
+   * @throws IOException on error reading from the card
+   */
+  private void fillBuffer(int offsetInFile) throws IOException {
+    if (readAheadDepth > 0) {
+      fillBufferFromReadAhead(offsetInFile);
+      return;
+    }
+    int le = Math.min(buffer.length, fileLength - offsetInFile);
+    /* NOTE: only updating the state after reading, in case reading throws an exception. */
+    int newBufferLength = readBlock(buffer, 0, offsetInFile, le);
+    offsetBufferInFile = offsetInFile;
+    offsetInBuffer = 0;
+    bufferLength = newBufferLength;
+  }
+
+  /**
+   * Fills the buffer with the block starting at the given offset, which was
+   * read ahead, and starts reading the next blocks. The caller should hold the lock on {@code fs}.
+   *
+   * @param offsetInFile the offset of the block in the file
+   *
+   * @throws IOException on error reading from the card
+   */
+  private void fillBufferFromReadAhead(int offsetInFile) throws IOException {
+    ReadAheadBlock block = readAheadBlocks.peekFirst();
+    if (block == null || block.offsetInFile != offsetInFile) {
+      /* Nothing read ahead yet, or the caller skipped or reset. */
+      cancelReadAhead();
+      scheduleReadAhead(offsetInFile);
+      block = readAheadBlocks.peekFirst();
+    }
+    try {
+      while (!block.isDone) {
+        /* NOTE: waiting releases the lock on fs, so the block can be read. */
+        fs.wait();
       }
-      if (!Arrays.equals(fs.getSelectedPath(), path)) {
-        for (FileInfo fileInfo: path) {
-          fs.selectFile(fileInfo.getFID());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading ahead");
+    }
+    readAheadBlocks.removeFirst();
+    if (block.exception != null) {
+      cancelReadAhead();
+      throw block.exception;
+    }
+
+    /* Swap buffers, the old buffer is reused for reading ahead. */
+    spareBuffer = buffer;
+    buffer = block.data;
+    offsetBufferInFile = offsetInFile;
+    offsetInBuffer = 0;
+    bufferLength = block.length;
+    scheduleReadAhead(offsetInFile + block.length);
+  }
+
+  /**
+   * Makes sure the blocks following the given offset, up to the read-ahead depth,
+   * are being read. The caller should hold the lock on {@code fs}.
+   *
+   * @param offsetInFile the offset in the file of the first block to read ahead
+   *
+   * @throws IOException if no block could be scheduled
+   */
+  private void scheduleReadAhead(int offsetInFile) throws IOException {
+    ReadAheadBlock last = readAheadBlocks.peekLast();
+    int nextOffsetInFile = last == null ? offsetInFile : last.offsetInFile + last.le;
+    while (readAheadBlocks.size() < readAheadDepth && nextOffsetInFile < fileLength) {
+      int le = Math.min(buffer.length, fileLength - nextOffsetInFile);
+      byte[] data = spareBuffer != null ? spareBuffer : new byte[buffer.length];
+      ReadAheadBlock block = new ReadAheadBlock(nextOffsetInFile, le, data);
+      try {
+        readAheadExecutor.execute(block);
+      } catch (RejectedExecutionException ree) {
+        if (readAheadBlocks.isEmpty()) {
+          throw new IOException("Could not read ahead", ree);
         }
+        LOGGER.log(Level.FINE, "Could not read ahead", ree);
+        return;
       }
-      byte[] data = fs.readBinary(offsetInFile, le);
-      if (data == null) {
-        return 0;
+      spareBuffer = null;
+      readAheadBlocks.addLast(block);
+      nextOffsetInFile += le;
+    }
+  }
+
+  /**
+   * Discards the blocks being read ahead. The caller should hold the lock on {@code fs}.
+   */
+  private void cancelReadAhead() {
+    for (ReadAheadBlock block: readAheadBlocks) {
+      block.isCancelled = true;
+    }
+    readAheadBlocks.clear();
+  }
+
+  /**
+   * Reads a block from the file, selecting the file first if another file
+   * has been selected in the meantime. The caller should hold the lock on {@code fs}.
+   *
+   * @param dest the destination array
+   * @param destOffset the offset in the destination array
+   * @param offsetInFile starting offset in file
+   * @param le the number of bytes to read
+   *
+   * @return the number of bytes that were actually read, at least 1 and at most {@code le}
+   *
+   * @throws IOException on error reading from the card, or if the card returns no data
+   */
+  private int readBlock(byte[] dest, int destOffset, int offsetInFile, int le) throws IOException {
+    if (le > buffer.length) {
+      throw new IllegalArgumentException("length too big");
+    }
+    try {
+      int length = AbstractFileSystemStructured.readBinary(fs, path, offsetInFile, dest, destOffset, le);
+      if (length <= 0) {
+        throw new EOFException("No data at offset " + offsetInFile + " of file");
       }
+      return length;
+    } catch (CardServiceException cse) {
+      throw new IOException("Unexpected exception", cse);
+    } catch (RuntimeException re) {
+      throw new IOException("Unexpected exception", re);
+    }
+  }
+
+  /**
+   * A block being read ahead.
+   */
+  private class ReadAheadBlock implements Runnable {
+
+    private final int offsetInFile;
+    private final int le;
+    private final byte[] data;
+    private int length;
+    private IOException exception;
+    private boolean isDone;
+    private boolean isCancelled;
+
+    public ReadAheadBlock(int offsetInFile, int le, byte[] data) {
+      this.offsetInFile = offsetInFile;
+      this.le = le;
+      this.data = data;
+    }
 
-      System.arraycopy(data, 0, buffer, 0, data.length);
-      return data.length;
+    public void run() {
+      synchronized(fs) {
+        try {
+          if (!isCancelled) {
+            length = readBlock(data, 0, offsetInFile, le);
+          }
+        } catch (IOException ioe) {
+          exception = ioe;
+        } finally {
+          isDone = true;
+          fs.notifyAll();
+        }
+      }
     }
   }
 }
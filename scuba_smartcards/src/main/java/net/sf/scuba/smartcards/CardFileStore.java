@@ -0,0 +1,334 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+package net.sf.scuba.smartcards;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.scuba.util.Hex;
+
+/**
+ * A persistent store of card file contents, used by {@link CachingFileSystem}.
+ *
+ * Contents are stored once per distinct content, in a file named after the
+ * SHA-256 hash of the content. An index maps fingerprints of card files to
+ * these hashes. Contents are memory-mapped when read, and their hash is checked,
+ * so that damaged files are discarded rather than returned.
+ *
+ * Files are written to a temporary file, synced, and then renamed, and a content
+ * file is written before the index refers to it, so that a crash leaves
+ * at most an unreferenced content file. The total size of the contents is bounded:
+ * the least recently used contents are removed when a new content does not fit.
+ *
+ * As in {@link CardCapabilitiesCache}, the index is read on first use, so
+ * entries added by other processes afterwards are not seen.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class CardFileStore {
+
+  private static final Logger LOGGER = Logger.getLogger("net.sf.scuba");
+
+  private static final String INDEX_FILE_NAME = "index.properties";
+  private static final String CONTENT_FILE_SUFFIX = ".bin";
+  private static final String TMP_FILE_SUFFIX = ".tmp";
+
+  private final File directory;
+  private final long maxSize;
+  private Properties index;
+
+  /**
+   * Constructs a store in the given directory. The directory need not exist.
+   *
+   * @param directory the directory
+   * @param maxSize the maximum total size of the stored contents, in bytes
+   */
+  public CardFileStore(File directory, long maxSize) {
+    if (directory == null) {
+      throw new IllegalArgumentException("Directory cannot be null");
+    }
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Negative size " + maxSize);
+    }
+    this.directory = directory;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the contents stored for the given fingerprint, and marks them as
+   * recently used.
+   *
+   * @param fingerprint the fingerprint of a card file
+   *
+   * @return a read-only buffer with the contents, or {@code null} if not stored
+   *
+   * @throws IOException on error reading the store
+   */
+  public synchronized ByteBuffer get(byte[] fingerprint) throws IOException {
+    String key = Hex.bytesToHexString(fingerprint);
+    Properties index = getIndex();
+    String hash = index.getProperty(key);
+    if (hash == null) {
+      return null;
+    }
+    File file = getContentFile(hash);
+    ByteBuffer contents = file.exists() ? map(file) : null;
+    if (contents == null || !hash.equals(Hex.bytesToHexString(digest(contents.duplicate())))) {
+      LOGGER.warning("Discarding missing or damaged card file contents " + file);
+      if (!file.delete() && file.exists()) {
+        LOGGER.warning("Could not delete " + file);
+      }
+      index.remove(key);
+      storeIndex(index);
+      return null;
+    }
+    if (!file.setLastModified(System.currentTimeMillis())) {
+      LOGGER.fine("Could not mark " + file + " as used");
+    }
+    return contents;
+  }
+
+  /**
+   * Stores the contents of a card file, removing the least recently used contents
+   * if needed. Contents larger than the maximum size are not stored.
+   *
+   * @param fingerprint the fingerprint of the card file
+   * @param contents the contents of the card file
+   *
+   * @throws IOException on error writing the store
+   */
+  public synchronized void put(byte[] fingerprint, byte[] contents) throws IOException {
+    if (contents.length > maxSize) {
+      return;
+    }
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    String hash = Hex.bytesToHexString(digest(ByteBuffer.wrap(contents)));
+    File file = getContentFile(hash);
+    if (file.exists()) {
+      if (!file.setLastModified(System.currentTimeMillis())) {
+        LOGGER.fine("Could not mark " + file + " as used");
+      }
+    } else {
+      evict(maxSize - contents.length);
+      write(file, contents);
+    }
+    Properties index = getIndex();
+    String key = Hex.bytesToHexString(fingerprint);
+    if (!hash.equals(index.getProperty(key))) {
+      index.setProperty(key, hash);
+      storeIndex(index);
+    }
+  }
+
+  /**
+   * Returns the total size of the stored contents.
+   *
+   * @return the size in bytes
+   */
+  public synchronized long size() {
+    long size = 0;
+    for (File file: listContentFiles()) {
+      size += file.length();
+    }
+    return size;
+  }
+
+  /**
+   * Removes the least recently used contents, and the index entries that refer
+   * to them, until the total size is at most the given size.
+   *
+   * @param size the size in bytes
+   *
+   * @throws IOException on error writing the index
+   */
+  private void evict(long size) throws IOException {
+    List<File> files = listContentFiles();
+    long totalSize = 0;
+    for (File file: files) {
+      totalSize += file.length();
+    }
+    if (totalSize <= size) {
+      return;
+    }
+    File[] sortedFiles = files.toArray(new File[files.size()]);
+    final long[] lastModified = new long[sortedFiles.length];
+    for (int i = 0; i < sortedFiles.length; i++) {
+      lastModified[i] = sortedFiles[i].lastModified();
+    }
+    Integer[] order = new Integer[sortedFiles.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    /* NOTE: sort by the times read before sorting, they may change while sorting. */
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer i, Integer j) {
+        return lastModified[i] < lastModified[j] ? -1 : (lastModified[i] == lastModified[j] ? 0 : 1);
+      }
+    });
+    List<String> evictedHashes = new ArrayList<String>();
+    for (int i = 0; i < order.length && totalSize > size; i++) {
+      File file = sortedFiles[order[i]];
+      long length = file.length();
+      if (file.delete()) {
+        totalSize -= length;
+        String name = file.getName();
+        evictedHashes.add(name.substring(0, name.length() - CONTENT_FILE_SUFFIX.length()));
+      }
+    }
+    Properties index = getIndex();
+    boolean isChanged = false;
+    Iterator<Map.Entry<Object, Object>> entries = index.entrySet().iterator();
+    while (entries.hasNext()) {
+      if (evictedHashes.contains(entries.next().getValue())) {
+        entries.remove();
+        isChanged = true;
+      }
+    }
+    if (isChanged) {
+      storeIndex(index);
+    }
+  }
+
+  private List<File> listContentFiles() {
+    List<File> result = new ArrayList<File>();
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return result;
+    }
+    for (File file: files) {
+      if (file.getName().endsWith(CONTENT_FILE_SUFFIX)) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
+  private File getContentFile(String hash) {
+    return new File(directory, hash + CONTENT_FILE_SUFFIX);
+  }
+
+  private Properties getIndex() {
+    if (index == null) {
+      index = new Properties();
+      File file = new File(directory, INDEX_FILE_NAME);
+      if (file.exists()) {
+        InputStream in = null;
+        try {
+          in = new FileInputStream(file);
+          index.load(in);
+        } catch (IOException ioe) {
+          LOGGER.log(Level.WARNING, "Could not read card file store index " + file, ioe);
+        } finally {
+          close(in);
+        }
+      }
+    }
+    return index;
+  }
+
+  private void storeIndex(Properties index) throws IOException {
+    File file = new File(directory, INDEX_FILE_NAME);
+    File tmpFile = new File(directory, INDEX_FILE_NAME + TMP_FILE_SUFFIX);
+    FileOutputStream out = new FileOutputStream(tmpFile);
+    try {
+      index.store(out, "SCUBA card file store: fingerprint, SHA-256 of contents");
+      out.getFD().sync();
+    } finally {
+      close(out);
+    }
+    rename(tmpFile, file);
+  }
+
+  private static void write(File file, byte[] contents) throws IOException {
+    File tmpFile = new File(file.getPath() + TMP_FILE_SUFFIX);
+    FileOutputStream out = new FileOutputStream(tmpFile);
+    try {
+      out.write(contents);
+      out.getFD().sync();
+    } finally {
+      close(out);
+    }
+    rename(tmpFile, file);
+  }
+
+  private static void rename(File tmpFile, File file) throws IOException {
+    /* NOTE: renameTo does not replace an existing file on all platforms. */
+    if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+      throw new IOException("Could not write " + file);
+    }
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      /* NOTE: the mapping stays valid after the channel is closed. */
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer();
+    } finally {
+      close(randomAccessFile);
+    }
+  }
+
+  private static byte[] digest(ByteBuffer contents) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(contents);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException("SHA-256 not available", nsae);
+    }
+  }
+
+  private static void close(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException ioe) {
+      LOGGER.log(Level.FINE, "Exception closing stream", ioe);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+package net.sf.scuba.smartcards;
+
+/**
+ * Tells cards with the same ATR apart, for instance by a UID or a serial number,
+ * so that information about one card is not used for another card of the same type.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public interface CardIdentityProvider {
+
+  /**
+   * Returns an identifier of the card that the given service talks to.
+   * This should not change the selected file.
+   *
+   * @param service the card service
+   *
+   * @return an identifier, such as a UID or a serial number, or {@code null} if not known,
+   *         in which case information about the card is not cached
+   *
+   * @throws CardServiceException on error communicating with the card
+   */
+  byte[] getCardIdentifier(CardService service) throws CardServiceException;
+}
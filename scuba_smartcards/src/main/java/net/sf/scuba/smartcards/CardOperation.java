@@ -0,0 +1,49 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.smartcards;
+
+/**
+ * A card operation, consisting of one or more APDU exchanges, to be run by
+ * an {@link AsyncCardService}.
+ *
+ * @param <T> the type of the result
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public interface CardOperation<T> {
+
+  /**
+   * Runs the operation. No other operations submitted to the same
+   * {@code AsyncCardService} run at the same time.
+   *
+   * @param service the card service to use
+   *
+   * @return the result
+   *
+   * @throws CardServiceException on error
+   */
+  T run(CardService service) throws CardServiceException;
+}
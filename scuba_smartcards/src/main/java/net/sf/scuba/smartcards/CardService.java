@@ -22,10 +22,15 @@
 
 package net.sf.scuba.smartcards;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.logging.Level;
@@ -62,6 +67,11 @@ public abstract class CardService {
 
   protected int state;
 
+  private CardCapabilities cardCapabilities;
+  private CardCapabilitiesCache cardCapabilitiesCache;
+
+  private int sessionNumber;
+
   /**
    * Creates a new service.
    */
@@ -138,6 +148,16 @@ public abstract class CardService {
     return Collections.unmodifiableCollection(apduListeners);
   }
 
+  /**
+   * Whether there are any APDU listeners. Implementations can use this to
+   * avoid constructing events nobody listens to.
+   *
+   * @return whether there are listeners
+   */
+  protected boolean hasAPDUListeners() {
+    return apduListeners != null && !apduListeners.isEmpty();
+  }
+
   /**
    * Notifies listeners about APDU event.
    *
@@ -153,6 +173,23 @@ public abstract class CardService {
     }
   }
 
+  /**
+   * Notifies listeners about a number of APDU events, for instance those of a batch.
+   *
+   * @param events the APDU events, in the order in which the APDUs were exchanged
+   */
+  protected void notifyExchangedAPDUs(List<APDUEvent> events) {
+    if (apduListeners == null || apduListeners.isEmpty()) {
+      return;
+    }
+
+    for (APDUListener listener: apduListeners) {
+      for (APDUEvent event: events) {
+        listener.exchangedAPDU(event);
+      }
+    }
+  }
+
   /**
    * Opens a session with the card. Selects a reader. Connects to the card.
    * Notifies any interested apduListeners.
@@ -182,6 +219,106 @@ public abstract class CardService {
    */
   public abstract ResponseAPDU transmit(CommandAPDU commandAPDU) throws CardServiceException;
 
+  /**
+   * Sends an APDU to the card, reading the command from and writing the response to
+   * caller supplied buffers, which can be reused for subsequent commands.
+   * Notifies any interested apduListeners.
+   *
+   * The command APDU is read from the command buffer's position up to its limit,
+   * upon return the position is equal to the limit.
+   * The response APDU, including the status word, is written at the response
+   * buffer's position, which is advanced by the number of bytes written.
+   *
+   * This implementation goes through {@link #transmit(CommandAPDU)}.
+   * Services whose transport accepts buffers override it to avoid the
+   * intermediate objects.
+   *
+   * @param command the buffer containing the command APDU, for instance encoded with
+   *                {@link CommandAPDU#encode(int, int, int, int, byte[], int, int, int, ByteBuffer)}
+   * @param response the buffer to write the response APDU to
+   *
+   * @return the length of the response APDU
+   *
+   * @throws CardServiceException if the card operation failed
+   */
+  public int transmit(ByteBuffer command, ByteBuffer response) throws CardServiceException {
+    ResponseAPDU responseAPDU = transmit(new CommandAPDU(command));
+    byte[] responseBytes = responseAPDU.getBytes();
+    response.put(responseBytes);
+    return responseBytes.length;
+  }
+
+  /**
+   * Sends a batch of APDUs to the card, in order.
+   * Notifies any interested apduListeners.
+   *
+   * This method does not throw a CardServiceException if a ResponseAPDU
+   * has a status word indicating error.
+   *
+   * @param commandAPDUs the Command APDUs to send
+   *
+   * @return the Response APDUs from the card, one for each command
+   *
+   * @throws CardServiceException if the card operation failed
+   */
+  public List<ResponseAPDU> transmitBatch(List<CommandAPDU> commandAPDUs) throws CardServiceException {
+    return transmitBatch(commandAPDUs, null);
+  }
+
+  /**
+   * Sends a batch of APDUs to the card, in order, until the stop condition
+   * holds for a response. Notifies any interested apduListeners.
+   *
+   * This implementation calls {@link #transmit(CommandAPDU)} for each command.
+   * Services that can keep the transport for the duration of the batch
+   * override it.
+   *
+   * If a card operation fails, the exception is thrown and the responses to the
+   * commands before it are not returned.
+   *
+   * @param commandAPDUs the Command APDUs to send
+   * @param stopCondition decides whether to stop after a response, or {@code null} to send all commands
+   *
+   * @return the Response APDUs from the card, one for each command sent,
+   *         the last one being the response for which the stop condition held
+   *
+   * @throws CardServiceException if the card operation failed
+   */
+  public List<ResponseAPDU> transmitBatch(List<CommandAPDU> commandAPDUs, BatchStopCondition stopCondition) throws CardServiceException {
+    List<ResponseAPDU> responseAPDUs = new ArrayList<ResponseAPDU>(commandAPDUs.size());
+    int index = 0;
+    for (CommandAPDU commandAPDU: commandAPDUs) {
+      ResponseAPDU responseAPDU = transmit(commandAPDU);
+      responseAPDUs.add(responseAPDU);
+      if (stopCondition != null && stopCondition.shouldStop(index, commandAPDU, responseAPDU)) {
+        break;
+      }
+      index++;
+    }
+    return responseAPDUs;
+  }
+
+  /**
+   * Returns the number of sessions with a card started by this service. It changes
+   * each time the service is opened, so that users can tell that another card may
+   * have been presented. It stays 0 for services that do not call
+   * {@link #notifySessionStarted()}.
+   *
+   * @return the session number
+   */
+  public synchronized int getSessionNumber() {
+    return sessionNumber;
+  }
+
+  /**
+   * Marks the start of a session with a card. Subclasses should call this when
+   * {@link #open()} has connected to a card.
+   */
+  protected synchronized void notifySessionStarted() {
+    state = SESSION_STARTED_STATE;
+    sessionNumber++;
+  }
+
   /**
    * Gets the answer to reset.
    *
@@ -191,6 +328,75 @@ public abstract class CardService {
    */
   public abstract byte[] getATR() throws CardServiceException;
 
+  /**
+   * Returns the capabilities of the card, as indicated by its ATR, or as set
+   * using {@link #setCardCapabilities(CardCapabilities)} for a card with the same ATR.
+   * If a cache has been set, the capabilities are looked up there first.
+   *
+   * @return the capabilities of the card
+   *
+   * @throws CardServiceException on error getting the ATR
+   */
+  public synchronized CardCapabilities getCardCapabilities() throws CardServiceException {
+    byte[] atr = getATR();
+    if (atr == null) {
+      atr = new byte[0];
+    }
+    if (cardCapabilities != null && Arrays.equals(atr, cardCapabilities.getATR())) {
+      return cardCapabilities;
+    }
+    CardCapabilities capabilities = null;
+    if (cardCapabilitiesCache != null) {
+      capabilities = cardCapabilitiesCache.get(atr);
+    }
+    if (capabilities == null) {
+      capabilities = createCardCapabilities(atr);
+    }
+    cardCapabilities = capabilities;
+    return capabilities;
+  }
+
+  /**
+   * Sets the capabilities of the card, for instance after probing the card,
+   * and stores them in the cache, if one has been set.
+   *
+   * @param capabilities the capabilities of the card
+   */
+  public synchronized void setCardCapabilities(CardCapabilities capabilities) {
+    cardCapabilities = capabilities;
+    if (cardCapabilitiesCache != null) {
+      try {
+        cardCapabilitiesCache.put(capabilities);
+      } catch (IOException ioe) {
+        LOGGER.log(Level.WARNING, "Could not cache card capabilities", ioe);
+      }
+    }
+  }
+
+  /**
+   * Sets the cache used by {@link #getCardCapabilities()} and
+   * {@link #setCardCapabilities(CardCapabilities)}.
+   *
+   * @param cache the cache, or {@code null}
+   */
+  public synchronized void setCardCapabilitiesCache(CardCapabilitiesCache cache) {
+    this.cardCapabilitiesCache = cache;
+  }
+
+  /**
+   * Determines the capabilities of the card with the given ATR, if not cached.
+   * This implementation parses the historical bytes in the ATR.
+   *
+   * @param atr the answer to reset, as returned by {@link #getATR()}
+   *
+   * @return the capabilities of the card
+   *
+   * @throws CardServiceException on error
+   */
+  protected CardCapabilities createCardCapabilities(byte[] atr) throws CardServiceException {
+    return CardCapabilities.fromATR(atr);
+  }
+
   /**
    * Returns a boolean indicating whether extended length APDUs are supported.
    *
@@ -382,7 +382,138 @@ public final class CommandAPDU implements java.io.Serializable {
    */
   public CommandAPDU(int cla, int ins, int p1, int p2, byte[] data,
       int dataOffset, int dataLength, int ne) {
-    checkArrayBounds(data, dataOffset, dataLength);
+    this.apdu = new byte[getEncodedLength(data, dataOffset, dataLength, ne)];
+    this.ne = ne;
+    this.nc = dataLength;
+    if (dataLength > 0) {
+      this.dataOffset = isExtended(dataLength, ne) ? 7 : 5;
+    }
+    encode(cla, ins, p1, p2, data, dataOffset, dataLength, ne, ByteBuffer.wrap(apdu));
+  }
+
+  /**
+   * Returns the number of bytes of the encoding of a command APDU
+   * with the given body, without encoding it.
+   *
+   * @param data the byte array containing the data bytes of the command body
+   * @param dataOffset the offset in the byte array at which the data
+   *   bytes of the command body begin
+   * @param dataLength the number of the data bytes in the command body
+   * @param ne the maximum number of expected data bytes in a response APDU
+   *
+   * @return the length of the encoded APDU
+   *
+   * @throws IllegalArgumentException if dataOffset or dataLength are
+   *   negative or if dataOffset + dataLength are greater than data.length,
+   *   or if ne is negative or greater than 65536,
+   *   or if dataLength is greater than 65535
+   */
+  public static int getEncodedLength(byte[] data, int dataOffset, int dataLength, int ne) {
+    checkBody(data, dataOffset, dataLength, ne);
+    boolean isExtended = isExtended(dataLength, ne);
+    int length = 4;
+    if (dataLength > 0) {
+      length += (isExtended ? 3 : 1) + dataLength;
+    }
+    if (ne > 0) {
+      length += !isExtended ? 1 : (dataLength > 0 ? 2 : 3);
+    }
+    return length;
+  }
+
+  /**
+   * Encodes a command APDU directly into a buffer, without constructing
+   * a <code>CommandAPDU</code> instance. The encoding is identical to
+   * {@link #getBytes()} of the APDU constructed by
+   * {@link #CommandAPDU(int, int, int, int, byte[], int, int, int)}
+   * with the same arguments, i.e. cases 1 to 4, short or extended.
+   *
+   * <p>The APDU is written at the buffer's position, which is advanced
+   * by the number of bytes written. The buffer can be reused for
+   * subsequent commands, and can be a direct buffer.
+   *
+   * @param cla the class byte CLA
+   * @param ins the instruction byte INS
+   * @param p1 the parameter byte P1
+   * @param p2 the parameter byte P2
+   * @param data the byte array containing the data bytes of the command body
+   * @param dataOffset the offset in the byte array at which the data
+   *   bytes of the command body begin
+   * @param dataLength the number of the data bytes in the command body
+   * @param ne the maximum number of expected data bytes in a response APDU
+   * @param dest the buffer to write to
+   *
+   * @return the number of bytes written
+   *
+   * @throws IllegalArgumentException if dataOffset or dataLength are
+   *   negative or if dataOffset + dataLength are greater than data.length,
+   *   or if ne is negative or greater than 65536,
+   *   or if dataLength is greater than 65535
+   * @throws java.nio.BufferOverflowException if the buffer does not have
+   *   enough space remaining, in which case nothing is written
+   */
+  public static int encode(int cla, int ins, int p1, int p2, byte[] data,
+      int dataOffset, int dataLength, int ne, ByteBuffer dest) {
+    int length = getEncodedLength(data, dataOffset, dataLength, ne);
+    if (dest.remaining() < length) {
+      throw new java.nio.BufferOverflowException();
+    }
+    boolean isExtended = isExtended(dataLength, ne);
+    dest.put((byte)cla);
+    dest.put((byte)ins);
+    dest.put((byte)p1);
+    dest.put((byte)p2);
+    if (isExtended) {
+      dest.put((byte)0);
+    }
+    if (dataLength > 0) {
+      // Lc
+      if (isExtended) {
+        dest.put((byte)(dataLength >> 8));
+      }
+      dest.put((byte)dataLength);
+      dest.put(data, dataOffset, dataLength);
+    }
+    if (ne > 0) {
+      // Le, 256 is encoded as 0x00, 65536 as 0x00 0x00
+      if (isExtended) {
+        dest.put((byte)(ne >> 8));
+      }
+      dest.put((byte)ne);
+    }
+    return length;
+  }
+
+  /**
+   * Writes the bytes of this APDU into a buffer, at the buffer's position.
+   * The position is advanced by the number of bytes written.
+   *
+   * @param dest the buffer to write to
+   *
+   * @return the number of bytes written
+   *
+   * @throws java.nio.BufferOverflowException if the buffer does not have
+   *   enough space remaining, in which case nothing is written
+   */
+  public int encode(ByteBuffer dest) {
+    dest.put(apdu);
+    return apdu.length;
+  }
+
+  private static void checkBody(byte[] data, int dataOffset, int dataLength, int ne) {
+    if ((dataOffset < 0) || (dataLength < 0)) {
+      throw new IllegalArgumentException
+      ("Offset and length must not be negative");
+    }
+    if (data == null) {
+      if ((dataOffset != 0) && (dataLength != 0)) {
+        throw new IllegalArgumentException
+        ("offset and length must be 0 if array is null");
+      }
+    } else if (dataOffset > data.length - dataLength) {
+      throw new IllegalArgumentException
+      ("Offset plus length exceed array size");
+    }
     if (dataLength > 65535) {
       throw new IllegalArgumentException("dataLength is too large");
     }
@@ -392,93 +523,13 @@ public final class CommandAPDU implements java.io.Serializable {
     if (ne > 65536) {
       throw new IllegalArgumentException("ne is too large");
     }
-    this.ne = ne;
-    this.nc = dataLength;
-    if (dataLength == 0) {
-      if (ne == 0) {
-        // case 1
-        this.apdu = new byte[4];
-        setHeader(cla, ins, p1, p2);
-      } else {
-        // case 2s or 2e
-        if (ne <= 256) {
-          // case 2s
-          // 256 is encoded as 0x00
-          byte len = (ne != 256) ? (byte)ne : 0;
-          this.apdu = new byte[5];
-          setHeader(cla, ins, p1, p2);
-          this.apdu[4] = len;
-        } else {
-          // case 2e
-          byte l1, l2;
-          // 65536 is encoded as 0x00 0x00
-          if (ne == 65536) {
-            l1 = 0;
-            l2 = 0;
-          } else {
-            l1 = (byte)(ne >> 8);
-            l2 = (byte)ne;
-          }
-          this.apdu = new byte[7];
-          setHeader(cla, ins, p1, p2);
-          this.apdu[5] = l1;
-          this.apdu[6] = l2;
-        }
-      }
-    } else {
-      if (ne == 0) {
-        // case 3s or 3e
-        if (dataLength <= 255) {
-          // case 3s
-          apdu = new byte[4 + 1 + dataLength];
-          setHeader(cla, ins, p1, p2);
-          apdu[4] = (byte)dataLength;
-          this.dataOffset = 5;
-          System.arraycopy(data, dataOffset, apdu, 5, dataLength);
-        } else {
-          // case 3e
-          apdu = new byte[4 + 3 + dataLength];
-          setHeader(cla, ins, p1, p2);
-          apdu[4] = 0;
-          apdu[5] = (byte)(dataLength >> 8);
-          apdu[6] = (byte)dataLength;
-          this.dataOffset = 7;
-          System.arraycopy(data, dataOffset, apdu, 7, dataLength);
-        }
-      } else {
-        // case 4s or 4e
-        if ((dataLength <= 255) && (ne <= 256)) {
-          // case 4s
-          apdu = new byte[4 + 2 + dataLength];
-          setHeader(cla, ins, p1, p2);
-          apdu[4] = (byte)dataLength;
-          this.dataOffset = 5;
-          System.arraycopy(data, dataOffset, apdu, 5, dataLength);
-          apdu[apdu.length - 1] = (ne != 256) ? (byte)ne : 0;
-        } else {
-          // case 4e
-          apdu = new byte[4 + 5 + dataLength];
-          setHeader(cla, ins, p1, p2);
-          apdu[4] = 0;
-          apdu[5] = (byte)(dataLength >> 8);
-          apdu[6] = (byte)dataLength;
-          this.dataOffset = 7;
-          System.arraycopy(data, dataOffset, apdu, 7, dataLength);
-          if (ne != 65536) {
-            int leOfs = apdu.length - 2;
-            apdu[leOfs] = (byte)(ne >> 8);
-            apdu[leOfs + 1] = (byte)ne;
-          } // else le == 65536: no need to fill in, encoded as 0
-        }
-      }
-    }
   }
 
-  private void setHeader(int cla, int ins, int p1, int p2) {
-    apdu[0] = (byte)cla;
-    apdu[1] = (byte)ins;
-    apdu[2] = (byte)p1;
-    apdu[3] = (byte)p2;
+  /**
+   * Whether the lengths require extended encoding (cases 2e, 3e, 4e).
+   */
+  private static boolean isExtended(int nc, int ne) {
+    return nc > 255 || ne > 256;
   }
 
   /**
@@ -0,0 +1,180 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+package net.sf.scuba.smartcards;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory cache of the file information returned when selecting files,
+ * keyed by card identity and path, so that files can be selected without asking
+ * for the file information again. See
+ * {@link AbstractFileSystemStructured#setFileInfoCache(FileInfoCache, CardIdentityProvider, boolean)}.
+ *
+ * The cache holds a limited number of entries, evicting the least recently used
+ * entry when full, and entries expire a fixed time after they were added.
+ * A cache can be shared by several file systems.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class FileInfoCache {
+
+  /** The default maximum number of entries. */
+  public static final int DEFAULT_MAX_SIZE = 256;
+
+  /** The default time to live of entries, in minutes. */
+  public static final long DEFAULT_TIME_TO_LIVE_MINUTES = 30;
+
+  private final long timeToLiveNanos;
+  private final Map<Key, CachedFileInfo> entries;
+
+  /**
+   * Constructs a cache with the default size and time to live.
+   */
+  public FileInfoCache() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Constructs a cache.
+   *
+   * @param maxSize the maximum number of entries
+   * @param timeToLive the time after which an entry expires
+   * @param unit the unit of {@code timeToLive}
+   */
+  public FileInfoCache(int maxSize, long timeToLive, TimeUnit unit) {
+    if (maxSize < 1 || timeToLive < 0) {
+      throw new IllegalArgumentException("Size should be positive and time to live should not be negative");
+    }
+    this.timeToLiveNanos = unit.toNanos(timeToLive);
+    final int maxEntries = maxSize;
+    this.entries = new LinkedHashMap<Key, CachedFileInfo>(16, 0.75f, true) {
+      private static final long serialVersionUID = 4731950826447035014L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedFileInfo> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached file information of a file.
+   *
+   * @param cardIdentity the identity of the card
+   * @param path the file identifiers of the file and its DFs, starting below the MF
+   *
+   * @return the file information, or {@code null} if not cached or expired
+   */
+  public synchronized ISOFileInfo get(byte[] cardIdentity, short[] path) {
+    Key key = new Key(cardIdentity, path);
+    CachedFileInfo entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.time > timeToLiveNanos) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.fileInfo;
+  }
+
+  /**
+   * Adds the file information of a file.
+   *
+   * @param cardIdentity the identity of the card
+   * @param path the file identifiers of the file and its DFs, starting below the MF
+   * @param fileInfo the file information
+   */
+  public synchronized void put(byte[] cardIdentity, short[] path, ISOFileInfo fileInfo) {
+    entries.put(new Key(cardIdentity.clone(), path.clone()), new CachedFileInfo(fileInfo, System.nanoTime()));
+  }
+
+  /**
+   * Removes the file information of a file, for instance after it has changed.
+   *
+   * @param cardIdentity the identity of the card
+   * @param path the file identifiers of the file and its DFs, starting below the MF
+   */
+  public synchronized void remove(byte[] cardIdentity, short[] path) {
+    entries.remove(new Key(cardIdentity, path));
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the number of entries, including expired entries that have not been removed yet.
+   *
+   * @return the number of entries
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static class Key {
+
+    private final byte[] cardIdentity;
+    private final short[] path;
+    private final int hashCode;
+
+    public Key(byte[] cardIdentity, short[] path) {
+      this.cardIdentity = cardIdentity;
+      this.path = path;
+      this.hashCode = 31 * Arrays.hashCode(cardIdentity) + Arrays.hashCode(path);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key otherKey = (Key)other;
+      return Arrays.equals(cardIdentity, otherKey.cardIdentity) && Arrays.equals(path, otherKey.path);
+    }
+  }
+
+  private static class CachedFileInfo {
+
+    private final ISOFileInfo fileInfo;
+    private final long time;
+
+    public CachedFileInfo(ISOFileInfo fileInfo, long time) {
+      this.fileInfo = fileInfo;
+      this.time = time;
+    }
+  }
+}
@@ -47,7 +47,10 @@ public interface FileSystemStructured {
    * @return contents of currently selected file, contains at least 1 byte, at most length.
    * @throws CardServiceException on error (for instance: end of file)
    */
-  /* TODO: consider a variant of this with an output buffer and index. */
+  /*
+   * NOTE: a variant with an output buffer and index is in AbstractFileSystemStructured,
+   * adding it here would break existing implementations of this interface.
+   */
   byte[] readBinary(int offset, int length) throws CardServiceException;
 
   /**
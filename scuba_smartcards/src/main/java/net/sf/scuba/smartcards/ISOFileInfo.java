@@ -22,12 +22,15 @@
 
 package net.sf.scuba.smartcards;
 
-import java.math.BigInteger;
+import java.util.Arrays;
 
 import net.sf.scuba.util.Hex;
 
 /**
- * TODO: Work in progess, very messy at the moment.
+ * The file information returned by a SELECT, as described in ISO7816-4.
+ *
+ * The constructor only checks the structure of the data objects and records
+ * where their values are. The values are decoded when they are asked for.
  *
  * @author Wojciech Mostowski (woj@cs.ru.nl)
  */
@@ -60,174 +63,150 @@ public class ISOFileInfo extends FileInfo {
   public static final byte AB = (byte)0xAB;
   public static final byte AC = (byte)0xAC;
 
-  byte mainTag = -1;
-  int fileLength = -1;
-  int fileLengthFCI = -1;
-  byte descriptorByte = -1;
-  byte dataCodingByte = -1;
-  short maxRecordSize = -1;
-  short maxRecordsCount = -1;
-  short fid = -1;
-  byte[] dfName = null;
-  byte[] propInfo = null;
-  byte[] secAttrProp = null;
-  byte[] secAttrExp = null;
-  byte[] secAttrCompact = null;
-  short fciExt = -1;
-  short envTempEF = -1;
-  byte shortEF = -1;
-  byte lcsByte = -1;
-  byte channelSecurity = -1;
-  byte[] a0 = null;
-  byte[] a1 = null;
-  byte[] a2 = null;
-  byte[] a5 = null;
-  byte[] ab = null;
-  byte[] ac = null;
+  /* The data objects, in the order of their slots. */
+  private static final byte[] TAGS = {
+    DATA_BYTES1, DATA_BYTES2, FILE_DESCRIPTOR, FILE_IDENTIFIER, DF_NAME, PROP_INFO,
+    SECURITY_ATTR_PROP, FCI_EXT, SHORT_EF, LCS_BYTE, SECURITY_ATTR_EXP, SECURITY_ATTR_COMPACT,
+    ENV_TEMP_EF, CHANNEL_SECURITY, A0, A1, A2, A5, AB, AC
+  };
+
+  private byte mainTag = -1;
+
+  /* The encoded file information, which is not copied, and the end of the main data object in it. */
+  private byte[] data;
+  private int start;
+  private int end;
+
+  /* The offset and length of the value of each data object, by slot, or null if there are none. */
+  private int[] positions;
 
+  /**
+   * Constructs the file information from the data of a SELECT response.
+   *
+   * @param fileInfo the encoded FCI, FCP, or FMD template, or an empty array
+   *
+   * @throws CardServiceException if the data is malformed
+   */
   public ISOFileInfo(byte[] fileInfo) throws CardServiceException {
-    if(fileInfo.length == 0) {
+    this(fileInfo.clone(), 0, fileInfo.length);
+  }
+
+  /**
+   * Constructs the file information from part of an array, without copying it.
+   * The caller should not change the array afterwards.
+   *
+   * @param buffer the array
+   * @param offset the offset of the encoded FCI, FCP, or FMD template
+   * @param length the length of the data, or 0 if there is no file information
+   *
+   * @throws CardServiceException if the data is malformed
+   */
+  /* package visible */ ISOFileInfo(byte[] buffer, int offset, int length) throws CardServiceException {
+    if(length == 0) {
       return;
     }
-    if(fileInfo[0] != FCI_BYTE && fileInfo[0] != FCP_BYTE && fileInfo[0] != FMD_BYTE) {
+    byte tag = buffer[offset];
+    if(tag != FCI_BYTE && tag != FCP_BYTE && tag != FMD_BYTE) {
       throw new CardServiceException("Malformed FCI data");
-    }else{
-      this.mainTag = fileInfo[0];
     }
-    byte[] tmp = new byte[fileInfo[1]];
-    System.arraycopy(fileInfo, 2, tmp, 0, fileInfo[1]);
-    fileInfo = tmp;
-    int offset = 0;
-    BigInteger integer = null;
-    int off = 0;
-    try {
-      while(offset < fileInfo.length) {
-        byte tag = fileInfo[offset++];
-        byte len = fileInfo[offset++];
-        byte[] contents = new byte[len];
-        System.arraycopy(fileInfo, offset, contents, 0, len);
-        offset += len;
-        switch(tag) {
-          case DATA_BYTES1:
-            integer = new BigInteger(contents);
-            integer = integer.abs();
-            this.fileLength = integer.intValue();
-            break;
-          case DATA_BYTES2:
-            checkLen(len, 2);
-            integer = new BigInteger(contents);
-            this.fileLengthFCI = integer.intValue();
-            break;
-          case FILE_DESCRIPTOR:
-            checkLen(len, 1, 6);
-            off = 0;
-            this.descriptorByte = contents[off++];
-            if(off == contents.length) {
-              break;
-            }
-            this.dataCodingByte = contents[off++];
-            if(off == contents.length) {
-              break;
-            }
-            if(contents.length == 3) {
-              this.maxRecordSize = contents[off++];
-            }else{
-              integer = new BigInteger(new byte[]{contents[off++], contents[off++]});
-              this.maxRecordSize = integer.shortValue();
-            }
-            if(off == contents.length) {
-              break;
-            }
-            if(contents.length == 5) {
-              this.maxRecordsCount = contents[off++];
-            }else{
-              integer = new BigInteger(new byte[]{contents[off++], contents[off++]});
-              this.maxRecordsCount = integer.shortValue();
-            }
-            break;
-          case FILE_IDENTIFIER:
-            checkLen(len, 2);
-            integer = new BigInteger(contents);
-            this.fid = integer.shortValue();
-            break;
-          case DF_NAME:
-            checkLen(len, 0, 16);
-            this.dfName = new byte[contents.length];
-            System.arraycopy(contents, 0, this.dfName, 0, contents.length);
-            break;
-          case PROP_INFO:
-            this.propInfo = new byte[contents.length];
-            System.arraycopy(contents, 0, this.propInfo, 0, contents.length);
-            break;
-          case SECURITY_ATTR_PROP:
-            this.secAttrProp = new byte[contents.length];
-            System.arraycopy(contents, 0, this.secAttrProp, 0, contents.length);
-            break;
-          case FCI_EXT:
-            checkLen(len, 2);
-            integer = new BigInteger(contents);
-            this.fciExt = integer.shortValue();
-            break;
-          case SHORT_EF:
-            checkLen(len, 0, 1);
-            if(len == 0) {
-              this.shortEF = 0;
-            }else{
-              this.shortEF = contents[0];
-            }
-            break;
-          case LCS_BYTE:
-            checkLen(len, 1);
-            this.lcsByte = contents[0];
-            break;
-          case SECURITY_ATTR_EXP:
-            this.secAttrExp = new byte[contents.length];
-            System.arraycopy(contents, 0, this.secAttrExp, 0, contents.length);
-            break;
-          case SECURITY_ATTR_COMPACT:
-            this.secAttrCompact = new byte[contents.length];
-            System.arraycopy(contents, 0, this.secAttrCompact, 0, contents.length);
-            break;
-          case ENV_TEMP_EF:
-            checkLen(len, 2);
-            integer = new BigInteger(contents);
-            this.envTempEF = integer.shortValue();
-            break;
-          case CHANNEL_SECURITY:
-            checkLen(len, 1);
-            this.channelSecurity = contents[0];
-            break;
-          case A0:
-            this.a0 = new byte[contents.length];
-            System.arraycopy(contents, 0, this.a0, 0, contents.length);
-            break;
-          case A1:
-            this.a1 = new byte[contents.length];
-            System.arraycopy(contents, 0, this.a1, 0, contents.length);
-            break;
-          case A2:
-            this.a2 = new byte[contents.length];
-            System.arraycopy(contents, 0, this.a2, 0, contents.length);
-            break;
-          case A5:
-            this.a5 = new byte[contents.length];
-            System.arraycopy(contents, 0, this.a5, 0, contents.length);
-            break;
-          case AB:
-            this.ab = new byte[contents.length];
-            System.arraycopy(contents, 0, this.ab, 0, contents.length);
-            break;
-          case AC:
-            this.ac = new byte[contents.length];
-            System.arraycopy(contents, 0, this.ac, 0, contents.length);
-            break;
-          default:
+    if(length < 2) {
+      throw new CardServiceException("Malformed FCI.");
+    }
+    this.mainTag = tag;
+    this.data = buffer;
+    this.start = offset;
+    int limit = offset + length;
+    int index = offset + 1;
+    int len = readLength(buffer, index, limit);
+    index += getLengthLength(buffer[index]);
+    if (len > limit - index) {
+      throw new CardServiceException("Malformed FCI.");
+    }
+    this.end = index + len;
+    this.positions = new int[2 * TAGS.length];
+    Arrays.fill(positions, -1);
+    while(index < end) {
+      tag = buffer[index++];
+      if (index >= end) {
+        throw new CardServiceException("Malformed FCI.");
+      }
+      len = readLength(buffer, index, end);
+      index += getLengthLength(buffer[index]);
+      if (len > end - index) {
+        throw new CardServiceException("Malformed FCI.");
+      }
+      int slot = getSlot(tag);
+      switch(tag) {
+        case DATA_BYTES2:
+        case FILE_IDENTIFIER:
+        case FCI_EXT:
+        case ENV_TEMP_EF:
+          checkLen(len, 2);
+          break;
+        case FILE_DESCRIPTOR:
+          checkLen(len, 1, 6);
+          break;
+        case DF_NAME:
+          checkLen(len, 0, 16);
+          break;
+        case SHORT_EF:
+          checkLen(len, 0, 1);
+          break;
+        case LCS_BYTE:
+        case CHANNEL_SECURITY:
+          checkLen(len, 1);
+          break;
+        default:
+          if (slot < 0) {
             throw new CardServiceException("Malformed FCI: unrecognized tag.");
-        }
+          }
+          break;
       }
-    } catch(ArrayIndexOutOfBoundsException aioobe) {
+      positions[2 * slot] = index;
+      positions[2 * slot + 1] = len;
+      index += len;
+    }
+  }
+
+  /**
+   * Reads a BER encoded length.
+   *
+   * @param buffer the array
+   * @param index the offset of the length
+   * @param limit the end of the data
+   *
+   * @return the length
+   *
+   * @throws CardServiceException if the length is malformed or does not fit before {@code limit}
+   */
+  private static int readLength(byte[] buffer, int index, int limit) throws CardServiceException {
+    int b = buffer[index] & 0xFF;
+    if ((b & 0x80) == 0) {
+      return b;
+    }
+    int count = b & 0x7F;
+    if (count == 0 || count > 3 || index + count >= limit) {
+      /* Indefinite, or too long for a response APDU. */
       throw new CardServiceException("Malformed FCI.");
     }
+    int length = 0;
+    for (int i = 1; i <= count; i++) {
+      length = (length << 8) | (buffer[index + i] & 0xFF);
+    }
+    return length;
+  }
+
+  private static int getLengthLength(byte b) {
+    return (b & 0x80) == 0 ? 1 : 1 + (b & 0x7F);
+  }
+
+  private static int getSlot(byte tag) {
+    for (int i = 0; i < TAGS.length; i++) {
+      if (TAGS[i] == tag) {
+        return i;
+      }
+    }
+    return -1;
   }
 
   private static void checkLen(int len, int value) throws CardServiceException {
@@ -242,187 +221,154 @@ public class ISOFileInfo extends FileInfo {
     }
   }
 
+  /**
+   * Returns the encoded file information, as received.
+   *
+   * @return the encoded FCI, FCP, or FMD template, or an empty array
+   */
   public byte[] getFormatted() {
-    byte[] result = new byte[0];
     if (mainTag == -1) {
-      return result;
-    }
-    byte[] piece = null;
-    if (fileLength != -1) {
-      piece = getArray(DATA_BYTES1, Hex.hexStringToBytes(Hex.shortToHexString((short)fileLength)));
-      result = catArray(result, piece);
-    }
-    if (fileLengthFCI != -1) {
-      piece = getArray(DATA_BYTES2, Hex.hexStringToBytes(Hex.shortToHexString((short)fileLengthFCI)));
-      result = catArray(result, piece);
-
-    }
-    if (descriptorByte != -1) {
-      byte[] ar1 = new byte[] {descriptorByte};
-      byte[] ar2 = new byte[0];
-      if (dataCodingByte != -1) {
-        ar2 = new byte[] {dataCodingByte};
-      }
-      byte[] ar3 = new byte[0];
-      if (maxRecordSize != -1) {
-        String x = null;
-        if (maxRecordSize <= 256) {
-          if (maxRecordsCount == -1 ) {
-            x = Hex.byteToHexString((byte)maxRecordSize);
-          } else {
-            x = Hex.shortToHexString(maxRecordSize);
-          }
-        } else {
-          x = Hex.shortToHexString(maxRecordSize);
-        }
-        ar3 = Hex.hexStringToBytes(x);
-      }
-      byte[] ar4 = new byte[0];
-      if (maxRecordsCount != -1) {
-        String x = null;
-        if (maxRecordsCount <= 256) {
-          x = Hex.byteToHexString((byte)maxRecordsCount);
-        } else {
-          x = Hex.shortToHexString(maxRecordsCount);
-        }
-        ar4 = Hex.hexStringToBytes(x);
-      }
-      piece = getArray(FILE_DESCRIPTOR, catArray(catArray(catArray(ar1, ar2), ar3), ar4));
-      result = catArray(result, piece);
-    }
-    if (fid != -1) {
-      piece = getArray(FILE_IDENTIFIER, Hex.hexStringToBytes(Hex.shortToHexString(fid)));
-      result = catArray(result, piece);
-    }
-    if (dfName != null) {
-      piece = getArray(DF_NAME, dfName);
-      result = catArray(result, piece);
-    }
-    if (propInfo != null) {
-      piece = getArray(PROP_INFO, propInfo);
-      result = catArray(result, piece);
-    }
-    if (secAttrProp != null) {
-      piece = getArray(SECURITY_ATTR_PROP, secAttrProp);
-      result = catArray(result, piece);
-    }
-    if (fciExt != -1) {
-      piece = getArray(FCI_EXT, Hex.hexStringToBytes(Hex.shortToHexString(fciExt)));
-      result = catArray(result, piece);
-    }
-    if (shortEF != -1) {
-      piece = getArray(SHORT_EF, (shortEF ==0) ? new byte[0] : new byte[]{shortEF});
-      result = catArray(result, piece);
-    }
-    if (lcsByte != -1) {
-      piece = getArray(LCS_BYTE, new byte[]{lcsByte});
-      result = catArray(result, piece);
+      return new byte[0];
     }
-    if (secAttrExp != null) {
-      piece = getArray(SECURITY_ATTR_EXP, secAttrExp);
-      result = catArray(result, piece);
-    }
-    if (secAttrCompact != null) {
-      piece = getArray(SECURITY_ATTR_COMPACT, secAttrCompact);
-      result = catArray(result, piece);
-    }
-    if (envTempEF != -1) {
-      piece = getArray(ENV_TEMP_EF, Hex.hexStringToBytes(Hex.shortToHexString(envTempEF)));
-      result = catArray(result, piece);
-    }
-    if (channelSecurity != -1) {
-      piece = getArray(CHANNEL_SECURITY, new byte[]{channelSecurity});
-      result = catArray(result, piece);
-    }
-    if (a0 != null) {
-      piece = getArray(A0, a0);
-      result = catArray(result, piece);
-    }
-    if (a1 != null) {
-      piece = getArray(A1, a1);
-      result = catArray(result, piece);
-    }
-    if (a2 != null) {
-      piece = getArray(A2, a2);
-      result = catArray(result, piece);
-    }
-    if (a5 != null) {
-      piece = getArray(A5, a5);
-      result = catArray(result, piece);
-    }
-    if (ab != null) {
-      piece = getArray(AB, ab);
-      result = catArray(result, piece);
-    }
-    if (ac != null) {
-      piece = getArray(AC, ac);
-      result = catArray(result, piece);
-    }
-    return getArray(mainTag, result);
-  }
-
-  private static byte[] getArray(byte tag, byte[] contents) {
-    byte[] result = new byte[contents.length + 2];
-    result[0] = tag;
-    result[1] = (byte)contents.length;
-    System.arraycopy(contents, 0, result, 2, contents.length);
-    return result;
-  }
-
-  private static byte[] catArray(byte[] a1, byte[] a2) {
-    byte[] result = new byte[a1.length + a2.length];
-    System.arraycopy(a1, 0, result, 0, a1.length);
-    System.arraycopy(a2, 0, result, a1.length, a2.length);
-    return result;
+    return Arrays.copyOfRange(data, start, end);
   }
 
   @Override
   public String toString() {
     return
-        "Length: " + fileLength + "\n" +
-        "Length FCI: " + fileLengthFCI + "\n" +
-        "Desc byte: " + descriptorByte + "\n" +
-        "Data byte: " + dataCodingByte + "\n" +
-        "Record size: " + maxRecordSize + "\n" +
-        "Record count: " + maxRecordsCount + "\n" +
-        "FID: " + Hex.shortToHexString(fid) + "\n" +
-        "DF name: " + Hex.bytesToHexString(dfName) + "\n" +
-        "propInfo: " + Hex.bytesToHexString(propInfo) + "\n" +
-        "secAttrProp: " + Hex.bytesToHexString(secAttrProp) + "\n" +
-        "secAttrExp: " + Hex.bytesToHexString(secAttrExp) + "\n" +
-        "secAttrComp: " + Hex.bytesToHexString(secAttrCompact) + "\n" +
-        "FCI ext: " + Hex.shortToHexString(fciExt) + "\n" +
-        "EF env temp: " + Hex.shortToHexString(envTempEF) + "\n" +
-        "Short EF: " + Hex.byteToHexString(shortEF) + "\n" +
-        "LCS byte: " + Hex.byteToHexString(lcsByte) + "\n" +
-        "Channel sec: " + Hex.byteToHexString(channelSecurity) + "\n" +
-        "a0: " + Hex.bytesToHexString(a0) + "\n" +
-        "a1: " + Hex.bytesToHexString(a1) + "\n" +
-        "a2: " + Hex.bytesToHexString(a2) + "\n" +
-        "a5: " + Hex.bytesToHexString(a5) + "\n" +
-        "ab: " + Hex.bytesToHexString(ab) + "\n" +
-        "ac: " + Hex.bytesToHexString(ac) + "\n";
+        "Length: " + getFileLength() + "\n" +
+        "Length FCI: " + getUnsigned(DATA_BYTES2) + "\n" +
+        "Desc byte: " + getDescriptorByte(0) + "\n" +
+        "Data byte: " + getDescriptorByte(1) + "\n" +
+        "Record size: " + getMaxRecordSize() + "\n" +
+        "Record count: " + getMaxRecordsCount() + "\n" +
+        "FID: " + Hex.shortToHexString(getFID()) + "\n" +
+        "DF name: " + Hex.bytesToHexString(getValue(DF_NAME)) + "\n" +
+        "propInfo: " + Hex.bytesToHexString(getValue(PROP_INFO)) + "\n" +
+        "secAttrProp: " + Hex.bytesToHexString(getValue(SECURITY_ATTR_PROP)) + "\n" +
+        "secAttrExp: " + Hex.bytesToHexString(getValue(SECURITY_ATTR_EXP)) + "\n" +
+        "secAttrComp: " + Hex.bytesToHexString(getValue(SECURITY_ATTR_COMPACT)) + "\n" +
+        "FCI ext: " + Hex.shortToHexString((short)getUnsigned(FCI_EXT)) + "\n" +
+        "EF env temp: " + Hex.shortToHexString((short)getUnsigned(ENV_TEMP_EF)) + "\n" +
+        "Short EF: " + Hex.byteToHexString(getShortEF()) + "\n" +
+        "LCS byte: " + Hex.byteToHexString((byte)getUnsigned(LCS_BYTE)) + "\n" +
+        "Channel sec: " + Hex.byteToHexString((byte)getUnsigned(CHANNEL_SECURITY)) + "\n" +
+        "a0: " + Hex.bytesToHexString(getValue(A0)) + "\n" +
+        "a1: " + Hex.bytesToHexString(getValue(A1)) + "\n" +
+        "a2: " + Hex.bytesToHexString(getValue(A2)) + "\n" +
+        "a5: " + Hex.bytesToHexString(getValue(A5)) + "\n" +
+        "ab: " + Hex.bytesToHexString(getValue(AB)) + "\n" +
+        "ac: " + Hex.bytesToHexString(getValue(AC)) + "\n";
   }
 
   // NOTE: added by MO to satisfy FileInfo interface.
   /**
-   * Returns the file length of the file.
+   * Returns the file identifier of the file.
    *
-   * @return file length
+   * @return file identifier, or -1 if not known
    */
   @Override
   public short getFID() {
-    return fid;
+    return (short)getUnsigned(FILE_IDENTIFIER);
   }
 
   // NOTE: added by MO to satisfy FileInfo interface.
   /**
    * Returns the file length of the file.
    *
-   * @return file length
+   * @return file length, or -1 if not known
    */
   @Override
   public int getFileLength() {
-    return fileLength;
+    return getUnsigned(DATA_BYTES1);
+  }
+
+  /**
+   * Returns the short EF identifier (SFI) of the file, taken from the
+   * {@code SHORT_EF} data object, which holds the SFI in bits 8 to 4.
+   *
+   * @return the SFI, between 1 and 30, or -1 if the file information does not give one
+   */
+  public int getShortFileIdentifier() {
+    int sfi = (getShortEF() & 0xFF) >> 3;
+    return (sfi >= 1 && sfi <= 30) ? sfi : -1;
+  }
+
+  /**
+   * Returns the value of the {@code SHORT_EF} data object: -1 if absent,
+   * 0 if empty, otherwise its single byte.
+   */
+  private byte getShortEF() {
+    int slot = getSlot(SHORT_EF);
+    if (positions == null || positions[2 * slot] < 0) {
+      return -1;
+    }
+    return positions[2 * slot + 1] == 0 ? 0 : data[positions[2 * slot]];
+  }
+
+  private byte getDescriptorByte(int index) {
+    int slot = getSlot(FILE_DESCRIPTOR);
+    if (positions == null || positions[2 * slot + 1] <= index) {
+      return -1;
+    }
+    return data[positions[2 * slot] + index];
+  }
+
+  /* A single byte if the descriptor has 3 bytes, otherwise two. */
+  private short getMaxRecordSize() {
+    int slot = getSlot(FILE_DESCRIPTOR);
+    if (positions == null || positions[2 * slot + 1] < 3) {
+      return -1;
+    }
+    return (short)decode(positions[2 * slot] + 2, positions[2 * slot + 1] == 3 ? 1 : 2);
+  }
+
+  /* A single byte if the descriptor has 5 bytes, otherwise two. */
+  private short getMaxRecordsCount() {
+    int slot = getSlot(FILE_DESCRIPTOR);
+    if (positions == null || positions[2 * slot + 1] < 5) {
+      return -1;
+    }
+    return (short)decode(positions[2 * slot] + 4, positions[2 * slot + 1] == 5 ? 1 : 2);
+  }
+
+  /**
+   * Decodes the value of a data object as an unsigned big-endian integer,
+   * keeping the least significant 32 bits.
+   *
+   * @param tag the tag of the data object
+   *
+   * @return the value, or -1 if the data object is absent
+   */
+  private int getUnsigned(byte tag) {
+    int slot = getSlot(tag);
+    if (positions == null || positions[2 * slot] < 0) {
+      return -1;
+    }
+    return decode(positions[2 * slot], positions[2 * slot + 1]);
+  }
+
+  private int decode(int offset, int length) {
+    int result = 0;
+    for (int i = 0; i < length; i++) {
+      result = (result << 8) | (data[offset + i] & 0xFF);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a copy of the value of a data object.
+   *
+   * @param tag the tag of the data object
+   *
+   * @return the value, or null if the data object is absent
+   */
+  private byte[] getValue(byte tag) {
+    int slot = getSlot(tag);
+    if (positions == null || positions[2 * slot] < 0) {
+      return null;
+    }
+    int offset = positions[2 * slot];
+    return Arrays.copyOfRange(data, offset, offset + positions[2 * slot + 1]);
   }
 }
@@ -25,6 +25,7 @@
 
 package net.sf.scuba.smartcards;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import javax.smartcardio.CardChannel;
@@ -70,6 +71,55 @@ public final class ResponseAPDU implements java.io.Serializable {
     this.apdu = apdu;
   }
 
+  /**
+   * Constructs a ResponseAPDU from a region of a byte array containing the
+   * complete APDU contents (conditional body and trailer). The APDU starts
+   * at the index <code>apduOffset</code> in the byte array and is
+   * <code>apduLength</code> bytes long.
+   *
+   * <p>Note that the apdu bytes are copied to protect against
+   * subsequent modification.
+   *
+   * @param apdu the array containing the complete response APDU
+   * @param apduOffset the offset in the byte array at which the apdu
+   *   data begins
+   * @param apduLength the length of the APDU
+   *
+   * @throws NullPointerException if apdu is null
+   * @throws IllegalArgumentException if apduOffset or apduLength are
+   *   negative or if apduOffset + apduLength are greater than apdu.length,
+   *   or if apduLength is less than 2
+   */
+  public ResponseAPDU(byte[] apdu, int apduOffset, int apduLength) {
+    if (apduOffset < 0 || apduLength < 0 || apduOffset > apdu.length - apduLength) {
+      throw new IllegalArgumentException("Illegal region (offset = " + apduOffset + ", length = " + apduLength + ")");
+    }
+    this.apdu = Arrays.copyOfRange(apdu, apduOffset, apduOffset + apduLength);
+    check(this.apdu);
+  }
+
+  /**
+   * Constructs a ResponseAPDU from the ByteBuffer containing the complete
+   * APDU contents (conditional body and trailer).
+   * The buffer's <code>position</code> must be set to the start of the APDU,
+   * its <code>limit</code> to the end of the APDU. Upon return, the buffer's
+   * <code>position</code> is equal to its limit; its limit remains unchanged.
+   *
+   * <p>Note that the data in the ByteBuffer is copied to protect against
+   * subsequent modification.
+   *
+   * @param apdu the ByteBuffer containing the complete APDU
+   *
+   * @throws NullPointerException if apdu is null
+   * @throws IllegalArgumentException if the buffer contains less than 2 bytes
+   */
+  public ResponseAPDU(ByteBuffer apdu) {
+    byte[] bytes = new byte[apdu.remaining()];
+    apdu.get(bytes);
+    check(bytes);
+    this.apdu = bytes;
+  }
+
   private static void check(byte[] apdu) {
     if (apdu.length < 2) {
       throw new IllegalArgumentException("apdu must be at least 2 bytes long");
@@ -101,6 +151,42 @@ public final class ResponseAPDU implements java.io.Serializable {
     return data;
   }
 
+  /**
+   * Returns a read-only view of the data bytes in the response body,
+   * without copying them.
+   *
+   * @return a read-only buffer with position 0 and limit equal to {@link #getNr()}
+   */
+  public ByteBuffer dataBuffer() {
+    return ByteBuffer.wrap(apdu, 0, apdu.length - 2).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Copies the data bytes in the response body into a caller supplied array.
+   *
+   * @param dest the destination array
+   * @param destOffset the offset in the destination array
+   *
+   * @return the number of bytes copied, which is {@link #getNr()}
+   *
+   * @throws IndexOutOfBoundsException if the data does not fit in the destination array
+   */
+  public int copyDataTo(byte[] dest, int destOffset) {
+    int nr = apdu.length - 2;
+    System.arraycopy(apdu, 0, dest, destOffset, nr);
+    return nr;
+  }
+
+  /**
+   * Returns the bytes in this APDU, without copying them.
+   * Callers in this package should not change them.
+   *
+   * @return the bytes in this APDU, the data bytes followed by SW1 and SW2
+   */
+  /* package visible */ byte[] getBuffer() {
+    return apdu;
+  }
+
   /**
    * Returns the value of the status byte SW1 as a value between 0 and 255.
    *
@@ -0,0 +1,175 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.smartcards;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a response APDU in a buffer, such as the response
+ * buffer passed to {@link CardService#transmit(ByteBuffer, ByteBuffer)}.
+ *
+ * Contrary to {@link ResponseAPDU}, the bytes are not copied. The view reflects
+ * the contents of the underlying buffer, so it should not be used after that
+ * buffer is reused for the next response. Use {@link #toResponseAPDU()} to
+ * get an immutable copy. None of the accessors allocate, except for
+ * {@link #dataBuffer()}, which returns a slice, and {@link #copyDataTo(byte[], int)}
+ * for views of buffers without an accessible array, such as direct buffers,
+ * which duplicates the buffer.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public final class ResponseAPDUView {
+
+  /* Read-only, position 0, limit equal to the length of the APDU. */
+  private final ByteBuffer apdu;
+
+  /* The array backing the APDU, and the offset of the APDU in it, or null if not accessible. */
+  private final byte[] array;
+  private final int arrayOffset;
+
+  /**
+   * Constructs a view of the bytes between the buffer's position and limit.
+   * The position and limit of the buffer are not changed.
+   *
+   * @param apdu the buffer containing the complete response APDU
+   *
+   * @throws IllegalArgumentException if the buffer contains less than 2 bytes
+   */
+  public ResponseAPDUView(ByteBuffer apdu) {
+    if (apdu.remaining() < 2) {
+      throw new IllegalArgumentException("apdu must be at least 2 bytes long");
+    }
+    this.apdu = apdu.slice().asReadOnlyBuffer();
+    if (apdu.hasArray()) {
+      this.array = apdu.array();
+      this.arrayOffset = apdu.arrayOffset() + apdu.position();
+    } else {
+      this.array = null;
+      this.arrayOffset = 0;
+    }
+  }
+
+  /**
+   * Constructs a view of a region of an array.
+   *
+   * @param apdu the array containing the complete response APDU
+   * @param apduOffset the offset of the response APDU in the array
+   * @param apduLength the length of the response APDU
+   *
+   * @throws IllegalArgumentException if apduLength is less than 2
+   * @throws IndexOutOfBoundsException if the region is not within the array
+   */
+  public ResponseAPDUView(byte[] apdu, int apduOffset, int apduLength) {
+    this(ByteBuffer.wrap(apdu, apduOffset, apduLength));
+  }
+
+  /**
+   * Returns the number of data bytes in the response body (Nr) or 0 if this
+   * APDU has no body.
+   *
+   * @return the number of data bytes in the response body
+   */
+  public int getNr() {
+    return apdu.limit() - 2;
+  }
+
+  /**
+   * Returns the value of the status byte SW1 as a value between 0 and 255.
+   *
+   * @return the value of the status byte SW1
+   */
+  public int getSW1() {
+    return apdu.get(apdu.limit() - 2) & 0xFF;
+  }
+
+  /**
+   * Returns the value of the status byte SW2 as a value between 0 and 255.
+   *
+   * @return the value of the status byte SW2
+   */
+  public int getSW2() {
+    return apdu.get(apdu.limit() - 1) & 0xFF;
+  }
+
+  /**
+   * Returns the value of the status bytes SW1 and SW2 as a single status word SW.
+   *
+   * @return the value of the status word SW
+   */
+  public int getSW() {
+    return (getSW1() << 8) | getSW2();
+  }
+
+  /**
+   * Returns a read-only view of the data bytes in the response body.
+   *
+   * @return a read-only buffer with position 0 and limit equal to {@link #getNr()}
+   */
+  public ByteBuffer dataBuffer() {
+    ByteBuffer data = apdu.duplicate();
+    /* NOTE: casting to Buffer, as ByteBuffer overrides these methods in later JDKs only. */
+    ((Buffer)data).limit(getNr());
+    return data.slice();
+  }
+
+  /**
+   * Copies the data bytes in the response body into a caller supplied array.
+   *
+   * @param dest the destination array
+   * @param destOffset the offset in the destination array
+   *
+   * @return the number of bytes copied, which is {@link #getNr()}
+   *
+   * @throws IndexOutOfBoundsException if the data does not fit in the destination array
+   */
+  public int copyDataTo(byte[] dest, int destOffset) {
+    int nr = getNr();
+    if (destOffset < 0 || destOffset > dest.length - nr) {
+      throw new IndexOutOfBoundsException("Data (" + nr + " bytes) does not fit at offset " + destOffset);
+    }
+    if (array != null) {
+      System.arraycopy(array, arrayOffset, dest, destOffset, nr);
+    } else {
+      apdu.duplicate().get(dest, destOffset, nr);
+    }
+    return nr;
+  }
+
+  /**
+   * Copies the response APDU into an immutable {@code ResponseAPDU}.
+   *
+   * @return a response APDU with the same bytes
+   */
+  public ResponseAPDU toResponseAPDU() {
+    return new ResponseAPDU(apdu.duplicate());
+  }
+
+  @Override
+  public String toString() {
+    return "ResponseAPDUView: " + apdu.limit() + " bytes, SW=" + Integer.toHexString(getSW());
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.smartcards;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Card service decorator that handles ISO 7816-4 response continuation.
+ *
+ * A response with status word {@code 61XX} is followed by GET RESPONSE
+ * commands until the card has sent all its data. A response with status word
+ * {@code 6CXX} (wrong Le, XX bytes available) is followed by the same command
+ * with Le set to XX. The data of the responses is collected in a buffer that is
+ * reused for subsequent commands, and returned as a single response APDU.
+ *
+ * The corrected Le is remembered per class, instruction, and parameters, together
+ * with the Le it replaces, so that a later command with the same header and Le is
+ * sent with the corrected Le immediately. This is not done for READ BINARY, where
+ * the available length depends on the offset rather than on the object read.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class ResponseChainingCardService extends CardService {
+
+  /** The maximum total number of data bytes collected for a single command. */
+  private static final int MAX_RESPONSE_DATA_LENGTH = 65536;
+
+  private static final int INITIAL_BUFFER_LENGTH = 258;
+
+  /** The maximum number of remembered corrected Le values. */
+  private static final int MAX_CORRECTED_NE_COUNT = 256;
+
+  private CardService service;
+
+  /* Per CLA, INS, P1, and P2, the Ne that resulted in 6CXX and the corrected Ne. */
+  private Map<Integer, int[]> correctedNes;
+
+  /* Collects the response data, grown as needed. */
+  private byte[] buffer;
+
+  /**
+   * Constructs a decorator for the given service.
+   *
+   * @param service the service to send the commands to
+   */
+  public ResponseChainingCardService(CardService service) {
+    this.service = service;
+    this.correctedNes = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 2981535408652395361L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+        return size() > MAX_CORRECTED_NE_COUNT;
+      }
+    };
+    this.buffer = new byte[INITIAL_BUFFER_LENGTH];
+  }
+
+  @Override
+  public void open() throws CardServiceException {
+    service.open();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return service.isOpen();
+  }
+
+  /**
+   * Sends an APDU to the card, sending GET RESPONSE commands or resending
+   * it with the corrected Le as indicated by the status word.
+   *
+   * @param capdu the command APDU
+   *
+   * @return the response APDU with the data of all responses and the status word of the last response
+   *
+   * @throws CardServiceException if the card operation failed
+   */
+  @Override
+  public synchronized ResponseAPDU transmit(CommandAPDU capdu) throws CardServiceException {
+    int ins = capdu.getINS();
+    int ne = capdu.getNe();
+    boolean isCorrectionRemembered = ins != (ISO7816.INS_READ_BINARY & 0xFF) && ins != (ISO7816.INS_READ_BINARY2 & 0xFF);
+    Integer header = (capdu.getCLA() << 24) | (ins << 16) | (capdu.getP1() << 8) | capdu.getP2();
+    CommandAPDU command = capdu;
+    int[] correction = isCorrectionRemembered ? correctedNes.get(header) : null;
+    if (correction != null && correction[0] == ne) {
+      command = withNe(capdu, correction[1]);
+    }
+
+    ResponseAPDU rapdu = service.transmit(command);
+    int sw = rapdu.getSW();
+    if ((sw & 0xFF00) == ISO7816.SW_CORRECT_LENGTH_00) {
+      int correctedNe = toNe(sw);
+      if (isCorrectionRemembered) {
+        correctedNes.put(header, new int[] { ne, correctedNe });
+      }
+      rapdu = service.transmit(withNe(capdu, correctedNe));
+      sw = rapdu.getSW();
+    }
+    if ((sw & 0xFF00) != ISO7816.SW_BYTES_REMAINING_00) {
+      return rapdu;
+    }
+
+    int cla = getResponseCLA(capdu.getCLA());
+    int length = 0;
+    while ((sw & 0xFF00) == ISO7816.SW_BYTES_REMAINING_00) {
+      length = append(rapdu, length);
+      rapdu = service.transmit(new CommandAPDU(cla, ISO7816.INS_GET_RESPONSE, 0x00, 0x00, toNe(sw)));
+      sw = rapdu.getSW();
+      if ((sw & 0xFF00) == ISO7816.SW_CORRECT_LENGTH_00) {
+        rapdu = service.transmit(new CommandAPDU(cla, ISO7816.INS_GET_RESPONSE, 0x00, 0x00, toNe(sw)));
+        sw = rapdu.getSW();
+      }
+      if ((sw & 0xFF00) == ISO7816.SW_BYTES_REMAINING_00 && rapdu.getNr() == 0) {
+        /* Each GET RESPONSE should make progress, otherwise this would never end. */
+        throw new CardServiceException("GET RESPONSE returned no data", sw);
+      }
+    }
+    length = append(rapdu, length);
+    buffer[length] = (byte)rapdu.getSW1();
+    buffer[length + 1] = (byte)rapdu.getSW2();
+    return new ResponseAPDU(buffer, 0, length + 2);
+  }
+
+  /**
+   * Forgets the corrected Le values.
+   */
+  public synchronized void clearCorrectedLengths() {
+    correctedNes.clear();
+  }
+
+  @Override
+  public CardCapabilities getCardCapabilities() throws CardServiceException {
+    return service.getCardCapabilities();
+  }
+
+  @Override
+  public void setCardCapabilities(CardCapabilities capabilities) {
+    service.setCardCapabilities(capabilities);
+  }
+
+  @Override
+  public void setCardCapabilitiesCache(CardCapabilitiesCache cache) {
+    service.setCardCapabilitiesCache(cache);
+  }
+
+  @Override
+  public int getSessionNumber() {
+    return service.getSessionNumber();
+  }
+
+  @Override
+  public byte[] getATR() throws CardServiceException {
+    return service.getATR();
+  }
+
+  @Override
+  public boolean isExtendedAPDULengthSupported() {
+    return service.isExtendedAPDULengthSupported();
+  }
+
+  @Override
+  public void close() {
+    service.close();
+  }
+
+  @Override
+  public boolean isConnectionLost(Exception e) {
+    return service.isConnectionLost(e);
+  }
+
+  /**
+   * Appends the data of a response to the buffer, leaving room for a status word.
+   *
+   * @param rapdu the response
+   * @param length the number of bytes in the buffer
+   *
+   * @return the new number of bytes in the buffer
+   *
+   * @throws CardServiceException if the total length exceeds the maximum
+   */
+  private int append(ResponseAPDU rapdu, int length) throws CardServiceException {
+    int newLength = length + rapdu.getNr();
+    if (newLength > MAX_RESPONSE_DATA_LENGTH) {
+      throw new CardServiceException("Response data exceeds " + MAX_RESPONSE_DATA_LENGTH + " bytes");
+    }
+    if (newLength + 2 > buffer.length) {
+      byte[] newBuffer = new byte[Math.max(newLength + 2, 2 * buffer.length)];
+      System.arraycopy(buffer, 0, newBuffer, 0, length);
+      buffer = newBuffer;
+    }
+    return length + rapdu.copyDataTo(buffer, length);
+  }
+
+  private static CommandAPDU withNe(CommandAPDU capdu, int ne) {
+    return new CommandAPDU(capdu.getCLA(), capdu.getINS(), capdu.getP1(), capdu.getP2(), capdu.getData(), ne);
+  }
+
+  /**
+   * Returns the number of bytes indicated by SW2, where 0 means 256.
+   *
+   * @param sw the status word
+   *
+   * @return the number of bytes
+   */
+  private static int toNe(int sw) {
+    int sw2 = sw & 0xFF;
+    return sw2 == 0 ? 256 : sw2;
+  }
+
+  /**
+   * Returns the class byte for GET RESPONSE, which keeps the logical channel of
+   * the original command, but not its secure messaging and command chaining indication.
+   *
+   * @param cla the class byte of the original command
+   *
+   * @return the class byte for GET RESPONSE
+   */
+  private static int getResponseCLA(int cla) {
+    if ((cla & 0x80) != 0) {
+      /* Proprietary class, leave it to the card. */
+      return cla;
+    }
+    if ((cla & 0x40) != 0) {
+      /* Further interindustry class, logical channels 4 to 19. */
+      return cla & 0x4F;
+    }
+    return cla & 0x03;
+  }
+}
@@ -22,6 +22,9 @@
 
 package net.sf.scuba.smartcards;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * CardService for easy wrapping of APDU messages.
  *
@@ -61,6 +64,62 @@ public class WrappingCardService extends CardService {
     }
   }
 
+  /**
+   * Sends a batch of APDUs to the card.
+   *
+   * If wrapping is enabled, each command is wrapped only after the response to
+   * the previous command is unwrapped, as wrappers such as secure messaging keep
+   * state between commands. The batch then holds the lock on the wrapped service,
+   * on which services such as {@code TerminalCardService} synchronize their transmit
+   * methods, so that no other commands are interleaved.
+   * If wrapping is disabled, the batch is passed on to the wrapped service.
+   */
+  @Override
+  public List<ResponseAPDU> transmitBatch(List<CommandAPDU> capdus, BatchStopCondition stopCondition) throws CardServiceException {
+    if (!isEnabled()) {
+      return service.transmitBatch(capdus, stopCondition);
+    }
+
+    List<ResponseAPDU> rapdus = new ArrayList<ResponseAPDU>(capdus.size());
+    synchronized (service) {
+      int index = 0;
+      for (CommandAPDU capdu: capdus) {
+        ResponseAPDU rapdu = wrapper.unwrap(service.transmit(wrapper.wrap(capdu)));
+        rapdus.add(rapdu);
+        if (stopCondition != null && stopCondition.shouldStop(index, capdu, rapdu)) {
+          break;
+        }
+        index++;
+      }
+    }
+    return rapdus;
+  }
+
+  @Override
+  public CardCapabilities getCardCapabilities() throws CardServiceException {
+    return service.getCardCapabilities();
+  }
+
+  @Override
+  public void setCardCapabilities(CardCapabilities capabilities) {
+    service.setCardCapabilities(capabilities);
+  }
+
+  @Override
+  public void setCardCapabilitiesCache(CardCapabilitiesCache cache) {
+    service.setCardCapabilitiesCache(cache);
+  }
+
+  @Override
+  public boolean isExtendedAPDULengthSupported() {
+    return service.isExtendedAPDULengthSupported();
+  }
+
+  @Override
+  public int getSessionNumber() {
+    return service.getSessionNumber();
+  }
+
   @Override
   public byte[] getATR() throws CardServiceException {
     return service.getATR();
@@ -22,8 +22,11 @@
 
 package net.sf.scuba.tlv;
 
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,7 +36,41 @@ class ASN1Util implements ASN1Constants {
 
   private static final Logger LOGGER = Logger.getLogger("net.sf.scuba.tlv");
 
-  private static final String SDF = "yyMMddhhmmss'Z'";
+  private static final String UTC_TIME_FORMAT = "yyMMddHHmmss'Z'";
+
+  /* Fractional seconds, which are optional in GeneralizedTime, are handled separately. */
+  private static final String GENERALIZED_TIME_FORMAT = "yyyyMMddHHmmss'Z'";
+
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+  /** Decoders for primitive universal tags, indexed by tag, {@code null} for values that are just bytes. */
+  private static final ValueDecoder[] DECODERS = new ValueDecoder[0x1F];
+  static {
+    DECODERS[UTF8_STRING_TYPE_TAG] = new StringDecoder(UTF_8);
+    DECODERS[NUMERIC_STRING_TYPE_TAG] = new StringDecoder(US_ASCII);
+    DECODERS[PRINTABLE_STRING_TYPE_TAG] = new StringDecoder(US_ASCII);
+    DECODERS[T61_STRING_TYPE_TAG] = new StringDecoder(ISO_8859_1);
+    DECODERS[IA5_STRING_TYPE_TAG] = new StringDecoder(US_ASCII);
+    DECODERS[VISIBLE_STRING_TYPE_TAG] = new StringDecoder(US_ASCII);
+    DECODERS[GENERAL_STRING_TYPE_TAG] = new StringDecoder(ISO_8859_1);
+    if (Charset.isSupported("UTF-32BE")) {
+      DECODERS[UNIVERSAL_STRING_TYPE_TAG] = new StringDecoder(Charset.forName("UTF-32BE"));
+    }
+    DECODERS[BMP_STRING_TYPE_TAG] = new StringDecoder(UTF_16BE);
+    DECODERS[UTC_TIME_TYPE_TAG] = new TimeDecoder(UTC_TIME_FORMAT);
+    DECODERS[GENERALIZED_TIME_TYPE_TAG] = new GeneralizedTimeDecoder(GENERALIZED_TIME_FORMAT);
+  }
+
+  /** The result of {@link #tagToString(int)} for single byte tags, indexed by tag. */
+  private static final String[] TAG_NAMES = new String[256];
+  static {
+    for (int tag = 0; tag < TAG_NAMES.length; tag++) {
+      TAG_NAMES[tag] = computeTagName(tag);
+    }
+  }
 
   /**
    * Private constructor to hide the implicit public one.
@@ -47,40 +84,25 @@ class ASN1Util implements ASN1Constants {
    * universal) we assume the value is just bytes.
    */
   static Object interpretPrimitiveValue(int tag, byte[] valueBytes) {
-    SimpleDateFormat sdf = new SimpleDateFormat(SDF);
-    if (TLVUtil.getTagClass(tag) != UNIVERSAL_CLASS) {
+    if (tag < 0 || tag >= DECODERS.length) {
+      /* Not a single byte universal tag. */
       return valueBytes;
     }
-
-    switch (tag) {
-      case INTEGER_TYPE_TAG:
-      case BIT_STRING_TYPE_TAG:
-      case OCTET_STRING_TYPE_TAG:
-      case NULL_TYPE_TAG:
-      case OBJECT_IDENTIFIER_TYPE_TAG:
-        return valueBytes;
-      case UTF8_STRING_TYPE_TAG:
-      case PRINTABLE_STRING_TYPE_TAG:
-      case T61_STRING_TYPE_TAG:
-      case IA5_STRING_TYPE_TAG:
-      case VISIBLE_STRING_TYPE_TAG:
-      case GENERAL_STRING_TYPE_TAG:
-      case UNIVERSAL_STRING_TYPE_TAG:
-      case BMP_STRING_TYPE_TAG:
-        return new String(valueBytes);
-      case UTC_TIME_TYPE_TAG:
-        try {
-          return sdf.parse(new String(valueBytes));
-        } catch (ParseException pe) {
-          LOGGER.log(Level.WARNING, "Parse exception parsing UTC time", pe);
-          return valueBytes;
-        }
-      default:
-        return valueBytes;
+    ValueDecoder decoder = DECODERS[tag];
+    if (decoder == null) {
+      return valueBytes;
     }
+    return decoder.decode(valueBytes);
   }
 
   static String tagToString(int tag) {
+    if ((tag & 0xFFFFFF00) == 0) {
+      return TAG_NAMES[tag];
+    }
+    return computeTagName(tag);
+  }
+
+  private static String computeTagName(int tag) {
     if (TLVUtil.getTagClass(tag) != UNIVERSAL_CLASS) {
       return "'0x" + Hex.intToHexString(tag) + "'";
     }
@@ -134,4 +156,111 @@ class ASN1Util implements ASN1Constants {
 
     return "'0x" + Hex.intToHexString(tag) + "'";
   }
+
+  /**
+   * Decodes the value bytes of a primitive universal type.
+   */
+  private abstract static class ValueDecoder {
+
+    /**
+     * Decodes the value bytes.
+     *
+     * @param valueBytes the value bytes
+     *
+     * @return the decoded value, or {@code valueBytes} if they cannot be decoded
+     */
+    abstract Object decode(byte[] valueBytes);
+  }
+
+  private static class StringDecoder extends ValueDecoder {
+
+    private final Charset charset;
+
+    public StringDecoder(Charset charset) {
+      this.charset = charset;
+    }
+
+    @Override
+    Object decode(byte[] valueBytes) {
+      return new String(valueBytes, charset);
+    }
+  }
+
+  /**
+   * Decodes times in UTC, with one date format per thread
+   * since {@code SimpleDateFormat} is not thread-safe.
+   */
+  private static class TimeDecoder extends ValueDecoder {
+
+    private final ThreadLocal<SimpleDateFormat> dateFormat;
+
+    public TimeDecoder(final String pattern) {
+      this.dateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+          sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+          return sdf;
+        }
+      };
+    }
+
+    @Override
+    Object decode(byte[] valueBytes) {
+      Date date = parse(new String(valueBytes, US_ASCII));
+      return date == null ? valueBytes : date;
+    }
+
+    /**
+     * Parses a time.
+     *
+     * @param time the time
+     *
+     * @return the parsed time, or {@code null} if it cannot be parsed
+     */
+    Date parse(String time) {
+      try {
+        return dateFormat.get().parse(time);
+      } catch (ParseException pe) {
+        LOGGER.log(Level.FINE, "Parse exception parsing time " + time, pe);
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Decodes GeneralizedTime values, which may have fractional seconds
+   * after a period or a comma (X.680, 46.2). Fractions are kept to the millisecond.
+   */
+  private static class GeneralizedTimeDecoder extends TimeDecoder {
+
+    public GeneralizedTimeDecoder(String pattern) {
+      super(pattern);
+    }
+
+    @Override
+    Object decode(byte[] valueBytes) {
+      String time = new String(valueBytes, US_ASCII);
+      int fractionStart = time.indexOf('.');
+      if (fractionStart < 0) {
+        fractionStart = time.indexOf(',');
+      }
+      int millis = 0;
+      if (fractionStart >= 0) {
+        int fractionEnd = fractionStart + 1;
+        while (fractionEnd < time.length() && time.charAt(fractionEnd) >= '0' && time.charAt(fractionEnd) <= '9') {
+          fractionEnd++;
+        }
+        if (fractionEnd == fractionStart + 1) {
+          LOGGER.fine("Missing fraction in time " + time);
+          return valueBytes;
+        }
+        String fraction = (time.substring(fractionStart + 1, fractionEnd) + "00").substring(0, 3);
+        millis = Integer.parseInt(fraction);
+        time = time.substring(0, fractionStart) + time.substring(fractionEnd);
+      }
+      Date date = parse(time);
+      return date == null ? valueBytes : new Date(date.getTime() + millis);
+    }
+  }
 }
@@ -0,0 +1,385 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A file consisting of concatenated top level TLV records, such as an archive
+ * of raw card reads, which is memory-mapped for bulk processing.
+ *
+ * On construction the file is scanned once to find the record boundaries. The scan
+ * only decodes tags and lengths and skips over values. Records can then be processed
+ * in parallel on a fork-join pool, each task mapping the part of the file that holds
+ * its records.
+ *
+ * Like {@link TLVInputStream}, {@code 0x00} and {@code 0xFF} padding bytes in front
+ * of records are skipped. Files larger than 2GB are supported, a single record
+ * cannot be larger than 2GB.
+ *
+ * NOTE: Mapped regions are released by the garbage collector, not by {@link #close()}.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class TLVArchive implements Closeable {
+
+  /** The size of the regions mapped while scanning. */
+  private static final int SCAN_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** Tasks are split until they map at most this many bytes (or hold a single record). */
+  private static final int TASK_SIZE = 4 * 1024 * 1024;
+
+  /** Tasks are split until they hold at most this many records. */
+  private static final int TASK_RECORD_COUNT = 1024;
+
+  private static final int MAX_HEADER_LENGTH = TLVUtil.MAX_TAG_LENGTH + TLVUtil.MAX_LENGTH_LENGTH;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+
+  private int recordCount;
+
+  /* Start (at the tag) and end offset of each record. */
+  private long[] starts;
+  private long[] ends;
+
+  /**
+   * Opens an archive and finds the boundaries of its records.
+   *
+   * @param file the archive file
+   *
+   * @throws IOException if the file cannot be read or is not a sequence of TLV records
+   */
+  public TLVArchive(File file) throws IOException {
+    this.file = new RandomAccessFile(file, "r");
+    this.channel = this.file.getChannel();
+    this.starts = new long[INITIAL_CAPACITY];
+    this.ends = new long[INITIAL_CAPACITY];
+    try {
+      scan();
+    } catch (IOException ioe) {
+      close();
+      throw ioe;
+    }
+  }
+
+  /**
+   * Returns the number of records.
+   *
+   * @return the number of records
+   */
+  public int getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Returns the offset in the file of the first tag byte of a record.
+   *
+   * @param index the index of the record
+   *
+   * @return the offset of the record
+   */
+  public long getRecordOffset(int index) {
+    checkIndex(index);
+    return starts[index];
+  }
+
+  /**
+   * Returns the length of the encoding (tag, length, and value) of a record.
+   *
+   * @param index the index of the record
+   *
+   * @return the length of the record
+   */
+  public int getRecordLength(int index) {
+    checkIndex(index);
+    return (int)(ends[index] - starts[index]);
+  }
+
+  /**
+   * Maps a single record.
+   *
+   * @param index the index of the record
+   *
+   * @return the encoded record
+   *
+   * @throws IOException if mapping fails
+   */
+  public ByteBuffer getRecord(int index) throws IOException {
+    checkIndex(index);
+    return channel.map(FileChannel.MapMode.READ_ONLY, starts[index], ends[index] - starts[index]);
+  }
+
+  /**
+   * Processes all records in parallel on a new fork-join pool with
+   * a parallelism equal to the number of available processors.
+   *
+   * @param <T> the type of the result for each record
+   * @param processor the processor to apply to each record
+   *
+   * @return the results, in the order of the records
+   *
+   * @throws IOException if processing one of the records fails
+   */
+  public <T> List<T> process(TLVRecordProcessor<T> processor) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool();
+    try {
+      return process(processor, pool);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Processes all records in parallel on the given fork-join pool.
+   *
+   * @param <T> the type of the result for each record
+   * @param processor the processor to apply to each record
+   * @param pool the pool
+   *
+   * @return the results, in the order of the records
+   *
+   * @throws IOException if processing one of the records fails
+   */
+  public <T> List<T> process(TLVRecordProcessor<T> processor, ForkJoinPool pool) throws IOException {
+    Object[] results = new Object[recordCount];
+    try {
+      pool.invoke(new ProcessTask(processor, results, 0, recordCount));
+    } catch (ProcessException pe) {
+      throw pe.getIOException();
+    }
+    @SuppressWarnings("unchecked")
+    List<T> resultList = (List<T>)Arrays.asList(results);
+    return resultList;
+  }
+
+  /**
+   * Checks in parallel that all records are well formed, descending into
+   * constructed elements (see {@link TLVUtil#isPrimitive(int)}).
+   *
+   * @throws IOException if a record is malformed
+   */
+  public void validate() throws IOException {
+    process(new TLVRecordProcessor<Void>() {
+      public Void process(int index, ByteBuffer record) throws IOException {
+        TLVCursor cursor = new TLVCursor(record);
+        try {
+          while (true) {
+            if (!cursor.next()) {
+              if (cursor.getDepth() == 0) {
+                return null;
+              }
+              cursor.exit();
+            } else if (!cursor.isPrimitive()) {
+              cursor.enter();
+            }
+          }
+        } catch (IllegalArgumentException iae) {
+          throw new IOException("Malformed record " + index + " at offset " + starts[index], iae);
+        }
+      }
+    });
+  }
+
+  /**
+   * Closes the underlying file.
+   *
+   * @throws IOException on error closing the file
+   */
+  public void close() throws IOException {
+    file.close();
+  }
+
+  @Override
+  public String toString() {
+    return "[TLVArchive " + recordCount + " records]";
+  }
+
+  /**
+   * Finds the record boundaries, decoding only tags and lengths.
+   */
+  private void scan() throws IOException {
+    long size = channel.size();
+    long position = 0;
+    long windowStart = 0;
+    MappedByteBuffer window = null;
+    while (position < size) {
+      /* Make sure the header of the next record is inside the window. */
+      if (window == null || position + MAX_HEADER_LENGTH > windowStart + window.capacity() && windowStart + window.capacity() < size) {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(SCAN_WINDOW_SIZE, size - windowStart));
+      }
+      int offset = (int)(position - windowStart);
+      int b = window.get(offset) & 0xFF;
+      if (b == 0x00 || b == 0xFF) {
+        /* Skip padding. */
+        position++;
+        continue;
+      }
+
+      int headerEnd = Math.min(window.capacity(), offset + MAX_HEADER_LENGTH);
+      int i = offset + 1;
+      int tag = b;
+      if ((b & 0x1F) == 0x1F) {
+        do {
+          checkHeader(i, headerEnd, position);
+          b = window.get(i++) & 0xFF;
+          tag = (tag << 8) | (b & 0x7F);
+        } while ((b & 0x80) == 0x80);
+      }
+      checkHeader(i, headerEnd, position);
+      int length = window.get(i++) & 0xFF;
+      if ((length & 0x80) != 0x00) {
+        int count = length & 0x7F;
+        if (count > 4) {
+          throw new IOException("Unsupported length of tag " + Integer.toHexString(tag) + " at offset " + position);
+        }
+        length = 0;
+        for (int j = 0; j < count; j++) {
+          checkHeader(i, headerEnd, position);
+          length = (length << 8) | (window.get(i++) & 0xFF);
+        }
+      }
+      if (length < 0) {
+        throw new IOException("Negative length (length = " + length + ", 0x" + Integer.toHexString(length) + " for tag " + Integer.toHexString(tag) + ") at offset " + position);
+      }
+      long end = windowStart + i + length;
+      if (end > size) {
+        throw new EOFException("Truncated record (tag " + Integer.toHexString(tag) + ", length " + length + ") at offset " + position);
+      }
+      if (end - position > Integer.MAX_VALUE) {
+        throw new IOException("Record at offset " + position + " too large");
+      }
+      add(position, end);
+      position = end;
+    }
+  }
+
+  private void add(long start, long end) {
+    if (recordCount == starts.length) {
+      starts = Arrays.copyOf(starts, 2 * starts.length);
+      ends = Arrays.copyOf(ends, 2 * ends.length);
+    }
+    starts[recordCount] = start;
+    ends[recordCount] = end;
+    recordCount++;
+  }
+
+  private static void checkHeader(int offset, int headerEnd, long position) throws IOException {
+    if (offset >= headerEnd) {
+      throw new EOFException("Truncated or malformed header at offset " + position);
+    }
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= recordCount) {
+      throw new IndexOutOfBoundsException("No record " + index + " (record count = " + recordCount + ")");
+    }
+  }
+
+  /**
+   * Processes a range of records, splitting the range until it is small enough.
+   */
+  private class ProcessTask extends RecursiveAction {
+
+    private static final long serialVersionUID = -2178532420263451893L;
+
+    private final TLVRecordProcessor<?> processor;
+    private final Object[] results;
+    private final int from;
+    private final int to;
+
+    public ProcessTask(TLVRecordProcessor<?> processor, Object[] results, int from, int to) {
+      this.processor = processor;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1 && (to - from > TASK_RECORD_COUNT || ends[to - 1] - starts[from] > TASK_SIZE)) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ProcessTask(processor, results, from, middle), new ProcessTask(processor, results, middle, to));
+        return;
+      }
+      if (from == to) {
+        return;
+      }
+      try {
+        long regionStart = starts[from];
+        ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, ends[to - 1] - regionStart);
+        for (int index = from; index < to; index++) {
+          ByteBuffer record = region.duplicate();
+          /* NOTE: casting to Buffer, as ByteBuffer overrides these methods in later JDKs only. */
+          ((Buffer)record).limit((int)(ends[index] - regionStart));
+          ((Buffer)record).position((int)(starts[index] - regionStart));
+          results[index] = processor.process(index, record.slice());
+        }
+      } catch (IOException ioe) {
+        throw new ProcessException(ioe);
+      }
+    }
+  }
+
+  /**
+   * Carries an {@code IOException} out of a fork-join task.
+   */
+  private static class ProcessException extends RuntimeException {
+
+    private static final long serialVersionUID = 5893128290165467223L;
+
+    public ProcessException(Throwable cause) {
+      super(cause);
+    }
+
+    /**
+     * The fork-join framework may wrap the exception thrown in a task in a new
+     * instance of the same class, find the original {@code IOException}.
+     */
+    public IOException getIOException() {
+      Throwable cause = getCause();
+      while (cause != null && !(cause instanceof IOException)) {
+        cause = cause.getCause();
+      }
+      return cause != null ? (IOException)cause : new IOException(this);
+    }
+  }
+}
@@ -0,0 +1,448 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+package net.sf.scuba.tlv;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A random-access reader for TLV structures that works directly on a byte array
+ * or a (heap or direct) byte buffer.
+ *
+ * Unlike {@link TLVInputStream}, this cursor does not copy values. It exposes the
+ * offsets of the tag, length, and value of the current element, and slices of the
+ * value. Offsets are indices into the underlying array, or into the underlying buffer
+ * when constructed from a {@code ByteBuffer}.
+ *
+ * Typical use is to call {@code next()} to move to the next element on the current level,
+ * and {@code enter()} and {@code exit()} to descend into and return from the value of
+ * a constructed element.
+ * Tags are decoded exactly like {@link TLVInputStream#readTag()} does, including skipping
+ * {@code 0x00} and {@code 0xFF} padding bytes in front of a tag.
+ *
+ * Moving the cursor does not allocate, except for growing the stack of levels
+ * the first time a deeply nested structure is entered.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class TLVCursor {
+
+  private static final int INITIAL_MAX_DEPTH = 8;
+
+  /** The backing array, or {@code null} if the buffer has no accessible array. */
+  private final byte[] bytes;
+
+  /** The index in {@code bytes} corresponding to offset 0. */
+  private final int arrayOffset;
+
+  /** The buffer, or {@code null} if constructed from an array. */
+  private final ByteBuffer buffer;
+
+  private final int start;
+
+  /* End of the current level, and where the next element on this level starts. */
+  private int end;
+  private int position;
+
+  /* Ends of the enclosing levels. */
+  private int[] parentEnds;
+  private int depth;
+
+  /* The current element, tagOffset is -1 if there is none. */
+  private int tag;
+  private int tagOffset;
+  private int lengthOffset;
+  private int valueOffset;
+  private int length;
+
+  /**
+   * Constructs a cursor over the given bytes.
+   *
+   * @param bytes the encoded TLV structure(s)
+   */
+  public TLVCursor(byte[] bytes) {
+    this(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Constructs a cursor over a region of the given bytes.
+   *
+   * @param bytes an array containing the encoded TLV structure(s)
+   * @param offset the offset of the first byte of the region
+   * @param length the length of the region
+   */
+  public TLVCursor(byte[] bytes, int offset, int length) {
+    if (bytes == null) {
+      throw new IllegalArgumentException("Cannot read from null");
+    }
+    if (offset < 0 || length < 0 || offset > bytes.length - length) {
+      throw new IllegalArgumentException("Illegal region (offset = " + offset + ", length = " + length + ")");
+    }
+    this.bytes = bytes;
+    this.arrayOffset = 0;
+    this.buffer = null;
+    this.start = offset;
+    this.end = offset + length;
+    this.position = offset;
+    this.parentEnds = new int[INITIAL_MAX_DEPTH];
+    this.depth = 0;
+    this.tagOffset = -1;
+  }
+
+  /**
+   * Constructs a cursor over the remaining bytes of the given buffer,
+   * i.e. the bytes between its position and its limit.
+   * The position and limit of the buffer are not changed by the cursor.
+   *
+   * @param buffer the buffer containing the encoded TLV structure(s)
+   */
+  public TLVCursor(ByteBuffer buffer) {
+    if (buffer == null) {
+      throw new IllegalArgumentException("Cannot read from null");
+    }
+    if (buffer.hasArray()) {
+      this.bytes = buffer.array();
+      this.arrayOffset = buffer.arrayOffset();
+    } else {
+      this.bytes = null;
+      this.arrayOffset = 0;
+    }
+    this.buffer = buffer;
+    this.start = buffer.position();
+    this.end = buffer.limit();
+    this.position = start;
+    this.parentEnds = new int[INITIAL_MAX_DEPTH];
+    this.depth = 0;
+    this.tagOffset = -1;
+  }
+
+  /**
+   * Moves to the next element on the current level.
+   *
+   * @return whether there is a next element, {@code false} if the end of the current level was reached
+   *
+   * @throws IllegalArgumentException if the next element is truncated, has a negative length,
+   *         or has an indefinite length or more than four length bytes
+   */
+  public boolean next() {
+    int offset = position;
+    while (offset < end && isPadding(byteAt(offset))) {
+      offset++; /* skip 00 and FF */
+    }
+    if (offset >= end) {
+      position = end;
+      tagOffset = -1;
+      return false;
+    }
+
+    int newTagOffset = offset;
+    int b = byteAt(offset++);
+    int newTag = b; /* We store the first byte including LHS nibble */
+    if ((b & 0x1F) == 0x1F) {
+      do {
+        checkAvailable(offset, 1);
+        b = byteAt(offset++);
+        newTag = (newTag << 8) | (b & 0x7F);
+      } while ((b & 0x80) == 0x80);
+    }
+
+    checkAvailable(offset, 1);
+    int newLengthOffset = offset;
+    b = byteAt(offset++);
+    int newLength = b;
+    if ((b & 0x80) != 0x00) {
+      /* long form, the indefinite form (no length bytes) is not supported */
+      int count = b & 0x7F;
+      if (count == 0 || count > 4) {
+        throw new IllegalArgumentException("Unsupported number of length bytes (" + count + ") for tag " + Integer.toHexString(newTag));
+      }
+      checkAvailable(offset, count);
+      newLength = 0;
+      for (int i = 0; i < count; i++) {
+        newLength = (newLength << 8) | byteAt(offset++);
+      }
+    }
+    if (newLength < 0) {
+      throw new IllegalArgumentException("Negative length (length = " + newLength + ", 0x" + Integer.toHexString(newLength) + " for tag " + Integer.toHexString(newTag) + ")");
+    }
+    if (newLength > end - offset) {
+      throw new IllegalArgumentException("Value of tag " + Integer.toHexString(newTag) + " (length " + newLength + ") extends beyond end (" + (end - offset) + " bytes left)");
+    }
+
+    tag = newTag;
+    tagOffset = newTagOffset;
+    lengthOffset = newLengthOffset;
+    valueOffset = offset;
+    length = newLength;
+    position = offset + newLength;
+    return true;
+  }
+
+  /**
+   * Descends into the value of the current element. The next call to {@code next()}
+   * will move to the first element inside that value.
+   * This is typically used for constructed elements, but is allowed for primitive
+   * elements as well, since some applications nest data objects inside primitive values.
+   */
+  public void enter() {
+    checkCurrentElement();
+    if (depth == parentEnds.length) {
+      int[] newParentEnds = new int[2 * parentEnds.length];
+      System.arraycopy(parentEnds, 0, newParentEnds, 0, depth);
+      parentEnds = newParentEnds;
+    }
+    parentEnds[depth++] = end;
+    end = valueOffset + length;
+    position = valueOffset;
+    tagOffset = -1;
+  }
+
+  /**
+   * Returns from the element last entered. The cursor is positioned right after
+   * that element, the next call to {@code next()} will move to its next sibling.
+   */
+  public void exit() {
+    if (depth == 0) {
+      throw new IllegalStateException("Not inside an element");
+    }
+    position = end;
+    end = parentEnds[--depth];
+    tagOffset = -1;
+  }
+
+  /**
+   * Skips in the structure until a given tag is found (depth first), starting at the
+   * current position. If the current element is constructed, the search starts inside
+   * its value. This mimics {@link TLVInputStream#skipToTag(int)}.
+   *
+   * @param searchTag the tag to search for
+   *
+   * @return whether the tag was found, if so the cursor is positioned at that element
+   */
+  public boolean skipToTag(int searchTag) {
+    if (tagOffset >= 0 && !TLVUtil.isPrimitive(tag)) {
+      enter();
+    }
+    while (true) {
+      if (!next()) {
+        if (depth == 0) {
+          return false;
+        }
+        exit();
+        continue;
+      }
+      if (tag == searchTag) {
+        return true;
+      }
+      if (!TLVUtil.isPrimitive(tag)) {
+        enter();
+      }
+    }
+  }
+
+  /**
+   * Moves the cursor back to the start of the structure.
+   */
+  public void rewind() {
+    while (depth > 0) {
+      end = parentEnds[--depth];
+    }
+    position = start;
+    tagOffset = -1;
+  }
+
+  /**
+   * Whether the cursor is positioned at an element.
+   *
+   * @return whether there is a current element
+   */
+  public boolean hasElement() {
+    return tagOffset >= 0;
+  }
+
+  /**
+   * Returns the tag of the current element.
+   *
+   * @return the tag
+   */
+  public int getTag() {
+    checkCurrentElement();
+    return tag;
+  }
+
+  /**
+   * Whether the current element is primitive.
+   *
+   * @return whether the current element is primitive
+   */
+  public boolean isPrimitive() {
+    checkCurrentElement();
+    return TLVUtil.isPrimitive(tag);
+  }
+
+  /**
+   * Returns the length of the value of the current element.
+   *
+   * @return the length
+   */
+  public int getLength() {
+    checkCurrentElement();
+    return length;
+  }
+
+  /**
+   * Returns the offset of the first tag byte of the current element.
+   *
+   * @return an offset
+   */
+  public int getTagOffset() {
+    checkCurrentElement();
+    return tagOffset;
+  }
+
+  /**
+   * Returns the offset of the first length byte of the current element.
+   *
+   * @return an offset
+   */
+  public int getLengthOffset() {
+    checkCurrentElement();
+    return lengthOffset;
+  }
+
+  /**
+   * Returns the offset of the first value byte of the current element.
+   *
+   * @return an offset
+   */
+  public int getValueOffset() {
+    checkCurrentElement();
+    return valueOffset;
+  }
+
+  /**
+   * Returns the offset of the first byte after the current element.
+   *
+   * @return an offset
+   */
+  public int getEndOffset() {
+    checkCurrentElement();
+    return valueOffset + length;
+  }
+
+  /**
+   * Returns the nesting level of the cursor, 0 for the top level.
+   *
+   * @return the number of elements entered
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Returns a slice containing the value of the current element.
+   * The slice shares its content with the underlying array or buffer.
+   *
+   * @return a buffer with position 0 and limit equal to the length of the value
+   */
+  public ByteBuffer getValue() {
+    checkCurrentElement();
+    return slice(valueOffset, length);
+  }
+
+  /**
+   * Returns a slice containing the complete encoding (tag, length, and value)
+   * of the current element.
+   * The slice shares its content with the underlying array or buffer.
+   *
+   * @return a buffer with position 0 and limit equal to the length of the encoding
+   */
+  public ByteBuffer getEncoded() {
+    checkCurrentElement();
+    return slice(tagOffset, valueOffset + length - tagOffset);
+  }
+
+  /**
+   * Copies the value of the current element into a caller supplied array.
+   *
+   * @param dest the destination array
+   * @param destOffset the offset in the destination array
+   *
+   * @return the number of bytes copied, which is the length of the value
+   */
+  public int copyValue(byte[] dest, int destOffset) {
+    checkCurrentElement();
+    if (bytes != null) {
+      System.arraycopy(bytes, arrayOffset + valueOffset, dest, destOffset, length);
+    } else {
+      for (int i = 0; i < length; i++) {
+        dest[destOffset + i] = buffer.get(valueOffset + i);
+      }
+    }
+    return length;
+  }
+
+  @Override
+  public String toString() {
+    if (tagOffset < 0) {
+      return "[TLVCursor at " + position + ", depth " + depth + "]";
+    }
+    return "[TLVCursor " + Integer.toHexString(tag) + ", " + length + " at " + tagOffset + ", depth " + depth + "]";
+  }
+
+  private ByteBuffer slice(int offset, int sliceLength) {
+    if (buffer == null) {
+      return ByteBuffer.wrap(bytes, offset, sliceLength).slice();
+    }
+    ByteBuffer duplicate = buffer.duplicate();
+    /* NOTE: casting to Buffer, as ByteBuffer overrides these methods in later JDKs only. */
+    ((Buffer)duplicate).limit(offset + sliceLength);
+    ((Buffer)duplicate).position(offset);
+    return duplicate.slice();
+  }
+
+  private int byteAt(int offset) {
+    if (bytes != null) {
+      return bytes[arrayOffset + offset] & 0xFF;
+    }
+    return buffer.get(offset) & 0xFF;
+  }
+
+  private void checkAvailable(int offset, int count) {
+    if (count > end - offset) {
+      throw new IllegalArgumentException("Truncated TLV structure at offset " + offset);
+    }
+  }
+
+  private void checkCurrentElement() {
+    if (tagOffset < 0) {
+      throw new IllegalStateException("Not at an element");
+    }
+  }
+
+  private static boolean isPadding(int b) {
+    return b == 0x00 || b == 0xFF;
+  }
+}
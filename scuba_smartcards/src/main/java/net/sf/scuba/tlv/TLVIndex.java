@@ -0,0 +1,506 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An index of the elements in a TLV structure, built in a single pass,
+ * giving random access to elements by tag path.
+ *
+ * Elements are identified by their number in document order (depth first).
+ * The index records the tag, offsets, and length of each element, and links
+ * elements to their parent, next sibling, and next element with the same tag path.
+ * A tag path such as {@code 0x75/0x7F61/0x5F2E} is resolved with one hash table
+ * lookup per path component, independent of the size of the structure.
+ * Repeated elements with the same path are visited with {@link #findNext(int)}.
+ *
+ * Only constructed elements (see {@link TLVUtil#isPrimitive(int)}) are descended into.
+ * Tags are decoded like {@link TLVCursor} does, which is used to build the index.
+ *
+ * The index is stored in a handful of int arrays, there are no objects per element.
+ * Values are not copied, {@link #getValue(int)} returns slices of the underlying bytes.
+ * Only {@link #getInterpretedValue(int)} copies, and caches, the values asked for.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class TLVIndex {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final int INITIAL_MAX_DEPTH = 8;
+
+  /** The indexed bytes, offsets are indices into this buffer. */
+  private final ByteBuffer buffer;
+
+  private int elementCount;
+
+  /* Per element, in document order. */
+  private int[] tags;
+  private int[] tagOffsets;
+  private int[] valueOffsets;
+  private int[] lengths;
+  private int[] parents;
+  private int[] nextSiblings;
+
+  /** The first element with the same tag path, identifies the path. */
+  private int[] pathHeads;
+
+  /** The next element with the same tag path, or -1. */
+  private int[] nextSamePaths;
+
+  /**
+   * Open addressing hash table of path heads, keyed by the tag and the path head
+   * of the parent, -1 for empty slots.
+   */
+  private int[] pathTable;
+
+  /** The last element for each path in {@code pathTable}, only used while building. */
+  private int[] pathTails;
+
+  private int pathCount;
+
+  /** The interpreted values of primitive elements, created when first asked for. */
+  private TLVValue[] interpretedValues;
+
+  /**
+   * Constructs an index over the given bytes.
+   *
+   * @param bytes the encoded TLV structure(s)
+   */
+  public TLVIndex(byte[] bytes) {
+    this(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Constructs an index over a region of the given bytes.
+   * Offsets are indices into {@code bytes}.
+   *
+   * @param bytes an array containing the encoded TLV structure(s)
+   * @param offset the offset of the first byte of the region
+   * @param length the length of the region
+   */
+  public TLVIndex(byte[] bytes, int offset, int length) {
+    this(new TLVCursor(bytes, offset, length), ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Constructs an index over the remaining bytes of the given buffer,
+   * i.e. the bytes between its position and its limit.
+   * Offsets are indices into {@code buffer}.
+   * The position and limit of the buffer are not changed by the index.
+   *
+   * @param buffer the buffer containing the encoded TLV structure(s)
+   */
+  public TLVIndex(ByteBuffer buffer) {
+    this(new TLVCursor(buffer), buffer.duplicate());
+  }
+
+  private TLVIndex(TLVCursor cursor, ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.tags = new int[INITIAL_CAPACITY];
+    this.tagOffsets = new int[INITIAL_CAPACITY];
+    this.valueOffsets = new int[INITIAL_CAPACITY];
+    this.lengths = new int[INITIAL_CAPACITY];
+    this.parents = new int[INITIAL_CAPACITY];
+    this.nextSiblings = new int[INITIAL_CAPACITY];
+    this.pathHeads = new int[INITIAL_CAPACITY];
+    this.nextSamePaths = new int[INITIAL_CAPACITY];
+    this.pathTable = new int[INITIAL_CAPACITY];
+    this.pathTails = new int[INITIAL_CAPACITY];
+    Arrays.fill(pathTable, -1);
+    build(cursor);
+    trim();
+  }
+
+  /**
+   * Parses a tag path such as {@code "0x75/0x7F61/0x5F2E"} or {@code "75/7F61/5F2E"}.
+   *
+   * @param path the tag path, tags in hexadecimal separated by slashes
+   *
+   * @return the tags in the path
+   */
+  public static int[] parsePath(String path) {
+    String[] components = path.split("/");
+    int[] result = new int[components.length];
+    for (int i = 0; i < components.length; i++) {
+      String component = components[i].trim();
+      if (component.startsWith("0x") || component.startsWith("0X")) {
+        component = component.substring(2);
+      }
+      try {
+        long tag = Long.parseLong(component, 16);
+        if (tag < 0 || tag > 0xFFFFFFFFL) {
+          throw new IllegalArgumentException("Illegal tag " + components[i] + " in path " + path);
+        }
+        result[i] = (int)tag;
+      } catch (NumberFormatException nfe) {
+        throw new IllegalArgumentException("Illegal tag " + components[i] + " in path " + path, nfe);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of indexed elements.
+   *
+   * @return the number of elements
+   */
+  public int getElementCount() {
+    return elementCount;
+  }
+
+  /**
+   * Finds the first element with the given tag path.
+   *
+   * @param path the tags of the element and its ancestors, outermost first
+   *
+   * @return the element, or -1 if there is no such element
+   */
+  public int find(int... path) {
+    int pathHead = -1;
+    for (int tag: path) {
+      pathHead = lookup(tag, pathHead);
+      if (pathHead < 0) {
+        return -1;
+      }
+    }
+    return pathHead;
+  }
+
+  /**
+   * Finds the first element with the given tag path.
+   *
+   * @param path the tag path, as accepted by {@link #parsePath(String)}
+   *
+   * @return the element, or -1 if there is no such element
+   */
+  public int find(String path) {
+    return find(parsePath(path));
+  }
+
+  /**
+   * Finds the next element, in document order, with the same tag path as the given element.
+   *
+   * @param element an element
+   *
+   * @return the next element with the same tag path, or -1 if there is none
+   */
+  public int findNext(int element) {
+    checkElement(element);
+    return nextSamePaths[element];
+  }
+
+  /**
+   * Finds the first child of an element with the given tag.
+   *
+   * @param parent the parent element
+   * @param tag the tag of the child
+   *
+   * @return the child, or -1 if there is no such child
+   */
+  public int findChild(int parent, int tag) {
+    checkElement(parent);
+    int child = lookup(tag, pathHeads[parent]);
+    while (child >= 0 && parents[child] != parent) {
+      if (child > parent && tagOffsets[child] >= valueOffsets[parent] + lengths[parent]) {
+        /* Past the parent, elements with the same path are in document order. */
+        return -1;
+      }
+      child = nextSamePaths[child];
+    }
+    return child;
+  }
+
+  public int getTag(int element) {
+    checkElement(element);
+    return tags[element];
+  }
+
+  public boolean isPrimitive(int element) {
+    return TLVUtil.isPrimitive(getTag(element));
+  }
+
+  public int getLength(int element) {
+    checkElement(element);
+    return lengths[element];
+  }
+
+  public int getTagOffset(int element) {
+    checkElement(element);
+    return tagOffsets[element];
+  }
+
+  public int getValueOffset(int element) {
+    checkElement(element);
+    return valueOffsets[element];
+  }
+
+  /**
+   * Returns the parent of an element.
+   *
+   * @param element an element
+   *
+   * @return the parent, or -1 for top level elements
+   */
+  public int getParent(int element) {
+    checkElement(element);
+    return parents[element];
+  }
+
+  /**
+   * Returns the first child of an element.
+   *
+   * @param element an element
+   *
+   * @return the first child, or -1 if the element is primitive or empty
+   */
+  public int getFirstChild(int element) {
+    checkElement(element);
+    int next = element + 1;
+    return next < elementCount && parents[next] == element ? next : -1;
+  }
+
+  /**
+   * Returns the next sibling of an element.
+   *
+   * @param element an element
+   *
+   * @return the next element with the same parent, or -1 if there is none
+   */
+  public int getNextSibling(int element) {
+    checkElement(element);
+    return nextSiblings[element];
+  }
+
+  /**
+   * Returns a slice containing the value of an element.
+   * The slice shares its content with the indexed array or buffer.
+   *
+   * @param element an element
+   *
+   * @return a buffer with position 0 and limit equal to the length of the value
+   */
+  public ByteBuffer getValue(int element) {
+    checkElement(element);
+    return slice(valueOffsets[element], lengths[element]);
+  }
+
+  /**
+   * Returns the value of a primitive element, interpreted according to its tag.
+   * The value is interpreted once and cached with the element.
+   *
+   * @param element a primitive element
+   *
+   * @return the value
+   *
+   * @throws IllegalArgumentException if the element is constructed
+   */
+  public synchronized TLVValue getInterpretedValue(int element) {
+    checkElement(element);
+    if (!isPrimitive(element)) {
+      throw new IllegalArgumentException("Element " + element + " is constructed");
+    }
+    if (interpretedValues == null) {
+      interpretedValues = new TLVValue[elementCount];
+    }
+    TLVValue value = interpretedValues[element];
+    if (value == null) {
+      byte[] valueBytes = new byte[lengths[element]];
+      getValue(element).get(valueBytes);
+      value = new TLVValue(tags[element], valueBytes);
+      interpretedValues[element] = value;
+    }
+    return value;
+  }
+
+  /**
+   * Returns a slice containing the complete encoding (tag, length, and value) of an element.
+   * The slice shares its content with the indexed array or buffer.
+   *
+   * @param element an element
+   *
+   * @return a buffer with position 0 and limit equal to the length of the encoding
+   */
+  public ByteBuffer getEncoded(int element) {
+    checkElement(element);
+    return slice(tagOffsets[element], valueOffsets[element] + lengths[element] - tagOffsets[element]);
+  }
+
+  @Override
+  public String toString() {
+    return "[TLVIndex " + elementCount + " elements, " + pathCount + " paths]";
+  }
+
+  private void build(TLVCursor cursor) {
+    /* The last element seen on each level, to link siblings. */
+    int[] previousSiblings = new int[INITIAL_MAX_DEPTH];
+    previousSiblings[0] = -1;
+    int parent = -1;
+    while (true) {
+      int depth = cursor.getDepth();
+      if (!cursor.next()) {
+        if (depth == 0) {
+          break;
+        }
+        cursor.exit();
+        parent = parents[parent];
+        continue;
+      }
+      int element = add(cursor, parent);
+      if (previousSiblings[depth] >= 0) {
+        nextSiblings[previousSiblings[depth]] = element;
+      }
+      previousSiblings[depth] = element;
+      if (!TLVUtil.isPrimitive(cursor.getTag())) {
+        cursor.enter();
+        parent = element;
+        if (depth + 1 == previousSiblings.length) {
+          previousSiblings = Arrays.copyOf(previousSiblings, 2 * previousSiblings.length);
+        }
+        previousSiblings[depth + 1] = -1;
+      }
+    }
+  }
+
+  private int add(TLVCursor cursor, int parent) {
+    if (elementCount == tags.length) {
+      int newCapacity = 2 * tags.length;
+      tags = Arrays.copyOf(tags, newCapacity);
+      tagOffsets = Arrays.copyOf(tagOffsets, newCapacity);
+      valueOffsets = Arrays.copyOf(valueOffsets, newCapacity);
+      lengths = Arrays.copyOf(lengths, newCapacity);
+      parents = Arrays.copyOf(parents, newCapacity);
+      nextSiblings = Arrays.copyOf(nextSiblings, newCapacity);
+      pathHeads = Arrays.copyOf(pathHeads, newCapacity);
+      nextSamePaths = Arrays.copyOf(nextSamePaths, newCapacity);
+    }
+    int element = elementCount++;
+    int tag = cursor.getTag();
+    tags[element] = tag;
+    tagOffsets[element] = cursor.getTagOffset();
+    valueOffsets[element] = cursor.getValueOffset();
+    lengths[element] = cursor.getLength();
+    parents[element] = parent;
+    nextSiblings[element] = -1;
+    nextSamePaths[element] = -1;
+
+    int parentPathHead = parent < 0 ? -1 : pathHeads[parent];
+    int slot = findSlot(tag, parentPathHead);
+    if (pathTable[slot] < 0) {
+      pathTable[slot] = element;
+      pathTails[slot] = element;
+      pathHeads[element] = element;
+      pathCount++;
+      if (2 * pathCount > pathTable.length) {
+        rehash();
+      }
+    } else {
+      pathHeads[element] = pathTable[slot];
+      nextSamePaths[pathTails[slot]] = element;
+      pathTails[slot] = element;
+    }
+    return element;
+  }
+
+  private int lookup(int tag, int parentPathHead) {
+    return pathTable[findSlot(tag, parentPathHead)];
+  }
+
+  /**
+   * Finds the slot in the path table for the given key.
+   *
+   * @return the slot of the key, or the empty slot where it should be inserted
+   */
+  private int findSlot(int tag, int parentPathHead) {
+    int mask = pathTable.length - 1;
+    int slot = hash(tag, parentPathHead) & mask;
+    while (true) {
+      int head = pathTable[slot];
+      if (head < 0) {
+        return slot;
+      }
+      int headParent = parents[head];
+      if (tags[head] == tag && (headParent < 0 ? -1 : pathHeads[headParent]) == parentPathHead) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void rehash() {
+    int[] oldTable = pathTable;
+    int[] oldTails = pathTails;
+    pathTable = new int[2 * oldTable.length];
+    pathTails = new int[2 * oldTable.length];
+    Arrays.fill(pathTable, -1);
+    for (int i = 0; i < oldTable.length; i++) {
+      int head = oldTable[i];
+      if (head >= 0) {
+        int headParent = parents[head];
+        int slot = findSlot(tags[head], headParent < 0 ? -1 : pathHeads[headParent]);
+        pathTable[slot] = head;
+        pathTails[slot] = oldTails[i];
+      }
+    }
+  }
+
+  /**
+   * Releases the space only needed while building.
+   */
+  private void trim() {
+    tags = Arrays.copyOf(tags, elementCount);
+    tagOffsets = Arrays.copyOf(tagOffsets, elementCount);
+    valueOffsets = Arrays.copyOf(valueOffsets, elementCount);
+    lengths = Arrays.copyOf(lengths, elementCount);
+    parents = Arrays.copyOf(parents, elementCount);
+    nextSiblings = Arrays.copyOf(nextSiblings, elementCount);
+    pathHeads = Arrays.copyOf(pathHeads, elementCount);
+    nextSamePaths = Arrays.copyOf(nextSamePaths, elementCount);
+    pathTails = null;
+  }
+
+  private static int hash(int tag, int parentPathHead) {
+    int h = tag * 31 + parentPathHead;
+    return h ^ (h >>> 16);
+  }
+
+  private ByteBuffer slice(int offset, int sliceLength) {
+    ByteBuffer duplicate = buffer.duplicate();
+    /* NOTE: casting to Buffer, as ByteBuffer overrides these methods in later JDKs only. */
+    ((Buffer)duplicate).limit(offset + sliceLength);
+    ((Buffer)duplicate).position(offset);
+    return duplicate.slice();
+  }
+
+  private void checkElement(int element) {
+    if (element < 0 || element >= elementCount) {
+      throw new IndexOutOfBoundsException("No element " + element + " (element count = " + elementCount + ")");
+    }
+  }
+}
@@ -22,22 +22,29 @@
 
 package net.sf.scuba.tlv;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-
 /**
  * State keeps track of where we are in a TLV stream.
  *
+ * The stack of tags, lengths, and number of value bytes processed is kept in
+ * parallel arrays, so that neither processing tags nor copying the state
+ * (for marking and resetting the stream) allocates per element.
+ *
  * @author The SCUBA team
  *
  * @version $Revision$
  */
 class TLVInputState {
 
+  private static final int INITIAL_CAPACITY = 8;
+
   /**
    * Encodes tags, lengths, and number of valueBytes encountered thus far.
+   * Index {@code depth - 1} is the current (innermost) element.
    */
-  private Deque<TLStruct> state;
+  private int[] tags;
+  private int[] lengths;
+  private int[] valueBytesProcessed;
+  private int depth;
 
   /*
    * TFF: ^TLVVVVVV
@@ -51,18 +58,35 @@ class TLVInputState {
   private boolean isReadingValue;
 
   public TLVInputState() {
-    this(new ArrayDeque<TLStruct>(), true, false, false);
+    this.tags = new int[INITIAL_CAPACITY];
+    this.lengths = new int[INITIAL_CAPACITY];
+    this.valueBytesProcessed = new int[INITIAL_CAPACITY];
+    this.depth = 0;
+    this.isAtStartOfTag = true;
+    this.isAtStartOfLength = false;
+    this.isReadingValue = false;
   }
 
   public TLVInputState(TLVInputState original) {
-    this(original.getDeepCopyOfState(), original.isAtStartOfTag, original.isAtStartOfLength, original.isReadingValue);
+    this();
+    copyFrom(original);
   }
 
-  private TLVInputState(Deque<TLStruct> state, boolean isAtStartOfTag, boolean isAtStartOfLength, boolean isReadingValue) {
-    this.state = state;
-    this.isAtStartOfTag = isAtStartOfTag;
-    this.isAtStartOfLength = isAtStartOfLength;
-    this.isReadingValue = isReadingValue;
+  /**
+   * Makes this state a copy of another state.
+   * Reuses the arrays of this state if they are large enough.
+   *
+   * @param original the state to copy
+   */
+  public void copyFrom(TLVInputState original) {
+    ensureCapacity(original.depth);
+    System.arraycopy(original.tags, 0, tags, 0, original.depth);
+    System.arraycopy(original.lengths, 0, lengths, 0, original.depth);
+    System.arraycopy(original.valueBytesProcessed, 0, valueBytesProcessed, 0, original.depth);
+    this.depth = original.depth;
+    this.isAtStartOfTag = original.isAtStartOfTag;
+    this.isAtStartOfLength = original.isAtStartOfLength;
+    this.isReadingValue = original.isReadingValue;
   }
 
   public boolean isAtStartOfTag() {
@@ -78,44 +102,40 @@ class TLVInputState {
   }
 
   public int getTag() {
-    if (state.isEmpty()) {
+    if (depth == 0) {
       throw new IllegalStateException("Tag not yet read.");
     }
-    TLStruct currentObject = state.peek();
-    return currentObject.getTag();
+    return tags[depth - 1];
   }
 
   public int getLength() {
-    if (state.isEmpty()) {
+    if (depth == 0) {
       throw new IllegalStateException("Length not yet known.");
     }
-    TLStruct currentObject = state.peek();
-    return currentObject.getLength();
+    return lengths[depth - 1];
   }
 
   public int getValueBytesProcessed() {
-    TLStruct currentObject = state.peek();
-    return currentObject.getValueBytesProcessed();
+    return valueBytesProcessed[depth - 1];
   }
 
   public int getValueBytesLeft() {
-    if (state.isEmpty()) {
+    if (depth == 0) {
       throw new IllegalStateException("Length of value is unknown.");
     }
-    TLStruct currentObject = state.peek();
-    int currentLength = currentObject.getLength();
-    int valueBytesRead = currentObject.getValueBytesProcessed();
-    return currentLength - valueBytesRead;
+    return lengths[depth - 1] - valueBytesProcessed[depth - 1];
   }
 
   public void setTagProcessed(int tag, int byteCount) {
     /* Length is set to MAX INT, we will update it when caller calls our setLengthProcessed. */
-    TLStruct obj = new TLStruct(tag);
-    if (!state.isEmpty()) {
-      TLStruct parent = state.peek();
-      parent.updateValueBytesProcessed(byteCount);
-    }
-    state.push(obj);
+    if (depth > 0) {
+      valueBytesProcessed[depth - 1] += byteCount;
+    }
+    ensureCapacity(depth + 1);
+    tags[depth] = tag;
+    lengths[depth] = Integer.MAX_VALUE;
+    valueBytesProcessed[depth] = 0;
+    depth++;
     isAtStartOfTag = false;
     isAtStartOfLength = true;
     isReadingValue = false;
@@ -131,99 +151,79 @@ class TLVInputState {
     if (length < 0) {
       throw new IllegalArgumentException("Cannot set negative length (length = " + length + ", 0x" + Integer.toHexString(length) + " for tag " + Integer.toHexString(getTag()) + ").");
     }
-    TLStruct obj = state.pop();
-    if (!state.isEmpty()) {
-      TLStruct parent = state.peek();
-      parent.updateValueBytesProcessed(byteCount);
+    if (depth > 1) {
+      valueBytesProcessed[depth - 2] += byteCount;
     }
-    obj.setLength(length);
-    state.push(obj);
+    lengths[depth - 1] = length;
     isAtStartOfTag = false;
     isAtStartOfLength = false;
     isReadingValue = true;
   }
 
   public void updateValueBytesProcessed(int byteCount) {
-    if (state.isEmpty()) {
+    if (depth == 0) {
       return;
     }
-    TLStruct currentObject = state.peek();
-    int bytesLeft = currentObject.getLength() - currentObject.getValueBytesProcessed();
-    if (byteCount > bytesLeft) {
-      throw new IllegalArgumentException("Cannot process " + byteCount + " bytes! Only " + bytesLeft + " bytes left in this TLV object " + currentObject);
-    }
-    currentObject.updateValueBytesProcessed(byteCount);
-    int currentLength = currentObject.getLength();
-    if (currentObject.getValueBytesProcessed() == currentLength) {
-      state.pop();
-      /* Stand back! I'm going to try recursion! Update parent(s)... */
-      updateValueBytesProcessed(currentLength);
-      isAtStartOfTag = true;
-      isAtStartOfLength = false;
-      isReadingValue = false;
-    } else {
+    checkBytesLeft(depth - 1, byteCount);
+    valueBytesProcessed[depth - 1] += byteCount;
+    if (valueBytesProcessed[depth - 1] != lengths[depth - 1]) {
       isAtStartOfTag = false;
       isAtStartOfLength = false;
       isReadingValue = true;
+      return;
+    }
+
+    /* Pop completed elements, and update parent(s)... */
+    while (depth > 0 && valueBytesProcessed[depth - 1] == lengths[depth - 1]) {
+      int completedLength = lengths[depth - 1];
+      depth--;
+      if (depth > 0) {
+        checkBytesLeft(depth - 1, completedLength);
+        valueBytesProcessed[depth - 1] += completedLength;
+      }
     }
+    isAtStartOfTag = true;
+    isAtStartOfLength = false;
+    isReadingValue = false;
   }
 
   @Override
   public String toString() {
-    return state.toString();
-  }
-
-  private Deque<TLStruct> getDeepCopyOfState() {
-    Deque<TLStruct> newStack = new ArrayDeque<TLStruct>(state.size());
-    for (TLStruct tlStruct: state) {
-      newStack.addLast(new TLStruct(tlStruct));
+    StringBuilder result = new StringBuilder("[");
+    for (int i = depth - 1; i >= 0; i--) {
+      result.append(toString(i));
+      if (i > 0) {
+        result.append(", ");
+      }
     }
-    return newStack;
+    result.append("]");
+    return result.toString();
   }
 
-  private class TLStruct {
-
-    private int tag;
-    private int length;
-    private int valueBytesRead;
-
-    public TLStruct(int tag) {
-      this(tag, Integer.MAX_VALUE, 0);
-    }
-
-    public TLStruct(TLStruct original) {
-      this(original.tag, original.length, original.valueBytesRead);
-    }
-
-    public TLStruct(int tag, int length, int valueBytesRead) {
-      this.tag = tag;
-      this.length = length;
-      this.valueBytesRead = valueBytesRead;
-    }
-
-    public void setLength(int length) {
-      this.length = length;
-    }
-
-    public int getTag() {
-      return tag;
-    }
-
-    public int getLength() {
-      return length;
-    }
-
-    public int getValueBytesProcessed() {
-      return valueBytesRead;
+  private void checkBytesLeft(int index, int byteCount) {
+    int bytesLeft = lengths[index] - valueBytesProcessed[index];
+    if (byteCount > bytesLeft) {
+      throw new IllegalArgumentException("Cannot process " + byteCount + " bytes! Only " + bytesLeft + " bytes left in this TLV object " + toString(index));
     }
+  }
 
-    public void updateValueBytesProcessed(int n) {
-      this.valueBytesRead += n;
-    }
+  private String toString(int index) {
+    return "[TLStruct " + Integer.toHexString(tags[index]) + ", " + lengths[index] + ", " + valueBytesProcessed[index] + "]";
+  }
 
-    @Override
-    public String toString() {
-      return "[TLStruct " + Integer.toHexString(tag) + ", " + length + ", " + valueBytesRead + "]";
+  private void ensureCapacity(int capacity) {
+    if (capacity <= tags.length) {
+      return;
     }
+    int newCapacity = Math.max(capacity, 2 * tags.length);
+    int[] newTags = new int[newCapacity];
+    int[] newLengths = new int[newCapacity];
+    int[] newValueBytesProcessed = new int[newCapacity];
+    System.arraycopy(tags, 0, newTags, 0, depth);
+    System.arraycopy(lengths, 0, newLengths, 0, depth);
+    System.arraycopy(valueBytesProcessed, 0, newValueBytesProcessed, 0, depth);
+    tags = newTags;
+    lengths = newLengths;
+    valueBytesProcessed = newValueBytesProcessed;
   }
 }
@@ -25,8 +25,11 @@ package net.sf.scuba.tlv;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +47,8 @@ public class TLVInputStream extends InputStream {
   /* 64K ought to be enough for anybody. */
   private static final int MAX_BUFFER_LENGTH = 65535; // Integer.MAX_VALUE;
 
+  private static final int COPY_BUFFER_LENGTH = 4096;
+
   private final InputStream originalInputStream;
 
   /** Carrier. */
@@ -51,6 +56,9 @@ public class TLVInputStream extends InputStream {
 
   private int bufferSize;
 
+  /** Lengths larger than this are rejected. */
+  private int maxValueLength;
+
   private TLVInputState state;
   private TLVInputState markedState;
 
@@ -60,6 +68,18 @@ public class TLVInputStream extends InputStream {
    * @param inputStream a TLV object
    */
   public TLVInputStream(InputStream inputStream) {
+    this(inputStream, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Constructs a new TLV stream based on another stream, which rejects
+   * elements with a length larger than {@code maxValueLength}.
+   *
+   * @param inputStream a TLV object
+   * @param maxValueLength the maximum length of a value
+   */
+  public TLVInputStream(InputStream inputStream, int maxValueLength) {
+    setMaxValueLength(maxValueLength);
     this.bufferSize = 0;
     try {
       if (inputStream instanceof BufferedInputStream || inputStream instanceof ByteArrayInputStream) {
@@ -147,6 +167,9 @@ public class TLVInputStream extends InputStream {
       } else {
         /* long form */
         int count = b & 0x7F;
+        if (count > 4) {
+          throw new IOException("Too many length bytes (" + count + ") for tag " + Integer.toHexString(state.getTag()));
+        }
         length = 0;
         for (int i = 0; i < count; i++) {
           b = inputStream.readUnsignedByte();
@@ -155,6 +178,12 @@ public class TLVInputStream extends InputStream {
           length |= b;
         }
       }
+      if (length < 0) {
+        throw new IOException("Negative length (length = " + length + ", 0x" + Integer.toHexString(length) + " for tag " + Integer.toHexString(state.getTag()) + ")");
+      }
+      if (length > maxValueLength) {
+        throw new IOException("Length " + length + " of tag " + Integer.toHexString(state.getTag()) + " exceeds maximum length " + maxValueLength);
+      }
       state.setLengthProcessed(length, bytesRead);
 
       /* We're buffering our carrier inputstream now that we know max length */
@@ -171,6 +200,8 @@ public class TLVInputStream extends InputStream {
 
   /**
    * Reads a value.
+   * Large values are read in chunks, so that memory is only allocated
+   * for bytes actually present in the underlying stream.
    *
    * @return the value just read
    *
@@ -182,8 +213,7 @@ public class TLVInputStream extends InputStream {
         throw new IllegalStateException("Not yet processing value!");
       }
       int length = state.getLength();
-      byte[] value = new byte[length];
-      inputStream.readFully(value);
+      byte[] value = readFully(length);
       state.updateValueBytesProcessed(length);
       return value;
     } catch (IOException e) {
@@ -191,6 +221,71 @@ public class TLVInputStream extends InputStream {
     }
   }
 
+  /**
+   * Reads the (remaining bytes of the) current value and writes them to an output-stream.
+   * The value is copied through a small fixed size buffer, rather than being read into memory
+   * completely.
+   *
+   * @param outputStream the output-stream to write the value to
+   *
+   * @return the number of bytes copied
+   *
+   * @throws IOException if reading or writing goes wrong
+   */
+  public int readValue(OutputStream outputStream) throws IOException {
+    if (!state.isProcessingValue()) {
+      throw new IllegalStateException("Not yet processing value!");
+    }
+    int bytesLeft = state.getValueBytesLeft();
+    byte[] buffer = new byte[Math.min(bytesLeft, COPY_BUFFER_LENGTH)];
+    int bytesCopied = 0;
+    while (bytesCopied < bytesLeft) {
+      int bytesRead = read(buffer, 0, Math.min(buffer.length, bytesLeft - bytesCopied));
+      if (bytesRead < 0) {
+        throw new EOFException("Value ended after " + bytesCopied + " of " + bytesLeft + " bytes");
+      }
+      outputStream.write(buffer, 0, bytesRead);
+      bytesCopied += bytesRead;
+    }
+    return bytesCopied;
+  }
+
+  /**
+   * Returns an input-stream for reading the (remaining bytes of the) current value.
+   * The returned input-stream will not read beyond the end of the value.
+   * Closing it skips any unread bytes of the value, it does not close this input-stream.
+   *
+   * @return an input-stream view of the current value
+   */
+  public InputStream getValueInputStream() {
+    if (!state.isProcessingValue()) {
+      throw new IllegalStateException("Not yet processing value!");
+    }
+    return new ValueInputStream(state.getValueBytesLeft());
+  }
+
+  /**
+   * Gets the maximum length of values accepted by this input-stream.
+   *
+   * @return the maximum length
+   */
+  public int getMaxValueLength() {
+    return maxValueLength;
+  }
+
+  /**
+   * Sets the maximum length of values. Reading a length larger than this
+   * results in an exception, before any value bytes are read.
+   *
+   * @param maxValueLength the maximum length
+   */
+  public void setMaxValueLength(int maxValueLength) {
+    if (maxValueLength < 0) {
+      throw new IllegalArgumentException("Negative maximum length");
+    }
+    this.maxValueLength = maxValueLength;
+  }
+
   private long skipValue() throws IOException {
     if (state.isAtStartOfTag()) {
       return 0;
@@ -278,6 +373,34 @@ public class TLVInputStream extends InputStream {
     return result;
   }
 
+  /**
+   * Reads up to {@code length} bytes of data from the input-stream.
+   * When reading a value, at most the remaining bytes of that value are read.
+   *
+   * @param bytes the buffer into which the data is read
+   * @param offset the offset in {@code bytes} at which the data is written
+   * @param length the maximum number of bytes to read
+   *
+   * @return the number of bytes read, or -1 at the end of the stream
+   *
+   * @throws IOException if reading goes wrong
+   */
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (state.isProcessingValue()) {
+      length = Math.min(length, state.getValueBytesLeft());
+    }
+    int result = inputStream.read(bytes, offset, length);
+    if (result < 0) {
+      return -1;
+    }
+    state.updateValueBytesProcessed(result);
+    return result;
+  }
+
   /**
    * Attempts to skip over <code>n</code> bytes.
    *
@@ -297,13 +420,18 @@ public class TLVInputStream extends InputStream {
 
   /**
    * Marks the underlying input-stream if supported.
+   * The TLV state is copied into a snapshot that is reused by subsequent marks.
    *
    * @param readLimit limit for marking
    */
   @Override
   public synchronized void mark(int readLimit) {
     inputStream.mark(readLimit);
-    markedState = new TLVInputState(state);
+    if (markedState == null) {
+      markedState = new TLVInputState(state);
+    } else {
+      markedState.copyFrom(state);
+    }
   }
 
   /**
@@ -327,9 +455,11 @@ public class TLVInputStream extends InputStream {
     if (!markSupported()) {
       throw new IOException("mark/reset not supported");
     }
+    if (markedState == null) {
+      throw new IOException("Mark not set");
+    }
     inputStream.reset();
-    state = markedState;
-    markedState = null;
+    state.copyFrom(markedState);
   }
 
   /**
@@ -346,4 +476,95 @@ public class TLVInputStream extends InputStream {
   public String toString() {
     return state.toString();
   }
+
+  /**
+   * Reads exactly {@code length} bytes from the underlying stream.
+   * Does not trust {@code length} for large values, but grows the result as bytes arrive.
+   *
+   * @param length the number of bytes to read
+   *
+   * @return the bytes read
+   *
+   * @throws IOException if reading goes wrong, or fewer bytes are available
+   */
+  private byte[] readFully(int length) throws IOException {
+    if (length <= MAX_BUFFER_LENGTH) {
+      byte[] value = new byte[length];
+      inputStream.readFully(value);
+      return value;
+    }
+    byte[] value = new byte[MAX_BUFFER_LENGTH];
+    int offset = 0;
+    while (offset < length) {
+      if (offset == value.length) {
+        value = Arrays.copyOf(value, (int)Math.min(length, 2L * value.length));
+      }
+      int bytesRead = inputStream.read(value, offset, value.length - offset);
+      if (bytesRead < 0) {
+        throw new EOFException("Value ended after " + offset + " of " + length + " bytes");
+      }
+      offset += bytesRead;
+    }
+    return value;
+  }
+
+  /**
+   * A view of the remaining bytes of the current value.
+   */
+  private class ValueInputStream extends InputStream {
+
+    private int bytesLeft;
+
+    public ValueInputStream(int bytesLeft) {
+      this.bytesLeft = bytesLeft;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (bytesLeft <= 0) {
+        return -1;
+      }
+      int result = TLVInputStream.this.read();
+      if (result >= 0) {
+        bytesLeft--;
+      }
+      return result;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (bytesLeft <= 0) {
+        return -1;
+      }
+      int result = TLVInputStream.this.read(bytes, offset, Math.min(length, bytesLeft));
+      if (result > 0) {
+        bytesLeft -= result;
+      }
+      return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0 || bytesLeft <= 0) {
+        return 0;
+      }
+      long result = TLVInputStream.this.skip(Math.min(n, bytesLeft));
+      bytesLeft -= (int)result;
+      return result;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return Math.min(bytesLeft, TLVInputStream.this.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+      while (bytesLeft > 0) {
+        if (skip(bytesLeft) <= 0 && read() < 0) {
+          break;
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,59 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+/**
+ * Receives the elements decoded by a {@link TLVParser}.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public interface TLVListener {
+
+  /**
+   * Called when the tag and length of a constructed element have been parsed.
+   * The children of the element follow, terminated by a call to
+   * {@link #endElement(int)}.
+   *
+   * @param tag the tag
+   * @param length the length of the value
+   */
+  void startElement(int tag, int length);
+
+  /**
+   * Called when the last byte of a constructed element has been parsed.
+   *
+   * @param tag the tag
+   */
+  void endElement(int tag);
+
+  /**
+   * Called when the complete value of a primitive element has been parsed.
+   *
+   * @param tag the tag
+   * @param value the value
+   */
+  void primitiveValue(int tag, byte[] value);
+}
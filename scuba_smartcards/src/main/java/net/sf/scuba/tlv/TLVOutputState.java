@@ -22,19 +22,19 @@
 
 package net.sf.scuba.tlv;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import net.sf.scuba.util.Hex;
-
 /**
  * State to keep track of where we are in a TLV stream.
- * This variant also stores values that were encountered, to be used in
- * {@link TLVOutputStream}.
+ * This variant also buffers the bytes written while the length of one or more
+ * of the open values is not yet known, to be used in {@link TLVOutputStream}.
+ *
+ * All such bytes are kept in a single shared buffer. A placeholder byte is
+ * reserved for each length that is not yet known. When the value is ended, the
+ * actual length is filled in, shifting the value only if the length does not fit
+ * in the placeholder. Contrary to keeping a buffer per nesting level, bytes are
+ * thus not copied from child to parent.
+ *
+ * The stack of open values is kept in parallel arrays, so that writing
+ * tags does not allocate per element.
  *
  * @author Martijn Oostdijk (martijn.oostdijk@gmail.com)
  *
@@ -42,12 +42,34 @@ import net.sf.scuba.util.Hex;
  */
 class TLVOutputState {
 
-  private static final Logger LOGGER = Logger.getLogger("net.sf.scuba.tlv");
+  private static final int INITIAL_BUFFER_SIZE = 256;
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  /** Marks a length that is not set (yet). */
+  private static final int UNKNOWN_LENGTH = -1;
 
   /**
-   * Encoded the tags, lengths, and (partial) values.
+   * Encodes the tags, lengths, offsets of the length placeholders in the shared buffer,
+   * and number of value bytes written thus far.
+   * Index {@code depth - 1} is the current (innermost) value.
    */
-  private Deque<TLVStruct> state;
+  private int[] tags;
+  private int[] lengths;
+  private int[] lengthOffsets;
+  private int[] valueBytesProcessed;
+  private int depth;
+
+  /**
+   * The bytes written since the first value with unknown length was started.
+   */
+  private byte[] buffer;
+  private int bufferLength;
+
+  /**
+   * The number of open values with unknown length.
+   */
+  private int unknownLengthCount;
 
   /*
    * Encoded position, only one can be true.
@@ -63,18 +85,17 @@ class TLVOutputState {
   private boolean isReadingValue;
 
   public TLVOutputState() {
-    this(new ArrayDeque<TLVStruct>(), true, false, false);
-  }
-
-  public TLVOutputState(TLVOutputState original) {
-    this(original.getDeepCopyOfState(), original.isAtStartOfTag, original.isAtStartOfLength, original.isReadingValue);
-  }
-
-  private TLVOutputState(Deque<TLVStruct> state, boolean isAtStartOfTag, boolean isAtStartOfLength, boolean isReadingValue) {
-    this.state = state;
-    this.isAtStartOfTag = isAtStartOfTag;
-    this.isAtStartOfLength = isAtStartOfLength;
-    this.isReadingValue = isReadingValue;
+    this.tags = new int[INITIAL_CAPACITY];
+    this.lengths = new int[INITIAL_CAPACITY];
+    this.lengthOffsets = new int[INITIAL_CAPACITY];
+    this.valueBytesProcessed = new int[INITIAL_CAPACITY];
+    this.depth = 0;
+    this.buffer = new byte[INITIAL_BUFFER_SIZE];
+    this.bufferLength = 0;
+    this.unknownLengthCount = 0;
+    this.isAtStartOfTag = true;
+    this.isAtStartOfLength = false;
+    this.isReadingValue = false;
   }
 
   public boolean isAtStartOfTag() {
@@ -90,49 +111,91 @@ class TLVOutputState {
   }
 
   public int getTag() {
-    if (state.isEmpty()) {
+    if (depth == 0) {
       throw new IllegalStateException("Tag not yet read.");
     }
-    TLVStruct currentObject = state.peek();
-    return currentObject.getTag();
+    return tags[depth - 1];
   }
 
   public int getLength() {
-    if (state.isEmpty()) {
+    if (depth == 0 || lengths[depth - 1] == UNKNOWN_LENGTH) {
       throw new IllegalStateException("Length not yet known.");
     }
-    TLVStruct currentObject = state.peek();
-    int length = currentObject.getLength();
-    if (length < 0) {
-      throw new IllegalStateException("Length not yet knwon.");
-    }
-    return length;
+    return lengths[depth - 1];
   }
 
   public int getValueBytesProcessed() {
-    TLVStruct currentObject = state.peek();
-    return currentObject.getValueBytesProcessed();
+    return valueBytesProcessed[depth - 1];
   }
 
   public int getValueBytesLeft() {
-    if (state.isEmpty()) {
+    if (depth == 0) {
       throw new IllegalStateException("Length of value is unknown.");
     }
-    TLVStruct currentObject = state.peek();
-    int currentLength = currentObject.getLength();
-    int valueBytesRead = currentObject.getValueBytesProcessed();
-    return currentLength - valueBytesRead;
+    return getBytesLeft(depth - 1);
+  }
+
+  /**
+   * Whether bytes should currently go to the shared buffer (because the
+   * length of at least one of the open values is not yet known),
+   * rather than directly to the underlying output-stream.
+   *
+   * @return whether bytes should be buffered
+   */
+  public boolean isBuffering() {
+    return unknownLengthCount > 0;
+  }
+
+  public byte[] getBuffer() {
+    return buffer;
   }
 
+  public int getBufferLength() {
+    return bufferLength;
+  }
+
+  public void clearBuffer() {
+    bufferLength = 0;
+  }
+
+  /**
+   * Appends bytes to the shared buffer.
+   *
+   * @param bytes the bytes to append
+   * @param offset the offset in {@code bytes}
+   * @param length the number of bytes to append
+   */
+  public void buffer(byte[] bytes, int offset, int length) {
+    ensureBufferCapacity(bufferLength + length);
+    System.arraycopy(bytes, offset, buffer, bufferLength, length);
+    bufferLength += length;
+  }
+
+  /**
+   * Pushes a new tag. The caller should write the tag bytes after calling this method.
+   *
+   * @param tag the tag
+   */
   public void setTagProcessed(int tag) {
-    /* Length is set to MAX INT, we will update it when caller calls our setLengthProcessed. */
-    TLVStruct obj = new TLVStruct(tag);
-    if (!state.isEmpty()) {
-      TLVStruct parent = state.peek();
-      byte[] tagBytes = TLVUtil.getTagAsBytes(tag);
-      parent.write(tagBytes, 0, tagBytes.length);
+    if (depth > 0 && lengths[depth - 1] != UNKNOWN_LENGTH && valueBytesProcessed[depth - 1] == lengths[depth - 1]) {
+      /* Parent is an empty value, which is complete now that we're at the next tag. */
+      completeValues();
     }
-    state.push(obj);
+    if (isAtStartOfLength) {
+      /* Nested tag while the parent's length was not written, parent's length will be computed. */
+      setDummyLengthProcessed();
+    }
+    if (depth > 0) {
+      int tagLength = TLVUtil.getTagLength(tag);
+      checkBytesLeft(depth - 1, tagLength);
+      valueBytesProcessed[depth - 1] += tagLength;
+    }
+    ensureCapacity(depth + 1);
+    tags[depth] = tag;
+    lengths[depth] = UNKNOWN_LENGTH;
+    lengthOffsets[depth] = -1;
+    valueBytesProcessed[depth] = 0;
+    depth++;
     isAtStartOfTag = false;
     isAtStartOfLength = true;
     isReadingValue = false;
@@ -140,183 +203,202 @@ class TLVOutputState {
 
   /**
    * We've passed the length in the stream, but we don't know what it is yet...
+   * A placeholder for the length is reserved in the shared buffer.
    */
   public void setDummyLengthProcessed() {
+    if (!isAtStartOfLength) {
+      throw new IllegalStateException("Not at start of length.");
+    }
+    ensureBufferCapacity(bufferLength + 1);
+    lengthOffsets[depth - 1] = bufferLength;
+    bufferLength++;
+    unknownLengthCount++;
     isAtStartOfTag = false;
     isAtStartOfLength = false;
     isReadingValue = true;
-    /* NOTE: doesn't call setLength, so that isLengthSet in stackFrame will remain false. */
+    /* NOTE: doesn't set the length, so that the length of the current value remains unknown. */
   }
 
   public boolean isDummyLengthSet() {
-    if (state.isEmpty()) {
+    if (depth == 0) {
       return false;
     }
-    return !state.peek().isLengthSet();
+    return lengths[depth - 1] == UNKNOWN_LENGTH;
   }
 
+  /**
+   * Sets the length of the current tag. The caller should write the length bytes after calling this method.
+   *
+   * @param length the length
+   */
   public void setLengthProcessed(int length) {
     if (length < 0) {
       throw new IllegalArgumentException("Cannot set negative length (length = " + length + ").");
     }
-    TLVStruct obj = state.pop();
-    if (!state.isEmpty()) {
-      TLVStruct parent = state.peek();
-      byte[] lengthBytes = TLVUtil.getLengthAsBytes(length);
-      parent.write(lengthBytes, 0, lengthBytes.length);
+    if (!isAtStartOfLength) {
+      throw new IllegalStateException("Not at start of length.");
     }
-    obj.setLength(length);
-    state.push(obj);
+    if (depth > 1) {
+      int lengthLength = TLVUtil.getLengthLength(length);
+      checkBytesLeft(depth - 2, lengthLength + length);
+      valueBytesProcessed[depth - 2] += lengthLength;
+    }
+    lengths[depth - 1] = length;
     isAtStartOfTag = false;
     isAtStartOfLength = false;
     isReadingValue = true;
   }
 
-  public void updatePreviousLength(int byteCount) {
-    if (state.isEmpty()) {
+  /**
+   * Ends the current value, of which the length was not yet known.
+   * The length is filled in in the shared buffer.
+   * If there are no more values with unknown length after this, the caller should
+   * write the contents of the shared buffer and clear it.
+   */
+  public void setValueEnd() {
+    if (depth == 0) {
       return;
     }
-    TLVStruct currentObject = state.peek();
-
-    if (currentObject.isLengthSet && currentObject.getLength() == byteCount) {
+    int index = depth - 1;
+    if (lengths[index] != UNKNOWN_LENGTH) {
+      if (valueBytesProcessed[index] != lengths[index]) {
+        throw new IllegalStateException("Value bytes written (" + valueBytesProcessed[index] + ") do not match length (" + lengths[index] + ") of " + toString(index));
+      }
       return;
     }
-
-    currentObject.setLength(byteCount);
-
-    if (currentObject.getValueBytesProcessed() == currentObject.getLength()) {
-      /* Update parent. */
-      state.pop();
-      byte[] lengthBytes = TLVUtil.getLengthAsBytes(byteCount);
-      byte[] value = currentObject.getValue();
-      updateValueBytesProcessed(lengthBytes, 0, lengthBytes.length);
-      updateValueBytesProcessed(value, 0, value.length);
-      isAtStartOfTag = true;
-      isAtStartOfLength = false;
-      isReadingValue = false;
+    int length = valueBytesProcessed[index];
+    int lengthOffset = lengthOffsets[index];
+    int lengthLength = TLVUtil.getLengthLength(length);
+    int extraLength = lengthLength - 1;
+    if (extraLength > 0) {
+      /* Make room for the long form length. */
+      ensureBufferCapacity(bufferLength + extraLength);
+      System.arraycopy(buffer, lengthOffset + 1, buffer, lengthOffset + 1 + extraLength, length);
+      bufferLength += extraLength;
     }
+    TLVUtil.encodeLength(length, buffer, lengthOffset);
+    unknownLengthCount--;
+
+    depth--;
+    if (depth > 0) {
+      checkBytesLeft(depth - 1, lengthLength + length);
+      valueBytesProcessed[depth - 1] += lengthLength + length;
+      completeValues();
+    }
+    isAtStartOfTag = true;
+    isAtStartOfLength = false;
+    isReadingValue = false;
   }
 
-  public void updateValueBytesProcessed(byte[] bytes, int offset, int length) {
-    if (state.isEmpty()) {
+  /**
+   * Accounts for value bytes written in the current value.
+   *
+   * @param length the number of bytes
+   */
+  public void updateValueBytesProcessed(int length) {
+    if (depth == 0) {
       return;
     }
-    TLVStruct currentObject = state.peek();
-    int bytesLeft = currentObject.getLength() - currentObject.getValueBytesProcessed();
-    if (length > bytesLeft) {
-      throw new IllegalArgumentException("Cannot process " + length + " bytes! Only " + bytesLeft + " bytes left in this TLV object " + currentObject);
-    }
-    currentObject.write(bytes, offset, length);
-
-    if (currentObject.getValueBytesProcessed() == currentObject.getLength()) {
-      /* Stand back! I'm going to try recursion! Update parent(s)... */
-      state.pop();
-      updateValueBytesProcessed(currentObject.getValue(), 0, currentObject.getLength());
+    checkBytesLeft(depth - 1, length);
+    valueBytesProcessed[depth - 1] += length;
+    if (completeValues()) {
       isAtStartOfTag = true;
       isAtStartOfLength = false;
       isReadingValue = false;
     } else {
-      /* We already have these values?!? */
       isAtStartOfTag = false;
       isAtStartOfLength = false;
       isReadingValue = true;
     }
   }
 
-  public byte[] getValue() {
-    if (state.isEmpty()) {
-      throw new IllegalStateException("Cannot get value yet.");
-    }
-    return state.peek().getValue();
-  }
-
   @Override
   public String toString() {
-    return state.toString();
+    StringBuilder result = new StringBuilder("[");
+    for (int i = depth - 1; i >= 0; i--) {
+      result.append(toString(i));
+      if (i > 0) {
+        result.append(", ");
+      }
+    }
+    result.append("]");
+    return result.toString();
   }
 
   /*
    * TODO: ?? canBeWritten() <==> (state.size() == 1 && state.peek().isLengthSet()
    */
   public boolean canBeWritten() {
-    for (TLVStruct stackFrame : state) {
-      if (!stackFrame.isLengthSet()) {
-        return false;
-      }
-    }
-    return true;
-  }
-
-  private Deque<TLVStruct> getDeepCopyOfState() {
-    Deque<TLVStruct> newStack = new ArrayDeque<TLVStruct>(state.size());
-    for (TLVStruct tlvStruct: state) {
-      newStack.add(new TLVStruct(tlvStruct));
-    }
-    return newStack;
+    return unknownLengthCount == 0 && !isAtStartOfLength;
   }
 
-  private class TLVStruct {
-
-    private int tag;
-    private int length;
-    private boolean isLengthSet;
-    private ByteArrayOutputStream value;
-
-    public TLVStruct(TLVStruct original) {
-      this(original.tag, original.length, original.isLengthSet, original.getValue());
-    }
-
-    public TLVStruct(int tag) {
-      this(tag, Integer.MAX_VALUE, false, null);
-    }
-
-    public TLVStruct(int tag, int length, boolean isLengthSet, byte[] value) {
-      this.tag = tag;
-      this.length = length;
-      this.isLengthSet = isLengthSet;
-      this.value = new ByteArrayOutputStream();
-      if (value != null) {
-        try {
-          this.value.write(value);
-        } catch (IOException ioe) {
-          LOGGER.log(Level.FINE, "Exception writing bytes in memory", ioe);
-        }
+  /**
+   * Pops values with known length that are complete, and accounts for them in their parents.
+   *
+   * @return whether at least one value was completed
+   */
+  private boolean completeValues() {
+    boolean isCompleted = false;
+    while (depth > 0) {
+      int index = depth - 1;
+      if (lengths[index] == UNKNOWN_LENGTH || valueBytesProcessed[index] < lengths[index]) {
+        break;
+      }
+      depth--;
+      isCompleted = true;
+      if (depth > 0) {
+        /* Parent already accounted for tag and length bytes, add the value bytes. */
+        valueBytesProcessed[depth - 1] += lengths[index];
       }
     }
+    return isCompleted;
+  }
 
-    public void setLength(int length) {
-      this.length = length;
-      this.isLengthSet = true;
-    }
-
-    public int getTag() {
-      return tag;
-    }
-
-    public int getLength() {
-      return length;
-    }
+  private int getBytesLeft(int index) {
+    int length = lengths[index] == UNKNOWN_LENGTH ? Integer.MAX_VALUE : lengths[index];
+    return length - valueBytesProcessed[index];
+  }
 
-    public boolean isLengthSet() {
-      return isLengthSet;
+  private void checkBytesLeft(int index, int length) {
+    if (lengths[index] == UNKNOWN_LENGTH) {
+      return;
     }
-
-    public int getValueBytesProcessed() {
-      return value.size();
+    int bytesLeft = getBytesLeft(index);
+    if (length > bytesLeft) {
+      throw new IllegalArgumentException("Cannot process " + length + " bytes! Only " + bytesLeft + " bytes left in this TLV object " + toString(index));
     }
+  }
 
-    public byte[] getValue() {
-      return value.toByteArray();
-    }
+  private String toString(int index) {
+    return "[TLVStruct " + Integer.toHexString(tags[index]) + ", " + (lengths[index] == UNKNOWN_LENGTH ? "UNDEFINED" : Integer.toString(lengths[index])) + ", " + valueBytesProcessed[index] + "]";
+  }
 
-    public void write(byte[] bytes, int offset, int length) {
-      value.write(bytes, offset, length);
+  private void ensureCapacity(int capacity) {
+    if (capacity <= tags.length) {
+      return;
     }
+    int newCapacity = Math.max(capacity, 2 * tags.length);
+    int[] newTags = new int[newCapacity];
+    int[] newLengths = new int[newCapacity];
+    int[] newLengthOffsets = new int[newCapacity];
+    int[] newValueBytesProcessed = new int[newCapacity];
+    System.arraycopy(tags, 0, newTags, 0, depth);
+    System.arraycopy(lengths, 0, newLengths, 0, depth);
+    System.arraycopy(lengthOffsets, 0, newLengthOffsets, 0, depth);
+    System.arraycopy(valueBytesProcessed, 0, newValueBytesProcessed, 0, depth);
+    tags = newTags;
+    lengths = newLengths;
+    lengthOffsets = newLengthOffsets;
+    valueBytesProcessed = newValueBytesProcessed;
+  }
 
-    @Override
-    public String toString() {
-      byte[] valueBytes = value.toByteArray();
-      return "[TLVStruct " + Integer.toHexString(tag) + ", " + (isLengthSet ? length : "UNDEFINED") + ", " + Hex.bytesToHexString(valueBytes) + "(" + valueBytes.length + ") ]";
+  private void ensureBufferCapacity(int capacity) {
+    if (capacity <= buffer.length) {
+      return;
     }
+    int newCapacity = Math.max(capacity, 2 * buffer.length);
+    byte[] newBuffer = new byte[newCapacity];
+    System.arraycopy(buffer, 0, newBuffer, 0, bufferLength);
+    buffer = newBuffer;
   }
 }
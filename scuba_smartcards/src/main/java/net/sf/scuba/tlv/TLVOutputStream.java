@@ -53,6 +53,9 @@ public class TLVOutputStream extends OutputStream {
   private DataOutputStream outputStream;
   private TLVOutputState state;
 
+  /** Scratch space for encoding tags, lengths, and single bytes. */
+  private final byte[] encodingBuffer;
+
   /**
    * Constructs a TLV output-stream by wrapping an existing output-stream.
    *
@@ -61,6 +64,7 @@ public class TLVOutputStream extends OutputStream {
   public TLVOutputStream(OutputStream outputStream) {
     this.outputStream = outputStream instanceof DataOutputStream ? (DataOutputStream)outputStream : new DataOutputStream(outputStream);
     this.state = new TLVOutputState();
+    this.encodingBuffer = new byte[Math.max(TLVUtil.MAX_TAG_LENGTH, TLVUtil.MAX_LENGTH_LENGTH)];
   }
 
   /**
@@ -71,11 +75,9 @@ public class TLVOutputStream extends OutputStream {
    * @throws IOException on error writing to the underlying output-stream
    */
   public void writeTag(int tag) throws IOException {
-    byte[] tagAsBytes = TLVUtil.getTagAsBytes(tag);
-    if (state.canBeWritten()) {
-      outputStream.write(tagAsBytes);
-    }
     state.setTagProcessed(tag);
+    int tagLength = TLVUtil.encodeTag(tag, encodingBuffer, 0);
+    emit(encodingBuffer, 0, tagLength);
   }
 
   /**
@@ -86,11 +88,9 @@ public class TLVOutputStream extends OutputStream {
    * @throws IOException on error writing to the underlying output-stream
    */
   public void writeLength(int length) throws IOException {
-    byte[] lengthAsBytes = TLVUtil.getLengthAsBytes(length);
     state.setLengthProcessed(length);
-    if (state.canBeWritten()) {
-      outputStream.write(lengthAsBytes);
-    }
+    int lengthLength = TLVUtil.encodeLength(length, encodingBuffer, 0);
+    emit(encodingBuffer, 0, lengthLength);
   }
 
   /**
@@ -112,11 +112,10 @@ public class TLVOutputStream extends OutputStream {
     }
     if (state.isAtStartOfLength()) {
       writeLength(value.length);
-      write(value);
-    } else {
-      write(value);
-      state.updatePreviousLength(value.length);
+    } else if (state.isProcessingValue() && !state.isDummyLengthSet() && state.getValueBytesLeft() != value.length) {
+      throw new IllegalArgumentException("Cannot write value of " + value.length + " bytes, " + state.getValueBytesLeft() + " bytes left in current value.");
     }
+    write(value);
   }
 
   /**
@@ -130,7 +129,8 @@ public class TLVOutputStream extends OutputStream {
    */
   @Override
   public void write(int b) throws IOException {
-    write(new byte[]{ (byte)b }, 0, 1);
+    encodingBuffer[0] = (byte)b;
+    write(encodingBuffer, 0, 1);
   }
 
   /**
@@ -167,10 +167,8 @@ public class TLVOutputStream extends OutputStream {
     if (state.isAtStartOfLength()) {
       state.setDummyLengthProcessed();
     }
-    state.updateValueBytesProcessed(bytes, offset, length);
-    if (state.canBeWritten()) {
-      outputStream.write(bytes, offset, length);
-    }
+    state.updateValueBytesProcessed(length);
+    emit(bytes, offset, length);
   }
 
   /**
@@ -186,13 +184,11 @@ public class TLVOutputStream extends OutputStream {
     if (state.isAtStartOfTag() && !state.isDummyLengthSet()) {
       return; /* TODO: check if this case ever happens. */
     }
-    byte[] bufferedValueBytes = state.getValue();
-    int length = bufferedValueBytes.length;
-    state.updatePreviousLength(length);
-    if (state.canBeWritten()) {
-      byte[] lengthAsBytes = TLVUtil.getLengthAsBytes(length);
-      outputStream.write(lengthAsBytes);
-      outputStream.write(bufferedValueBytes);
+    state.setValueEnd();
+    if (!state.isBuffering() && state.getBufferLength() > 0) {
+      /* Outermost value with unknown length was completed. */
+      outputStream.write(state.getBuffer(), 0, state.getBufferLength());
+      state.clearBuffer();
     }
   }
 
@@ -220,4 +216,22 @@ public class TLVOutputStream extends OutputStream {
     }
     outputStream.close();
   }
+
+  /**
+   * Writes bytes to the shared buffer while the length of an enclosing value is not yet known,
+   * or directly to the underlying output-stream otherwise.
+   *
+   * @param bytes the bytes to write
+   * @param offset the offset
+   * @param length the number of bytes to write
+   *
+   * @throws IOException on error writing to the underlying output-stream
+   */
+  private void emit(byte[] bytes, int offset, int length) throws IOException {
+    if (state.isBuffering()) {
+      state.buffer(bytes, offset, length);
+    } else {
+      outputStream.write(bytes, offset, length);
+    }
+  }
 }
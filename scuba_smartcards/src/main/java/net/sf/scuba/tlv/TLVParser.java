@@ -0,0 +1,337 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A push-style parser for TLV structures.
+ * Contrary to {@link TLVInputStream}, the parser does not block waiting for input.
+ * Instead the caller feeds it chunks of arbitrary size, for instance
+ * the responses to consecutive READ BINARY commands. Elements are reported to
+ * a {@link TLVListener} as soon as they are complete, so decoding can overlap with
+ * reading and the caller can stop reading once the elements it needs have been seen.
+ *
+ * Like {@link TLVInputStream}, the parser skips {@code 0x00} and {@code 0xFF}
+ * padding bytes in front of tags.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class TLVParser {
+
+  /* 64K ought to be enough for anybody. */
+  private static final int MAX_BUFFER_LENGTH = 65535;
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  /* Where we are in the current element. */
+  private static final int STATE_TAG = 0;
+  private static final int STATE_TAG_CONTINUED = 1;
+  private static final int STATE_LENGTH = 2;
+  private static final int STATE_LENGTH_CONTINUED = 3;
+  private static final int STATE_VALUE = 4;
+
+  private final TLVListener listener;
+
+  /** Lengths larger than this are rejected. */
+  private final int maxValueLength;
+
+  private int state;
+
+  /* The element currently being parsed. */
+  private int tag;
+  private int headerLength;
+  private int length;
+  private int lengthBytesLeft;
+
+  /* The value of the current primitive element, as far as it has been parsed. */
+  private byte[] value;
+  private int valueLength;
+
+  /* The open constructed elements, index depth - 1 is the innermost. */
+  private int[] tags;
+  private int[] bytesLeft;
+  private int depth;
+
+  private boolean isStopped;
+
+  /**
+   * Constructs a parser that reports to the given listener.
+   *
+   * @param listener the listener
+   */
+  public TLVParser(TLVListener listener) {
+    this(listener, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Constructs a parser that reports to the given listener, and which rejects
+   * elements with a length larger than {@code maxValueLength}.
+   *
+   * @param listener the listener
+   * @param maxValueLength the maximum length of a value
+   */
+  public TLVParser(TLVListener listener, int maxValueLength) {
+    if (listener == null) {
+      throw new IllegalArgumentException("Listener cannot be null");
+    }
+    if (maxValueLength < 0) {
+      throw new IllegalArgumentException("Cannot set negative maximum length (length = " + maxValueLength + ")");
+    }
+    this.listener = listener;
+    this.maxValueLength = maxValueLength;
+    this.tags = new int[INITIAL_CAPACITY];
+    this.bytesLeft = new int[INITIAL_CAPACITY];
+    this.depth = 0;
+    this.state = STATE_TAG;
+    this.isStopped = false;
+  }
+
+  /**
+   * Parses a chunk of bytes. Elements completed by this chunk are reported
+   * to the listener before this method returns. Bytes of incomplete elements
+   * are kept until the next chunk.
+   *
+   * @param bytes the bytes
+   *
+   * @throws IOException if the bytes are not a valid continuation of the TLV structure
+   */
+  public void feed(byte[] bytes) throws IOException {
+    feed(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Parses a chunk of bytes. Elements completed by this chunk are reported
+   * to the listener before this method returns. Bytes of incomplete elements
+   * are kept until the next chunk.
+   *
+   * @param bytes the bytes
+   * @param offset the offset of the chunk within {@code bytes}
+   * @param length the length of the chunk
+   *
+   * @throws IOException if the bytes are not a valid continuation of the TLV structure
+   */
+  public void feed(byte[] bytes, int offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException("Illegal region (offset = " + offset + ", length = " + length + ")");
+    }
+    int end = offset + length;
+    while (offset < end && !isStopped) {
+      if (state == STATE_VALUE) {
+        offset += parseValue(bytes, offset, end - offset);
+      } else {
+        parseHeaderByte(bytes[offset++] & 0xFF);
+      }
+    }
+  }
+
+  /**
+   * Stops parsing. Bytes fed after this are ignored.
+   * Typically called from the listener once the elements of interest have been seen.
+   */
+  public void stop() {
+    isStopped = true;
+  }
+
+  /**
+   * Whether {@link #stop()} has been called.
+   *
+   * @return whether parsing was stopped
+   */
+  public boolean isStopped() {
+    return isStopped;
+  }
+
+  /**
+   * Whether the bytes fed thus far form complete top-level elements.
+   *
+   * @return whether the parser is not inside an element
+   */
+  public boolean isComplete() {
+    return depth == 0 && state == STATE_TAG && headerLength == 0;
+  }
+
+  /**
+   * The number of constructed elements that have been started but not ended.
+   *
+   * @return the nesting depth
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Signals the end of input.
+   *
+   * @throws EOFException if the input ended inside an element
+   */
+  public void close() throws EOFException {
+    if (!isStopped && !isComplete()) {
+      throw new EOFException("Truncated TLV structure (depth = " + depth + ")");
+    }
+  }
+
+  private void parseHeaderByte(int b) throws IOException {
+    switch (state) {
+      case STATE_TAG:
+        headerLength++;
+        if (b == 0x00 || b == 0xFF) {
+          /* Skip padding, but account for it in the parent. */
+          if (depth > 0) {
+            checkBytesLeft(headerLength);
+            bytesLeft[depth - 1] -= headerLength;
+            headerLength = 0;
+            endElements();
+          } else {
+            headerLength = 0;
+          }
+          return;
+        }
+        tag = b;
+        state = (b & 0x1F) == 0x1F ? STATE_TAG_CONTINUED : STATE_LENGTH;
+        return;
+      case STATE_TAG_CONTINUED:
+        headerLength++;
+        tag = (tag << 8) | (b & 0x7F);
+        if ((b & 0x80) == 0x00) {
+          state = STATE_LENGTH;
+        }
+        return;
+      case STATE_LENGTH:
+        headerLength++;
+        if ((b & 0x80) == 0x00) {
+          /* short form */
+          length = b;
+          startValue();
+        } else {
+          /* long form, the indefinite form (no length bytes) is not supported */
+          length = 0;
+          lengthBytesLeft = b & 0x7F;
+          if (lengthBytesLeft == 0) {
+            throw new IOException("Indefinite length not supported for tag " + Integer.toHexString(tag));
+          }
+          if (lengthBytesLeft > 4) {
+            throw new IOException("Too many length bytes (" + lengthBytesLeft + ") for tag " + Integer.toHexString(tag));
+          }
+          state = STATE_LENGTH_CONTINUED;
+        }
+        return;
+      case STATE_LENGTH_CONTINUED:
+        headerLength++;
+        length = (length << 8) | b;
+        lengthBytesLeft--;
+        if (lengthBytesLeft == 0) {
+          startValue();
+        }
+        return;
+      default:
+        throw new IllegalStateException("Unexpected state " + state);
+    }
+  }
+
+  /**
+   * Called when tag and length of the current element have been parsed.
+   */
+  private void startValue() throws IOException {
+    if (length < 0) {
+      throw new IOException("Negative length (length = " + length + ", 0x" + Integer.toHexString(length) + " for tag " + Integer.toHexString(tag) + ")");
+    }
+    if (length > maxValueLength) {
+      throw new IOException("Length " + length + " of tag " + Integer.toHexString(tag) + " exceeds maximum length " + maxValueLength);
+    }
+    if (depth > 0) {
+      checkBytesLeft((long)headerLength + length);
+      bytesLeft[depth - 1] -= headerLength + length;
+    }
+    headerLength = 0;
+    if (!TLVUtil.isPrimitive(tag)) {
+      ensureCapacity(depth + 1);
+      tags[depth] = tag;
+      bytesLeft[depth] = length;
+      depth++;
+      state = STATE_TAG;
+      listener.startElement(tag, length);
+      endElements();
+    } else if (length == 0) {
+      state = STATE_TAG;
+      listener.primitiveValue(tag, new byte[0]);
+      endElements();
+    } else {
+      value = new byte[Math.min(length, MAX_BUFFER_LENGTH)];
+      valueLength = 0;
+      state = STATE_VALUE;
+    }
+  }
+
+  /**
+   * Copies value bytes of the current primitive element.
+   *
+   * @return the number of bytes consumed
+   */
+  private int parseValue(byte[] bytes, int offset, int count) {
+    int n = Math.min(count, length - valueLength);
+    if (valueLength + n > value.length) {
+      value = Arrays.copyOf(value, (int)Math.min(length, Math.max(valueLength + n, 2L * value.length)));
+    }
+    System.arraycopy(bytes, offset, value, valueLength, n);
+    valueLength += n;
+    if (valueLength == length) {
+      byte[] completeValue = value;
+      value = null;
+      state = STATE_TAG;
+      listener.primitiveValue(tag, completeValue);
+      endElements();
+    }
+    return n;
+  }
+
+  /**
+   * Ends the constructed elements of which all bytes have been parsed.
+   */
+  private void endElements() {
+    while (depth > 0 && bytesLeft[depth - 1] == 0 && !isStopped) {
+      depth--;
+      listener.endElement(tags[depth]);
+    }
+  }
+
+  private void checkBytesLeft(long byteCount) throws IOException {
+    if (byteCount > bytesLeft[depth - 1]) {
+      throw new IOException("Element of " + byteCount + " bytes does not fit, only " + bytesLeft[depth - 1] + " bytes left in tag " + Integer.toHexString(tags[depth - 1]));
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= tags.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, 2 * tags.length);
+    tags = Arrays.copyOf(tags, newCapacity);
+    bytesLeft = Arrays.copyOf(bytesLeft, newCapacity);
+  }
+}
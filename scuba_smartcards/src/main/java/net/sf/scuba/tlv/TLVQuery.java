@@ -0,0 +1,283 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of tag paths, compiled once, that can be used to extract the values of
+ * the elements with those paths from many TLV structures.
+ *
+ * The paths are compiled into a tree of tags. Extraction walks the structure once
+ * with a {@link TLVCursor}. Elements whose tag does not continue any of the paths are
+ * skipped without descending into them, and only constructed elements
+ * (see {@link TLVUtil#isPrimitive(int)}) are descended into.
+ * Paths are absolute, the first tag of a path is a top level tag.
+ *
+ * A query is immutable once compiled and can be shared between threads.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class TLVQuery {
+
+  private static final int INITIAL_MAX_DEPTH = 8;
+
+  private final int pathCount;
+
+  /* Per node of the tree, node 0 is the root. */
+  private final int[] firstChildren;
+  private final int[] childCounts;
+  private final int[] terminalPaths;
+
+  /* The tags and nodes of the children, indexed from firstChildren. */
+  private final int[] childTags;
+  private final int[] childNodes;
+
+  /**
+   * Compiles a query from tag paths.
+   *
+   * @param paths the tag paths, each outermost tag first
+   */
+  public TLVQuery(int[]... paths) {
+    if (paths.length == 0) {
+      throw new IllegalArgumentException("No paths");
+    }
+    this.pathCount = paths.length;
+
+    /* Build the tree with a list of children per node, then flatten. */
+    List<int[]> nodeChildren = new ArrayList<int[]>();
+    List<Integer> nodeTerminals = new ArrayList<Integer>();
+    nodeChildren.add(new int[0]);
+    nodeTerminals.add(-1);
+    int[] nodeTags = new int[1];
+    for (int pathIndex = 0; pathIndex < paths.length; pathIndex++) {
+      int[] path = paths[pathIndex];
+      if (path.length == 0) {
+        throw new IllegalArgumentException("Empty path at index " + pathIndex);
+      }
+      int node = 0;
+      for (int tag: path) {
+        int[] children = nodeChildren.get(node);
+        int child = -1;
+        for (int c: children) {
+          if (nodeTags[c] == tag) {
+            child = c;
+            break;
+          }
+        }
+        if (child < 0) {
+          child = nodeChildren.size();
+          nodeChildren.add(new int[0]);
+          nodeTerminals.add(-1);
+          if (child == nodeTags.length) {
+            nodeTags = Arrays.copyOf(nodeTags, 2 * nodeTags.length);
+          }
+          nodeTags[child] = tag;
+          children = Arrays.copyOf(children, children.length + 1);
+          children[children.length - 1] = child;
+          nodeChildren.set(node, children);
+        }
+        node = child;
+      }
+      if (nodeTerminals.get(node) >= 0) {
+        throw new IllegalArgumentException("Duplicate path at index " + pathIndex);
+      }
+      nodeTerminals.set(node, pathIndex);
+    }
+
+    int nodeCount = nodeChildren.size();
+    this.firstChildren = new int[nodeCount];
+    this.childCounts = new int[nodeCount];
+    this.terminalPaths = new int[nodeCount];
+    this.childTags = new int[nodeCount - 1];
+    this.childNodes = new int[nodeCount - 1];
+    int childIndex = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      int[] children = nodeChildren.get(node);
+      firstChildren[node] = childIndex;
+      childCounts[node] = children.length;
+      terminalPaths[node] = nodeTerminals.get(node);
+      for (int child: children) {
+        childTags[childIndex] = nodeTags[child];
+        childNodes[childIndex] = child;
+        childIndex++;
+      }
+    }
+  }
+
+  /**
+   * Compiles a query from tag paths such as {@code "0x61/0x5F1F"}.
+   *
+   * @param paths the tag paths, as accepted by {@link TLVIndex#parsePath(String)}
+   *
+   * @return the compiled query
+   */
+  public static TLVQuery compile(String... paths) {
+    int[][] parsedPaths = new int[paths.length][];
+    for (int i = 0; i < paths.length; i++) {
+      parsedPaths[i] = TLVIndex.parsePath(paths[i]);
+    }
+    return new TLVQuery(parsedPaths);
+  }
+
+  /**
+   * Returns the number of paths in this query.
+   *
+   * @return the number of paths
+   */
+  public int getPathCount() {
+    return pathCount;
+  }
+
+  /**
+   * Extracts the value of the first element with each path.
+   * Stops walking the structure as soon as all paths have been found.
+   *
+   * @param bytes the encoded TLV structure(s)
+   *
+   * @return slices of the values, indexed like the paths, {@code null} for paths that were not found
+   */
+  public ByteBuffer[] extract(byte[] bytes) {
+    return extract(new TLVCursor(bytes));
+  }
+
+  /**
+   * Extracts the value of the first element with each path.
+   * Stops walking the structure as soon as all paths have been found.
+   * The position and limit of the buffer are not changed.
+   *
+   * @param buffer the buffer containing the encoded TLV structure(s)
+   *
+   * @return slices of the values, indexed like the paths, {@code null} for paths that were not found
+   */
+  public ByteBuffer[] extract(ByteBuffer buffer) {
+    return extract(new TLVCursor(buffer));
+  }
+
+  /**
+   * Extracts the values of all elements with each path.
+   *
+   * @param bytes the encoded TLV structure(s)
+   *
+   * @return slices of the values in document order, a (possibly empty) list for each path
+   */
+  public List<List<ByteBuffer>> extractAll(byte[] bytes) {
+    return extractAll(new TLVCursor(bytes));
+  }
+
+  /**
+   * Extracts the values of all elements with each path.
+   * The position and limit of the buffer are not changed.
+   *
+   * @param buffer the buffer containing the encoded TLV structure(s)
+   *
+   * @return slices of the values in document order, a (possibly empty) list for each path
+   */
+  public List<List<ByteBuffer>> extractAll(ByteBuffer buffer) {
+    return extractAll(new TLVCursor(buffer));
+  }
+
+  @Override
+  public String toString() {
+    return "[TLVQuery " + pathCount + " paths]";
+  }
+
+  private List<List<ByteBuffer>> extractAll(TLVCursor cursor) {
+    List<List<ByteBuffer>> result = new ArrayList<List<ByteBuffer>>(pathCount);
+    for (int i = 0; i < pathCount; i++) {
+      result.add(new ArrayList<ByteBuffer>());
+    }
+    walk(cursor, null, result);
+    return result;
+  }
+
+  private ByteBuffer[] extract(TLVCursor cursor) {
+    ByteBuffer[] result = new ByteBuffer[pathCount];
+    walk(cursor, result, null);
+    return result;
+  }
+
+  /**
+   * Walks the structure, collecting either the first match for each path
+   * (in {@code firstMatches}) or all matches (in {@code allMatches}).
+   */
+  private void walk(TLVCursor cursor, ByteBuffer[] firstMatches, List<List<ByteBuffer>> allMatches) {
+    int matchCount = 0;
+    int[] parentNodes = new int[INITIAL_MAX_DEPTH];
+    int node = 0;
+    while (true) {
+      if (!cursor.next()) {
+        int depth = cursor.getDepth();
+        if (depth == 0) {
+          return;
+        }
+        cursor.exit();
+        node = parentNodes[depth - 1];
+        continue;
+      }
+      int child = findChild(node, cursor.getTag());
+      if (child < 0) {
+        /* Not on any path, skip the subtree. */
+        continue;
+      }
+      int pathIndex = terminalPaths[child];
+      if (pathIndex >= 0) {
+        if (allMatches != null) {
+          allMatches.get(pathIndex).add(cursor.getValue());
+        } else if (firstMatches[pathIndex] == null) {
+          firstMatches[pathIndex] = cursor.getValue();
+          matchCount++;
+          if (matchCount == pathCount) {
+            return;
+          }
+        }
+      }
+      if (childCounts[child] > 0 && !cursor.isPrimitive()) {
+        int depth = cursor.getDepth();
+        if (depth == parentNodes.length) {
+          parentNodes = Arrays.copyOf(parentNodes, 2 * parentNodes.length);
+        }
+        parentNodes[depth] = node;
+        node = child;
+        cursor.enter();
+      }
+    }
+  }
+
+  private int findChild(int node, int tag) {
+    int first = firstChildren[node];
+    int end = first + childCounts[node];
+    for (int i = first; i < end; i++) {
+      if (childTags[i] == tag) {
+        return childNodes[i];
+      }
+    }
+    return -1;
+  }
+}
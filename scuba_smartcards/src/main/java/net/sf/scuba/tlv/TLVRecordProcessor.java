@@ -0,0 +1,53 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Processes a single record of a {@link TLVArchive}.
+ * Implementations are called concurrently from several threads.
+ *
+ * @param <T> the type of the result for each record
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public interface TLVRecordProcessor<T> {
+
+  /**
+   * Processes a record.
+   *
+   * @param index the index of the record in the archive
+   * @param record the encoded record (tag, length, and value), position 0 and
+   *               limit equal to the length of the encoding
+   *
+   * @return the result for this record
+   *
+   * @throws IOException if processing fails
+   */
+  T process(int index, ByteBuffer record) throws IOException;
+}
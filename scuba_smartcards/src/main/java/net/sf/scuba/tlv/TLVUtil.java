@@ -25,6 +25,7 @@ package net.sf.scuba.tlv;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,30 +40,77 @@ import java.util.logging.Logger;
  */
 public class TLVUtil implements ASN1Constants {
 
+  /** The maximum number of bytes of an encoded tag. */
+  public static final int MAX_TAG_LENGTH = 4;
+
+  /** The maximum number of bytes of an encoded length. */
+  public static final int MAX_LENGTH_LENGTH = 5;
+
   private static final Logger LOGGER = Logger.getLogger("net.sf.scuba.tlv");
 
+  /**
+   * Precomputed properties of the leading tag byte, indexed by that byte.
+   * For single byte tags this is the tag itself.
+   * Bits 0-1 encode the tag class, bit 2 is set for primitive tags.
+   */
+  private static final byte[] LEADING_TAG_BYTE_TABLE = new byte[256];
+  static {
+    for (int b = 0; b < 256; b++) {
+      int tagClass = (b & 0xC0) >> 6; /* UNIVERSAL_CLASS, APPLICATION_CLASS, CONTEXT_SPECIFIC_CLASS, or PRIVATE_CLASS */
+      int primitiveBit = (b & 0x20) == 0x00 ? 0x04 : 0x00;
+      LEADING_TAG_BYTE_TABLE[b] = (byte)(tagClass | primitiveBit);
+    }
+  }
+
   /** Hide from public interface. */
   private TLVUtil() {
   }
 
   public static boolean isPrimitive(int tag) {
-    int i = 3;
-    for (; i >= 0; i--) {
-      int mask = (0xFF << (8 * i));
-      if ((tag & mask) != 0x00) {
-        break;
-      }
-    }
-    int msByte = (((tag & (0xFF << (8 * i))) >> (8 * i)) & 0xFF);
-    return ((msByte & 0x20) == 0x00);
+    return (LEADING_TAG_BYTE_TABLE[getLeadingTagByte(tag)] & 0x04) != 0x00;
   }
 
+  /**
+   * The number of bytes of the encoded tag.
+   *
+   * @param tag the tag
+   *
+   * @return the number of bytes needed to encode the tag
+   */
   public static int getTagLength(int tag) {
-    return getTagAsBytes(tag).length;
+    if ((tag & 0xFFFFFF00) == 0) {
+      return 1;
+    } else if ((tag & 0xFFFF0000) == 0) {
+      return 2;
+    } else if ((tag & 0xFF000000) == 0) {
+      return 3;
+    } else {
+      return 4;
+    }
   }
 
+  /**
+   * The number of bytes of the encoded length.
+   *
+   * @param length the length
+   *
+   * @return the number of bytes needed to encode the length
+   */
   public static int getLengthLength(int length) {
-    return getLengthAsBytes(length).length;
+    if (length < 0) {
+      throw new IllegalArgumentException("Cannot encode negative length (length = " + length + ")");
+    } else if (length < 0x80) {
+      /* short form */
+      return 1;
+    } else if (length <= 0xFF) {
+      return 2;
+    } else if (length <= 0xFFFF) {
+      return 3;
+    } else if (length <= 0xFFFFFF) {
+      return 4;
+    } else {
+      return 5;
+    }
   }
 
   /**
@@ -73,30 +121,8 @@ public class TLVUtil implements ASN1Constants {
    * @return the tag bytes of this object.
    */
   public static byte[] getTagAsBytes(int tag) {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    int byteCount = (int)(Math.log(tag) / Math.log(256)) + 1;
-    for (int i = 0; i < byteCount; i++) {
-      int pos = 8 * (byteCount - i - 1);
-      out.write((tag & (0xFF << pos)) >> pos);
-    }
-    byte[] tagBytes = out.toByteArray();
-    switch (getTagClass(tag)) {
-      case APPLICATION_CLASS:
-        tagBytes[0] |= 0x40;
-        break;
-      case CONTEXT_SPECIFIC_CLASS:
-        tagBytes[0] |= 0x80;
-        break;
-      case PRIVATE_CLASS:
-        tagBytes[0] |= 0xC0;
-        break;
-      default:
-        /* NOTE: Unsupported tag class. Now what? */
-        break;
-    }
-    if (!isPrimitive(tag)) {
-      tagBytes[0] |= 0x20;
-    }
+    byte[] tagBytes = new byte[getTagLength(tag)];
+    encodeTag(tag, tagBytes, 0);
     return tagBytes;
   }
 
@@ -108,19 +134,89 @@ public class TLVUtil implements ASN1Constants {
    * @return length of encoded value as bytes
    */
   public static byte[] getLengthAsBytes(int length) {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    if (length < 0x80) {
+    byte[] lengthBytes = new byte[getLengthLength(length)];
+    encodeLength(length, lengthBytes, 0);
+    return lengthBytes;
+  }
+
+  /**
+   * Encodes a tag into a caller supplied array.
+   * At most {@link #MAX_TAG_LENGTH} bytes are written.
+   *
+   * @param tag the tag
+   * @param dest the destination array
+   * @param offset the offset in the destination array
+   *
+   * @return the number of bytes written
+   */
+  public static int encodeTag(int tag, byte[] dest, int offset) {
+    int byteCount = getTagLength(tag);
+    for (int i = 0; i < byteCount; i++) {
+      dest[offset + i] = (byte)(tag >>> (8 * (byteCount - i - 1)));
+    }
+    return byteCount;
+  }
+
+  /**
+   * Encodes a tag into a caller supplied buffer, at the buffer's position.
+   *
+   * @param tag the tag
+   * @param dest the destination buffer
+   *
+   * @return the number of bytes written
+   */
+  public static int encodeTag(int tag, ByteBuffer dest) {
+    int byteCount = getTagLength(tag);
+    for (int i = 0; i < byteCount; i++) {
+      dest.put((byte)(tag >>> (8 * (byteCount - i - 1))));
+    }
+    return byteCount;
+  }
+
+  /**
+   * Encodes a length into a caller supplied array.
+   * At most {@link #MAX_LENGTH_LENGTH} bytes are written.
+   *
+   * @param length the length
+   * @param dest the destination array
+   * @param offset the offset in the destination array
+   *
+   * @return the number of bytes written
+   */
+  public static int encodeLength(int length, byte[] dest, int offset) {
+    int byteCount = getLengthLength(length);
+    if (byteCount == 1) {
       /* short form */
-      out.write(length);
-    } else {
-      int byteCount = log(length, 256);
-      out.write(0x80 | byteCount);
-      for (int i = 0; i < byteCount; i++) {
-        int pos = 8 * (byteCount - i - 1);
-        out.write((length & (0xFF << pos)) >> pos);
-      }
+      dest[offset] = (byte)length;
+      return 1;
     }
-    return out.toByteArray();
+    dest[offset] = (byte)(0x80 | (byteCount - 1));
+    for (int i = 1; i < byteCount; i++) {
+      dest[offset + i] = (byte)(length >>> (8 * (byteCount - i - 1)));
+    }
+    return byteCount;
+  }
+
+  /**
+   * Encodes a length into a caller supplied buffer, at the buffer's position.
+   *
+   * @param length the length
+   * @param dest the destination buffer
+   *
+   * @return the number of bytes written
+   */
+  public static int encodeLength(int length, ByteBuffer dest) {
+    int byteCount = getLengthLength(length);
+    if (byteCount == 1) {
+      /* short form */
+      dest.put((byte)length);
+      return 1;
+    }
+    dest.put((byte)(0x80 | (byteCount - 1)));
+    for (int i = 1; i < byteCount; i++) {
+      dest.put((byte)(length >>> (8 * (byteCount - i - 1))));
+    }
+    return byteCount;
   }
 
   /**
@@ -198,33 +294,17 @@ public class TLVUtil implements ASN1Constants {
   }
 
   static int getTagClass(int tag) {
-    int i = 3;
-    for (; i >= 0; i--) {
-      int mask = (0xFF << (8 * i));
-      if ((tag & mask) != 0x00) {
-        break;
-      }
-    }
-    int msByte = (((tag & (0xFF << (8 * i))) >> (8 * i)) & 0xFF);
-    switch (msByte & 0xC0) {
-      case 0x00:
-        return UNIVERSAL_CLASS;
-      case 0x40:
-        return APPLICATION_CLASS;
-      case 0x80:
-        return CONTEXT_SPECIFIC_CLASS;
-      case 0xC0:
-      default:
-        return PRIVATE_CLASS;
-    }
+    return LEADING_TAG_BYTE_TABLE[getLeadingTagByte(tag)] & 0x03;
   }
 
-  private static int log(int n, int base) {
-    int result = 0;
-    while (n > 0) {
-      n = n / base;
-      result ++;
-    }
-    return result;
+  /**
+   * The most significant non-zero byte of the tag, which holds the class and the primitive/constructed bit.
+   *
+   * @param tag the tag
+   *
+   * @return the leading tag byte
+   */
+  private static int getLeadingTagByte(int tag) {
+    return (tag >>> (8 * (getTagLength(tag) - 1))) & 0xFF;
   }
 }
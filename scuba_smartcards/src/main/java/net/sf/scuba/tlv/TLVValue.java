@@ -0,0 +1,114 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.tlv;
+
+import java.util.Date;
+
+import net.sf.scuba.util.Hex;
+
+/**
+ * The value of a primitive TLV element, which is interpreted according to its
+ * (universal) tag when first accessed. The interpreted value is cached.
+ *
+ * Strings are decoded with the character set of their type, and UTCTime
+ * and GeneralizedTime values are parsed into {@code java.util.Date}s.
+ * Values of other types, and values that cannot be interpreted, are
+ * represented by their bytes.
+ *
+ * Instances are thread-safe.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+public class TLVValue {
+
+  /** Marks a value that was not interpreted yet. */
+  private static final Object NOT_DECODED = new Object();
+
+  private final int tag;
+  private final byte[] valueBytes;
+
+  /* Benign race, at worst two threads both interpret the value. */
+  private volatile Object value;
+
+  /**
+   * Constructs a value.
+   *
+   * @param tag the tag of the element
+   * @param valueBytes the value bytes of the element, not copied
+   */
+  public TLVValue(int tag, byte[] valueBytes) {
+    if (valueBytes == null) {
+      throw new IllegalArgumentException("Value bytes cannot be null");
+    }
+    this.tag = tag;
+    this.valueBytes = valueBytes;
+    this.value = NOT_DECODED;
+  }
+
+  public int getTag() {
+    return tag;
+  }
+
+  /**
+   * Returns the value bytes.
+   *
+   * @return a copy of the value bytes
+   */
+  public byte[] getValueBytes() {
+    return valueBytes.clone();
+  }
+
+  /**
+   * Returns the interpreted value, such as a {@code String} or a
+   * {@code java.util.Date}, or the value bytes for uninterpreted types.
+   *
+   * @return the interpreted value
+   */
+  public Object getValue() {
+    Object result = value;
+    if (result == NOT_DECODED) {
+      result = ASN1Util.interpretPrimitiveValue(tag, valueBytes);
+      value = result;
+    }
+    /* Don't hand out the cached mutable objects. */
+    if (result instanceof byte[]) {
+      return ((byte[])result).clone();
+    } else if (result instanceof Date) {
+      return ((Date)result).clone();
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    if (value == NOT_DECODED) {
+      getValue();
+    }
+    Object result = value;
+    String valueString = result instanceof byte[] ? "0x" + Hex.bytesToHexString((byte[])result) : result.toString();
+    return ASN1Util.tagToString(tag) + " " + valueString;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.AsyncCardService;
+import net.sf.scuba.smartcards.CardOperation;
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+public class AsyncCardServiceTest extends TestCase {
+
+  public void testSerialized() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    BlockingCardService service = new BlockingCardService(latch);
+    AsyncCardService asyncService = new AsyncCardService(service);
+    try {
+      List<Future<ResponseAPDU>> futures = new ArrayList<Future<ResponseAPDU>>();
+      for (int i = 0; i < 10; i++) {
+        futures.add(asyncService.transmitAsync(new CommandAPDU(0x00, 0xB0, 0x00, i, 8)));
+      }
+      assertEquals(10, asyncService.getSubmittedCount());
+      assertTrue(asyncService.getQueueDepth() >= 9);
+
+      latch.countDown();
+      for (int i = 0; i < 10; i++) {
+        assertEquals(i, futures.get(i).get().getSW2());
+      }
+      assertEquals(0, asyncService.getQueueDepth());
+      assertEquals(10, asyncService.getCompletedCount());
+      assertEquals(1, service.maxConcurrent);
+      assertTrue(asyncService.getMaxWaitTime(TimeUnit.NANOSECONDS) > 0);
+      assertTrue(asyncService.getTotalWaitTime(TimeUnit.NANOSECONDS) >= asyncService.getMaxWaitTime(TimeUnit.NANOSECONDS));
+    } finally {
+      asyncService.close();
+    }
+    assertTrue(asyncService.awaitTermination(1, TimeUnit.SECONDS));
+  }
+
+  public void testCancelled() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    AsyncCardService asyncService = new AsyncCardService(new BlockingCardService(latch));
+    try {
+      Future<ResponseAPDU> running = asyncService.transmitAsync(new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 8));
+      List<Future<ResponseAPDU>> queued = new ArrayList<Future<ResponseAPDU>>();
+      for (int i = 0; i < 5; i++) {
+        queued.add(asyncService.transmitAsync(new CommandAPDU(0x00, 0xB0, 0x00, i, 8)));
+      }
+      for (Future<ResponseAPDU> future: queued) {
+        assertTrue(future.cancel(false));
+      }
+      /* Cancelled operations leave the queue, whether or not the first one has started. */
+      assertTrue(asyncService.getQueueDepth() <= 1);
+      latch.countDown();
+      running.get();
+      assertEquals(0, asyncService.getQueueDepth());
+    } finally {
+      asyncService.close();
+    }
+    assertTrue(asyncService.awaitTermination(1, TimeUnit.SECONDS));
+    assertEquals(0, asyncService.getQueueDepth());
+    assertEquals(1, asyncService.getCompletedCount());
+  }
+
+  public void testOperationFailure() throws Exception {
+    AsyncCardService asyncService = new AsyncCardService(new BlockingCardService(new CountDownLatch(0)));
+    try {
+      Future<Integer> future = asyncService.submit(new CardOperation<Integer>() {
+        public Integer run(CardService service) throws CardServiceException {
+          ResponseAPDU response = service.transmit(new CommandAPDU(0x00, 0xA4, 0x6A, 0x82, 0));
+          if (response.getSW() != 0x9000) {
+            throw new CardServiceException("Select failed", response.getSW());
+          }
+          return response.getNr();
+        }
+      });
+      future.get();
+      fail("Expected ExecutionException");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof CardServiceException);
+      assertEquals(0x6A82, ((CardServiceException)expected.getCause()).getSW());
+    } finally {
+      asyncService.close();
+    }
+    assertEquals(1, asyncService.getCompletedCount());
+  }
+
+  /**
+   * Waits for a latch, then responds with the status word in P1 and P2, or 0x90 and P2 if P1 is 0.
+   */
+  private static class BlockingCardService extends StubCardService {
+
+    private final CountDownLatch latch;
+    private int concurrent;
+    private int maxConcurrent;
+
+    public BlockingCardService(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU commandAPDU) throws CardServiceException {
+      synchronized (this) {
+        concurrent++;
+        maxConcurrent = Math.max(maxConcurrent, concurrent);
+      }
+      try {
+        latch.await();
+      } catch (InterruptedException ie) {
+        throw new CardServiceException("Interrupted", ie);
+      } finally {
+        synchronized (this) {
+          concurrent--;
+        }
+      }
+      int p1 = commandAPDU.getP1();
+      return new ResponseAPDU(new byte[] { (byte)(p1 == 0 ? 0x90 : p1), (byte)commandAPDU.getP2() });
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.CachingFileSystem;
+import net.sf.scuba.smartcards.CardFileInputStream;
+import net.sf.scuba.smartcards.CardFileStore;
+import net.sf.scuba.smartcards.CardIdentityProvider;
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.FileSystemStructured;
+
+public class CachingFileSystemTest extends TestCase {
+
+  private File directory;
+  private byte[] uid;
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = File.createTempFile("scuba", "store");
+    assertTrue(directory.delete());
+    uid = new byte[] { 1 };
+  }
+
+  @Override
+  protected void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file: files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  public void testFirstBlockFingerprint() throws Exception {
+    CardFileStore store = new CardFileStore(directory, 1 << 20);
+    MemoryFileSystem card = new MemoryFileSystem();
+    byte[] content = createContent(1000, 1);
+    card.files.put((short)0x0101, content);
+
+    CachingFileSystem fs = createIdentifyingFileSystem(card, store);
+    assertTrue(Arrays.equals(content, readFile(fs, (short)0x0101)));
+    assertEquals(10, card.readCount);
+
+    /* Another session, only the first block is read from the card. */
+    card.readCount = 0;
+    fs = createIdentifyingFileSystem(card, store);
+    assertTrue(Arrays.equals(content, readFile(fs, (short)0x0101)));
+    assertEquals(1, card.readCount);
+
+    /* Changed content after the first block. */
+    content[500]++;
+    card.readCount = 0;
+    fs = createIdentifyingFileSystem(card, store);
+    byte[] result = readFile(fs, (short)0x0101);
+    assertEquals(1, card.readCount);
+    assertFalse(Arrays.equals(content, result));
+  }
+
+  public void testFirstBlockFingerprintPerCard() throws Exception {
+    CardFileStore store = new CardFileStore(directory, 1 << 20);
+    MemoryFileSystem card = new MemoryFileSystem();
+    byte[] content = createContent(1000, 1);
+    card.files.put((short)0x0101, content);
+    CachingFileSystem fs = createIdentifyingFileSystem(card, store);
+    readFile(fs, (short)0x0101);
+
+    /* Another card, same first block, different holder data after it. */
+    byte[] otherContent = content.clone();
+    otherContent[500]++;
+    card.files.put((short)0x0101, otherContent);
+    uid = new byte[] { 2 };
+    card.readCount = 0;
+    fs = createIdentifyingFileSystem(card, store);
+    assertTrue(Arrays.equals(otherContent, readFile(fs, (short)0x0101)));
+    assertEquals(10, card.readCount);
+
+    /* Without a card identity the default fingerprint is not used. */
+    card.readCount = 0;
+    fs = new CachingFileSystem(card, store, 100);
+    assertTrue(Arrays.equals(otherContent, readFile(fs, (short)0x0101)));
+    assertEquals(10, card.readCount);
+    uid = null;
+    fs = createIdentifyingFileSystem(card, store);
+    assertTrue(Arrays.equals(otherContent, readFile(fs, (short)0x0101)));
+    assertEquals(20, card.readCount);
+  }
+
+  public void testHashFile() throws Exception {
+    CardFileStore store = new CardFileStore(directory, 1 << 20);
+    MemoryFileSystem card = new MemoryFileSystem();
+    byte[] content1 = createContent(300, 1);
+    byte[] content2 = createContent(300, 2);
+    card.files.put((short)0x0101, content1);
+    card.files.put((short)0x0102, content2);
+    card.files.put((short)0x011D, createContent(20, 3));
+
+    CachingFileSystem fs = createHashingFileSystem(card, store, new StubCardService());
+    readFile(fs, (short)0x0101);
+    readFile(fs, (short)0x0102);
+
+    card.readCount = 0;
+    card.selectCount = 0;
+    fs = createHashingFileSystem(card, store, new StubCardService());
+    assertTrue(Arrays.equals(content1, readFile(fs, (short)0x0101)));
+    assertTrue(Arrays.equals(content2, readFile(fs, (short)0x0102)));
+    /* Hash file read once, no reads of the files themselves. */
+    assertEquals(1, card.readCount);
+    assertEquals(4, card.selectCount);
+
+    /* A changed hash file means new contents. */
+    content1[299]++;
+    card.files.get((short)0x011D)[0]++;
+    fs = createHashingFileSystem(card, store, new StubCardService());
+    assertTrue(Arrays.equals(content1, readFile(fs, (short)0x0101)));
+  }
+
+  public void testHashFileCardSwap() throws Exception {
+    CardFileStore store = new CardFileStore(directory, 1 << 20);
+    MemoryFileSystem card = new MemoryFileSystem();
+    byte[] content1 = createContent(300, 1);
+    card.files.put((short)0x0101, content1);
+    card.files.put((short)0x011D, createContent(20, 3));
+    StubCardService service = new StubCardService();
+    service.open();
+    CachingFileSystem fs = createHashingFileSystem(card, store, service);
+    assertTrue(Arrays.equals(content1, readFile(fs, (short)0x0101)));
+
+    /* Another card in the same file system, with its own hash file. */
+    byte[] content2 = createContent(300, 2);
+    card.files.put((short)0x0101, content2);
+    card.files.put((short)0x011D, createContent(20, 4));
+    service.open();
+    card.readCount = 0;
+    assertTrue(Arrays.equals(content2, readFile(fs, (short)0x0101)));
+    assertEquals(4, card.readCount);
+
+    /* Without a service, the hash file is read for each file. */
+    fs = createHashingFileSystem(card, store, null);
+    card.readCount = 0;
+    readFile(fs, (short)0x0101);
+    readFile(fs, (short)0x0101);
+    assertEquals(2, card.readCount);
+  }
+
+  public void testEviction() throws Exception {
+    CardFileStore store = new CardFileStore(directory, 25);
+    byte[] fingerprint1 = new byte[] { 1 };
+    byte[] fingerprint2 = new byte[] { 2 };
+    byte[] fingerprint3 = new byte[] { 3 };
+    store.put(fingerprint1, createContent(10, 1));
+    store.put(fingerprint2, createContent(10, 2));
+    setLastModified(1000000000000L);
+    store.get(fingerprint1);
+
+    store.put(fingerprint3, createContent(10, 3));
+    assertEquals(20, store.size());
+    assertNotNull(store.get(fingerprint1));
+    assertNull(store.get(fingerprint2));
+    assertNotNull(store.get(fingerprint3));
+
+    /* Too large to store. */
+    store.put(new byte[] { 4 }, createContent(26, 4));
+    assertNull(store.get(new byte[] { 4 }));
+
+    /* Index survives. */
+    store = new CardFileStore(directory, 25);
+    ByteBuffer contents = store.get(fingerprint3);
+    byte[] bytes = new byte[contents.remaining()];
+    contents.get(bytes);
+    assertTrue(Arrays.equals(createContent(10, 3), bytes));
+  }
+
+  public void testDamagedContent() throws Exception {
+    CardFileStore store = new CardFileStore(directory, 1 << 20);
+    store.put(new byte[] { 1 }, createContent(10, 1));
+    for (File file: directory.listFiles()) {
+      if (file.getName().endsWith(".bin")) {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[5]);
+        out.close();
+      }
+    }
+    assertNull(store.get(new byte[] { 1 }));
+    assertEquals(0, store.size());
+  }
+
+  private void setLastModified(long time) {
+    for (File file: directory.listFiles()) {
+      assertTrue(file.setLastModified(time));
+    }
+  }
+
+  private CachingFileSystem createIdentifyingFileSystem(MemoryFileSystem card, CardFileStore store) {
+    CachingFileSystem fs = new CachingFileSystem(card, store, 100);
+    fs.setCardIdentityProvider(new StubCardService(), new CardIdentityProvider() {
+      public byte[] getCardIdentifier(CardService service) {
+        return uid;
+      }
+    });
+    return fs;
+  }
+
+  private static CachingFileSystem createHashingFileSystem(FileSystemStructured card, CardFileStore store, CardService service) {
+    CachingFileSystem fs = new CachingFileSystem(card, store, 100);
+    fs.setCardService(service);
+    fs.setHashFile((short)0x0101, (short)0x011D);
+    fs.setHashFile((short)0x0102, (short)0x011D);
+    return fs;
+  }
+
+  private static byte[] readFile(CachingFileSystem fs, short fid) throws CardServiceException, IOException {
+    synchronized(fs) {
+      fs.selectFile(fid);
+      CardFileInputStream in = new CardFileInputStream(100, fs);
+      byte[] result = new byte[in.getLength()];
+      int count = 0;
+      while (count < result.length) {
+        count += in.read(result, count, result.length - count);
+      }
+      in.close();
+      return result;
+    }
+  }
+
+  private static byte[] createContent(int length, int seed) {
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = (byte)(i * seed);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.CardCapabilities;
+import net.sf.scuba.smartcards.CardCapabilitiesCache;
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+import net.sf.scuba.smartcards.ResponseChainingCardService;
+import net.sf.scuba.smartcards.WrappingCardService;
+import net.sf.scuba.util.Hex;
+
+public class CardCapabilitiesTest extends TestCase {
+
+  /* T=1, historical bytes 80 73 C8 21 C3 (card capabilities: extended length, command chaining). */
+  private static final byte[] EXTENDED_ATR = Hex.hexStringToBytes("3B 85 80 01 80 73 C8 21 C3 00");
+
+  /* T=0 with TA1 and TC1, historical bytes without card capabilities. */
+  private static final byte[] SHORT_ATR = Hex.hexStringToBytes("3B 56 18 00 00 31 80 65 90 00");
+
+  public void testFromATR() {
+    CardCapabilities capabilities = CardCapabilities.fromATR(EXTENDED_ATR);
+    assertTrue(Arrays.equals(Hex.hexStringToBytes("80 73 C8 21 C3"), capabilities.getHistoricalBytes()));
+    assertTrue(capabilities.isKnown());
+    assertTrue(capabilities.isExtendedLengthSupported());
+    assertTrue(capabilities.isCommandChainingSupported());
+    assertEquals(4, capabilities.getLogicalChannelCount());
+    assertEquals(CardCapabilities.EXTENDED_MAX_NC, capabilities.getMaxCommandDataLength());
+    assertEquals(CardCapabilities.EXTENDED_MAX_NE, capabilities.getMaxResponseDataLength());
+
+    capabilities = CardCapabilities.fromATR(SHORT_ATR);
+    assertTrue(Arrays.equals(Hex.hexStringToBytes("00 31 80 65 90 00"), capabilities.getHistoricalBytes()));
+    assertFalse(capabilities.isKnown());
+    assertFalse(capabilities.isExtendedLengthSupported());
+    assertEquals(CardCapabilities.SHORT_MAX_NE, capabilities.getMaxResponseDataLength());
+    assertTrue(capabilities.withMaxLengths(255, 256).isKnown());
+
+    /* Truncated. */
+    capabilities = CardCapabilities.fromATR(Hex.hexStringToBytes("3B 85 80"));
+    assertFalse(capabilities.isExtendedLengthSupported());
+    assertEquals(0, capabilities.getHistoricalBytes().length);
+  }
+
+  public void testExtendedLengthInfo() {
+    CardCapabilities capabilities = CardCapabilities.fromATR(EXTENDED_ATR);
+    capabilities = capabilities.withExtendedLengthInfo(Hex.hexStringToBytes("7F 66 08 02 02 04 00 02 02 08 00"));
+    assertEquals(1024, capabilities.getMaxCommandDataLength());
+    assertEquals(2048, capabilities.getMaxResponseDataLength());
+    assertTrue(capabilities.isExtendedLengthSupported());
+
+    try {
+      capabilities.withExtendedLengthInfo(Hex.hexStringToBytes("7F 66 04 02 02 04 00"));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      /* NOTE: expected. */
+    }
+  }
+
+  public void testCache() throws IOException {
+    File file = File.createTempFile("capabilities", ".properties");
+    try {
+      assertTrue(file.delete());
+      CardCapabilitiesCache cache = new CardCapabilitiesCache(file);
+      assertNull(cache.get(EXTENDED_ATR));
+
+      CardCapabilities capabilities = CardCapabilities.fromATR(EXTENDED_ATR).withMaxLengths(1024, 2048);
+      cache.put(capabilities);
+      assertTrue(file.exists());
+
+      /* A new cache on the same file. */
+      cache = new CardCapabilitiesCache(file);
+      assertEquals(capabilities, cache.get(EXTENDED_ATR));
+      assertNull(cache.get(SHORT_ATR));
+
+      cache.put(CardCapabilities.fromATR(SHORT_ATR));
+      cache = new CardCapabilitiesCache(file);
+      assertEquals(capabilities, cache.get(EXTENDED_ATR));
+      assertEquals(CardCapabilities.fromATR(SHORT_ATR), cache.get(SHORT_ATR));
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testDecoratorsDelegate() throws Exception {
+    ATRCardService card = new ATRCardService();
+    CardService wrapping = new WrappingCardService(card, null);
+    CardService chaining = new ResponseChainingCardService(wrapping);
+
+    /* Capabilities determined by the real service, not from the ATR. */
+    assertEquals(card.capabilities, chaining.getCardCapabilities());
+
+    CardCapabilities probed = card.capabilities.withMaxLengths(1000, 2000);
+    chaining.setCardCapabilities(probed);
+    assertEquals(probed, card.getCardCapabilities());
+    assertEquals(probed, wrapping.getCardCapabilities());
+  }
+
+  /**
+   * A service that, like the Android one, does not parse its ATR.
+   */
+  private static class ATRCardService extends StubCardService {
+
+    private final CardCapabilities capabilities = CardCapabilities.fromATR(SHORT_ATR).withMaxLengths(300, 400);
+
+    @Override
+    protected CardCapabilities createCardCapabilities(byte[] atr) {
+      return capabilities;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU commandAPDU) {
+      return new ResponseAPDU(new byte[] { (byte)0x90, 0x00 });
+    }
+
+    @Override
+    public byte[] getATR() {
+      return SHORT_ATR;
+    }
+  }
+}
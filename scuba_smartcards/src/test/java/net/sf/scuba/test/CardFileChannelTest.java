@@ -0,0 +1,111 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.CardFileChannel;
+
+public class CardFileChannelTest extends TestCase {
+
+  private static final short FID = 0x011E;
+
+  public void testRandomAccess() throws Exception {
+    byte[] content = new byte[1000];
+    new Random(1000).nextBytes(content);
+    MemoryFileSystem fs = new MemoryFileSystem(FID, content);
+    CardFileChannel channel = new CardFileChannel(fs, 64, 223, 8);
+    assertEquals(1000, channel.size());
+
+    /* Blocks 1 to 3 (64 - 255) in one READ BINARY of 3 blocks. */
+    ByteBuffer dst = ByteBuffer.allocate(100);
+    channel.position(100);
+    assertEquals(100, channel.read(dst));
+    assertEquals(200, channel.position());
+    assertTrue(Arrays.equals(Arrays.copyOfRange(content, 100, 200), dst.array()));
+    assertEquals(Arrays.asList("64+192"), fs.reads);
+
+    /* Served from the cache. */
+    dst.clear();
+    channel.position(70);
+    assertEquals(100, channel.read(dst));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(content, 70, 170), dst.array()));
+    assertEquals(1, fs.reads.size());
+
+    /* Only the missing blocks are read, block 0 and then blocks 4 to 5. */
+    dst = ByteBuffer.allocate(384);
+    channel.position(0);
+    assertEquals(384, channel.read(dst));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(content, 0, 384), dst.array()));
+    assertEquals(Arrays.asList("64+192", "0+64", "256+128"), fs.reads);
+
+    /* The last block is shorter, reading stops at the end of the file. */
+    dst = ByteBuffer.allocate(100);
+    channel.position(980);
+    assertEquals(20, channel.read(dst));
+    assertEquals(-1, channel.read(dst));
+    assertEquals("960+40", fs.reads.get(fs.reads.size() - 1));
+
+    channel.close();
+    assertFalse(channel.isOpen());
+    try {
+      channel.read(dst);
+      fail("Expected ClosedChannelException");
+    } catch (ClosedChannelException expected) {
+      /* NOTE: expected. */
+    }
+  }
+
+  public void testEviction() throws Exception {
+    byte[] content = new byte[1000];
+    MemoryFileSystem fs = new MemoryFileSystem(FID, content);
+    CardFileChannel channel = new CardFileChannel(fs, 64, 64, 2);
+    ByteBuffer dst = ByteBuffer.allocate(1);
+    for (int position: new int[] { 0, 64, 0, 128, 0, 64 }) {
+      dst.clear();
+      channel.position(position);
+      channel.read(dst);
+    }
+    /* Block 1 was evicted when block 2 was read, block 0 was used more recently. */
+    assertEquals(Arrays.asList("0+64", "64+64", "128+64", "64+64"), fs.reads);
+  }
+
+  public void testNoData() throws Exception {
+    MemoryFileSystem fs = new MemoryFileSystem(FID, new byte[500]);
+    fs.fileLengths.put(FID, 1000);
+    CardFileChannel channel = new CardFileChannel(fs, 64, 64, 2);
+    channel.position(600);
+    try {
+      channel.read(ByteBuffer.allocate(10));
+      fail("Expected exception");
+    } catch (EOFException eofe) {
+      /* NOTE: expected. */
+    }
+  }
+}
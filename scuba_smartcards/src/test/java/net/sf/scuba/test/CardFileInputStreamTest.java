@@ -0,0 +1,179 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.CardFileInputStream;
+
+public class CardFileInputStreamTest extends TestCase {
+
+  private static final short FID = 0x0101;
+
+  public void testRead() throws Exception {
+    byte[] content = createContent(1000);
+    MemoryFileSystem fs = createFileSystem(content);
+    fs.selectFile(FID);
+    CardFileInputStream in = new CardFileInputStream(100, fs);
+    assertEquals(1000, in.getLength());
+
+    assertEquals(content[0] & 0xFF, in.read());
+    byte[] result = new byte[1000];
+    result[0] = content[0];
+    assertEquals(9, in.read(result, 1, 9));
+    assertEquals(1, fs.readCount);
+
+    /* Whole blocks go straight to the caller. */
+    assertEquals(990, in.read(result, 10, 990));
+    assertTrue(Arrays.equals(content, result));
+    assertEquals(-1, in.read(result, 0, 10));
+    assertEquals(-1, in.read());
+    assertEquals(10, fs.readCount);
+  }
+
+  public void testShortReadsAndReselect() throws Exception {
+    byte[] content = createContent(1000);
+    MemoryFileSystem fs = createFileSystem(content);
+    fs.maxReadLength = 37;
+    fs.selectFile(FID);
+    CardFileInputStream in = new CardFileInputStream(100, fs);
+    in.read();
+    fs.selectFile((short)0x0102);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(content[0]);
+    byte[] block = new byte[333];
+    int n;
+    while ((n = in.read(block, 0, block.length)) >= 0) {
+      out.write(block, 0, n);
+    }
+    assertTrue(Arrays.equals(content, out.toByteArray()));
+  }
+
+  public void testSkip() throws Exception {
+    byte[] content = createContent(1000);
+    MemoryFileSystem fs = createFileSystem(content);
+    fs.selectFile(FID);
+    InputStream in = new CardFileInputStream(100, fs);
+    assertEquals(0, in.skip(-1));
+    assertEquals(10, in.skip(10));
+    assertEquals(content[10] & 0xFF, in.read());
+    assertEquals(500, in.skip(500));
+    assertEquals(content[511] & 0xFF, in.read());
+    assertEquals(488, in.skip(10000));
+    assertEquals(0, in.skip(1));
+    assertEquals(-1, in.read());
+  }
+
+  public void testReadAhead() throws Exception {
+    byte[] content = createContent(1000);
+    MemoryFileSystem fs = createFileSystem(content);
+    fs.selectFile(FID);
+    CardFileInputStream in = new CardFileInputStream(100, fs, 2, null);
+    try {
+      assertEquals(content[0] & 0xFF, in.read());
+
+      /* The next two blocks are read in the background. */
+      long deadline = System.currentTimeMillis() + 5000;
+      synchronized(fs) {
+        while (fs.readCount < 3 && System.currentTimeMillis() < deadline) {
+          fs.wait(100);
+        }
+        assertEquals(3, fs.readCount);
+      }
+
+      /* Selecting another file in the meantime does not matter. */
+      synchronized(fs) {
+        fs.selectFile((short)0x0102);
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.write(content[0]);
+      byte[] block = new byte[77];
+      int n = in.read(block, 0, block.length);
+      out.write(block, 0, n);
+      in.mark(1000);
+      while ((n = in.read(block, 0, block.length)) >= 0) {
+        out.write(block, 0, n);
+      }
+      assertTrue(Arrays.equals(content, out.toByteArray()));
+
+      /* Going back cancels what was read ahead. */
+      in.reset();
+      assertEquals(content[78] & 0xFF, in.read());
+      assertEquals(500, in.skip(500));
+      assertEquals(content[579] & 0xFF, in.read());
+    } finally {
+      in.close();
+    }
+    assertEquals(content[580] & 0xFF, in.read());
+  }
+
+  public void testNoData() throws Exception {
+    MemoryFileSystem fs = createFileSystem(createContent(500));
+    fs.fileLengths.put(FID, 1000);
+    fs.selectFile(FID);
+    CardFileInputStream in = new CardFileInputStream(100, fs);
+    assertEquals(500, in.skip(500));
+    try {
+      in.read();
+      fail("Expected exception");
+    } catch (EOFException eofe) {
+      /* NOTE: expected. */
+    }
+
+    /* Also when read ahead. */
+    in = new CardFileInputStream(100, fs, 2, null);
+    try {
+      byte[] block = new byte[100];
+      for (int i = 0; i < 5; i++) {
+        assertEquals(100, in.read(block, 0, block.length));
+      }
+      in.read(block, 0, block.length);
+      fail("Expected exception");
+    } catch (EOFException eofe) {
+      /* NOTE: expected. */
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Creates a file system with the given contents, and an empty file with a different FID.
+   */
+  private static MemoryFileSystem createFileSystem(byte[] content) {
+    MemoryFileSystem fs = new MemoryFileSystem(FID, content);
+    fs.files.put((short)0x0102, new byte[0]);
+    return fs;
+  }
+
+  private static byte[] createContent(int length) {
+    byte[] content = new byte[length];
+    new Random(length).nextBytes(content);
+    return content;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.CommandAPDU;
+
+public class CommandAPDUTest extends TestCase {
+
+  private static final int[] LENGTHS = { 0, 1, 255, 256, 257, 65535, 65536 };
+
+  public void testEncode() {
+    Random random = new Random();
+    ByteBuffer direct = ByteBuffer.allocateDirect(65544);
+    for (int nc: LENGTHS) {
+      if (nc > 65535) {
+        continue;
+      }
+      for (int ne: LENGTHS) {
+        byte[] data = new byte[nc + 3];
+        random.nextBytes(data);
+        byte[] expected = new javax.smartcardio.CommandAPDU(0x00, 0xB0, 0x81, 0x02, data, 3, nc, ne).getBytes();
+        CommandAPDU commandAPDU = new CommandAPDU(0x00, 0xB0, 0x81, 0x02, data, 3, nc, ne);
+        assertTrue(Arrays.equals(expected, commandAPDU.getBytes()));
+        assertEquals(nc, commandAPDU.getNc());
+        assertEquals(ne, commandAPDU.getNe());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 3, 3 + nc), commandAPDU.getData()));
+        assertEquals(expected.length, CommandAPDU.getEncodedLength(data, 3, nc, ne));
+
+        /* Reusing the same direct buffer. */
+        direct.clear();
+        assertEquals(expected.length, CommandAPDU.encode(0x00, 0xB0, 0x81, 0x02, data, 3, nc, ne, direct));
+        direct.flip();
+        byte[] actual = new byte[direct.remaining()];
+        direct.get(actual);
+        assertTrue(Arrays.equals(expected, actual));
+
+        /* Round trip through the buffer based constructor. */
+        direct.flip();
+        assertEquals(commandAPDU, new CommandAPDU(direct));
+      }
+    }
+  }
+
+  public void testEncodeOverflow() {
+    ByteBuffer buffer = ByteBuffer.allocate(5);
+    try {
+      CommandAPDU.encode(0x00, 0xA4, 0x02, 0x0C, new byte[] { 0x01, 0x1E }, 0, 2, 0, buffer);
+      fail("Expected exception");
+    } catch (BufferOverflowException expected) {
+      /* Nothing written. */
+      assertEquals(0, buffer.position());
+    }
+    assertEquals(5, new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 256).encode(buffer));
+    assertEquals(5, buffer.position());
+  }
+}
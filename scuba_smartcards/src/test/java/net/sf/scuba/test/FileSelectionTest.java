@@ -0,0 +1,325 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.AbstractFileSystemStructured;
+import net.sf.scuba.smartcards.CardIdentityProvider;
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.FileInfo;
+import net.sf.scuba.smartcards.FileInfoCache;
+import net.sf.scuba.smartcards.ISOFileInfo;
+import net.sf.scuba.smartcards.ResponseAPDU;
+import net.sf.scuba.util.Hex;
+
+public class FileSelectionTest extends TestCase {
+
+  public void testSelectFilePath() throws CardServiceException {
+    SelectCardService service = new SelectCardService(true);
+    TestFileSystem fs = new TestFileSystem(service);
+
+    /* Unknown selection, absolute path. */
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5031 });
+    assertEquals(Arrays.asList("08:50005031"), service.selects);
+
+    /* Already selected. */
+    fs.selectFilePath(new short[] { 0x5000, 0x5031 });
+    assertEquals(1, service.selects.size());
+
+    /* Sibling. */
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5032 });
+    assertEquals("02:5032", service.selects.get(1));
+
+    /* Deeper, relative to the selected DF. */
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5100, 0x5101 });
+    assertEquals("09:51005101", service.selects.get(2));
+
+    /* Elsewhere, absolute path. */
+    fs.selectFilePath(new short[] { 0x3F00, 0x2F00 });
+    assertEquals("08:2F00", service.selects.get(3));
+    fs.selectFilePath(new short[] { 0x3F00, 0x2F01 });
+    assertEquals("02:2F01", service.selects.get(4));
+
+    /* Selecting by FID makes the selection unknown. */
+    fs.selectFile((short)0x2F01);
+    fs.selectFilePath(new short[] { 0x3F00, 0x2F01 });
+    assertEquals("08:2F01", service.selects.get(6));
+    assertEquals(7, service.selects.size());
+  }
+
+  public void testWithoutPathSelection() throws CardServiceException {
+    SelectCardService service = new SelectCardService(false);
+    TestFileSystem fs = new TestFileSystem(service);
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5031 });
+    assertEquals(Arrays.asList("08:50005031", "00:", "01:5000", "02:5031"), service.selects);
+
+    /* Does not try selecting by path again. */
+    service.selects.clear();
+    fs.selectFilePath(new short[] { 0x3F00, 0x2F00 });
+    assertEquals(Arrays.asList("00:", "02:2F00"), service.selects);
+  }
+
+  public void testPathSelectionFileNotFound() throws CardServiceException {
+    SelectCardService service = new SelectCardService(true);
+    TestFileSystem fs = new TestFileSystem(service);
+    service.sw = 0x6A82;
+    try {
+      fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5031 });
+      fail("Expected exception");
+    } catch (CardServiceException cse) {
+      /* NOTE: expected. */
+      assertEquals(0x6A82, cse.getSW());
+    }
+    assertEquals(Arrays.asList("08:50005031"), service.selects);
+
+    /* Still selects by path. */
+    service.sw = 0x9000;
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5032 });
+    assertEquals("08:50005032", service.selects.get(1));
+  }
+
+  public void testReadBinaryBySFI() throws CardServiceException {
+    SelectCardService service = new SelectCardService(true);
+    TestFileSystem fs = new TestFileSystem(service);
+    fs.setShortFileIdentifier((short)0x5032, 2);
+    byte[] buffer = new byte[16];
+
+    /* Unknown DF, needs a SELECT. */
+    fs.readBinary(new short[] { 0x3F00, 0x5000, 0x5031 }, 0, buffer, 0, 16);
+    assertEquals(Arrays.asList("08:50005031"), service.selects);
+
+    /* Sibling with known SFI, no SELECT. */
+    assertEquals(16, fs.readBinary(new short[] { 0x3F00, 0x5000, 0x5032 }, 0, buffer, 0, 16));
+    assertEquals("B0:8200", service.selects.get(1));
+
+    /* Now selected, so neither a SELECT nor an SFI. */
+    fs.readBinary(new short[] { 0x3F00, 0x5000, 0x5032 }, 16, buffer, 0, 16);
+    assertEquals(2, service.selects.size());
+
+    /* Offset does not fit in P2. */
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5031 });
+    fs.readBinary(new short[] { 0x3F00, 0x5000, 0x5032 }, 0x100, buffer, 0, 16);
+    assertEquals(Arrays.asList("02:5031", "02:5032"), service.selects.subList(2, 4));
+  }
+
+  public void testFileInfoAfterReadBinaryBySFI() throws CardServiceException {
+    SelectCardService service = new SelectCardService(true);
+    TestFileSystem fs = new TestFileSystem(service, true);
+    fs.setShortFileIdentifier((short)0x5032, 2);
+    service.fcp = Hex.hexStringToBytes("62088002002083025031");
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5031 });
+    assertEquals(0x20, fs.getFileLength());
+
+    /* Read by SFI, the file information of 5032 is not known. */
+    byte[] buffer = new byte[16];
+    fs.readBinary(new short[] { 0x3F00, 0x5000, 0x5032 }, 0, buffer, 0, 16);
+    assertEquals((short)0x5032, fs.getSelectedFID());
+    assertEquals(-1, fs.getFileLength());
+
+    /* Selecting it still sends a SELECT, to learn it. */
+    service.fcp = Hex.hexStringToBytes("62088002004083025032");
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5032 });
+    assertEquals(Arrays.asList("08:50005031", "B0:8200", "02:5032"), service.selects);
+    assertEquals((short)0x5032, fs.getSelectedFID());
+    assertEquals(0x40, fs.getFileLength());
+
+    /* But only once. */
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5032 });
+    assertEquals(3, service.selects.size());
+  }
+
+  public void testShortFileIdentifierFromFCP() throws CardServiceException {
+    SelectCardService service = new SelectCardService(true);
+    TestFileSystem fs = new TestFileSystem(service, true);
+
+    /* SHORT_EF with SFI 3 in bits 8 to 4. */
+    service.fcp = new byte[] { 0x62, 0x03, (byte)0x88, 0x01, 0x18 };
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5033 });
+    assertEquals(3, fs.getShortFileIdentifier((short)0x5033));
+
+    /* No SFI support. */
+    service.fcp = new byte[] { 0x62, 0x02, (byte)0x88, 0x00 };
+    fs.selectEFRelative((short)0x5034);
+    assertEquals(-1, fs.getShortFileIdentifier((short)0x5034));
+  }
+
+  public void testReadBinaryBySFIRejected() throws CardServiceException {
+    SelectCardService service = new SelectCardService(true);
+    service.isSFISupported = false;
+    TestFileSystem fs = new TestFileSystem(service);
+    fs.setShortFileIdentifier((short)0x5032, 2);
+    fs.selectFilePath(new short[] { 0x3F00, 0x5000, 0x5031 });
+    byte[] buffer = new byte[16];
+    fs.readBinary(new short[] { 0x3F00, 0x5000, 0x5032 }, 0, buffer, 0, 16);
+    assertEquals(Arrays.asList("08:50005031", "B0:8200", "08:50005032"), service.selects);
+    assertEquals(-1, fs.getShortFileIdentifier((short)0x5032));
+  }
+
+  public void testFileInfoCache() throws CardServiceException {
+    final SelectCardService service = new SelectCardService(true);
+    CardIdentityProvider identityProvider = new CardIdentityProvider() {
+      public byte[] getCardIdentifier(CardService ignored) {
+        return service.uid;
+      }
+    };
+    FileInfoCache cache = new FileInfoCache();
+    short[] path = { 0x3F00, 0x5000, 0x5031 };
+
+    /* Cold cache, asks for the FCP. */
+    service.open();
+    TestFileSystem fs = new TestFileSystem(service, true);
+    fs.setFileInfoCache(cache, identityProvider, true);
+    service.fcp = Hex.hexStringToBytes("62088002010083025031");
+    fs.selectFilePath(path);
+    assertEquals(0x00, service.p2);
+    assertEquals(256, fs.getFileLength());
+    assertEquals(1, cache.size());
+
+    /* Warm cache, asks for no FCP. */
+    service.fcp = new byte[0];
+    fs = new TestFileSystem(service, true);
+    fs.setFileInfoCache(cache, identityProvider, true);
+    fs.selectFilePath(path);
+    assertEquals(0x0C, service.p2);
+    assertEquals(256, fs.getFileLength());
+
+    /* Another card with the same ATR, presented to the same file system. */
+    service.close();
+    service.uid = new byte[] { 0x05, 0x06, 0x07, 0x08 };
+    service.fcp = Hex.hexStringToBytes("62088002004083025031");
+    service.open();
+    fs.selectMF();
+    fs.selectFilePath(path);
+    assertEquals(0x00, service.p2);
+    assertEquals(0x40, fs.getFileLength());
+
+    /* No identifier, no caching. */
+    service.uid = null;
+    fs = new TestFileSystem(service, true);
+    fs.setFileInfoCache(cache, identityProvider, true);
+    fs.selectFilePath(path);
+    fs.selectMF();
+    fs.selectFilePath(path);
+    assertEquals(0x00, service.p2);
+    /* The path and the MF for the second card. */
+    assertEquals(3, cache.size());
+  }
+
+  public void testFileInfoCacheRequiresIdentityProvider() {
+    TestFileSystem fs = new TestFileSystem(new SelectCardService(true), true);
+    try {
+      fs.setFileInfoCache(new FileInfoCache(), null, false);
+      fail("Expected exception");
+    } catch (IllegalArgumentException iae) {
+      /* NOTE: expected. */
+    }
+  }
+
+  public void testFileInfoCacheExpiry() throws Exception {
+    FileInfoCache cache = new FileInfoCache(2, 1, TimeUnit.MILLISECONDS);
+    byte[] identity = new byte[] { 0x3B, 0x00 };
+    cache.put(identity, new short[] { 0x0101 }, new ISOFileInfo(new byte[0]));
+    assertNotNull(cache.get(identity, new short[] { 0x0101 }));
+    Thread.sleep(20);
+    assertNull(cache.get(identity, new short[] { 0x0101 }));
+
+    cache = new FileInfoCache(2, 1, TimeUnit.MINUTES);
+    cache.put(identity, new short[] { 0x0101 }, new ISOFileInfo(new byte[0]));
+    cache.put(identity, new short[] { 0x0102 }, new ISOFileInfo(new byte[0]));
+    cache.put(identity, new short[] { 0x0103 }, new ISOFileInfo(new byte[0]));
+    assertEquals(2, cache.size());
+    assertNull(cache.get(identity, new short[] { 0x0101 }));
+  }
+
+  private static class TestFileSystem extends AbstractFileSystemStructured {
+
+    public TestFileSystem(CardService service) {
+      this(service, false);
+    }
+
+    public TestFileSystem(CardService service, boolean fileInfo) {
+      super(service, fileInfo);
+    }
+
+    @Override
+    public byte[] readBinary(int offset, int length) {
+      return new byte[0];
+    }
+
+    public FileInfo[] getSelectedPath() {
+      return null;
+    }
+  }
+
+  /**
+   * Records SELECT commands as P1 and data, and READ BINARY commands as P1 and P2.
+   * Also remembers P2 of the last SELECT.
+   */
+  private static class SelectCardService extends StubCardService {
+
+    private final boolean isPathSelectionSupported;
+    private final List<String> selects = new ArrayList<String>();
+    private boolean isSFISupported = true;
+    private byte[] fcp = new byte[0];
+    private int p2 = -1;
+    private int sw = 0x9000;
+    private byte[] uid = new byte[] { 0x01, 0x02, 0x03, 0x04 };
+
+    public SelectCardService(boolean isPathSelectionSupported) {
+      this.isPathSelectionSupported = isPathSelectionSupported;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU commandAPDU) {
+      int p1 = commandAPDU.getP1();
+      if (commandAPDU.getINS() == 0xB0) {
+        selects.add("B0:" + Hex.byteToHexString((byte)p1) + Hex.byteToHexString((byte)commandAPDU.getP2()));
+        if (!isSFISupported) {
+          return new ResponseAPDU(new byte[] { 0x6A, (byte)0x81 });
+        }
+        byte[] response = new byte[commandAPDU.getNe() + 2];
+        response[response.length - 2] = (byte)0x90;
+        return new ResponseAPDU(response);
+      }
+      p2 = commandAPDU.getP2();
+      selects.add(Hex.byteToHexString((byte)p1) + ":" + Hex.bytesToHexString(commandAPDU.getData()));
+      if (!isPathSelectionSupported && (p1 == 0x08 || p1 == 0x09)) {
+        return new ResponseAPDU(new byte[] { 0x6A, (byte)0x86 });
+      }
+      if (sw != 0x9000) {
+        return new ResponseAPDU(new byte[] { (byte)(sw >> 8), (byte)sw });
+      }
+      byte[] response = Arrays.copyOf(fcp, fcp.length + 2);
+      response[fcp.length] = (byte)0x90;
+      return new ResponseAPDU(response);
+    }
+  }
+}
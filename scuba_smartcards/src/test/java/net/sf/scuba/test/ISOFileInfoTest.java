@@ -0,0 +1,88 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.ISOFileInfo;
+import net.sf.scuba.util.Hex;
+
+public class ISOFileInfoTest extends TestCase {
+
+  public void testFCP() throws CardServiceException {
+    byte[] fcp = Hex.hexStringToBytes("62 11 80 02 FF FE 82 01 01 83 02 01 1E 88 01 F0 8A 01 05".replace(" ", ""));
+    ISOFileInfo fileInfo = new ISOFileInfo(fcp);
+    assertEquals(0xFFFE, fileInfo.getFileLength());
+    assertEquals((short)0x011E, fileInfo.getFID());
+    assertEquals(30, fileInfo.getShortFileIdentifier());
+    assertTrue(Arrays.equals(fcp, fileInfo.getFormatted()));
+  }
+
+  public void testLongLengths() throws CardServiceException {
+    byte[] fcp = new byte[3 + 4 + 3 + 200];
+    fcp[0] = 0x62;
+    fcp[1] = (byte)0x81;
+    fcp[2] = (byte)(fcp.length - 3);
+    System.arraycopy(new byte[] { (byte)0x83, 0x02, 0x01, 0x01, (byte)0x85, (byte)0x81, (byte)200 }, 0, fcp, 3, 7);
+    ISOFileInfo fileInfo = new ISOFileInfo(fcp);
+    assertEquals((short)0x0101, fileInfo.getFID());
+    assertEquals(-1, fileInfo.getFileLength());
+    assertEquals(-1, fileInfo.getShortFileIdentifier());
+
+    /* Two length bytes, and data after the template. */
+    byte[] fci = Hex.hexStringToBytes("6F820005800300800000009000");
+    fileInfo = new ISOFileInfo(fci);
+    assertEquals(0x008000, fileInfo.getFileLength());
+    assertEquals(9, fileInfo.getFormatted().length);
+  }
+
+  public void testEmpty() throws CardServiceException {
+    ISOFileInfo fileInfo = new ISOFileInfo(new byte[0]);
+    assertEquals(-1, fileInfo.getFID());
+    assertEquals(-1, fileInfo.getFileLength());
+    assertEquals(0, fileInfo.getFormatted().length);
+  }
+
+  public void testMalformed() {
+    String[] malformed = {
+        "00",
+        "62",
+        "6205830201",
+        "6203830101",
+        "62028380",
+        "6203990100",
+        "6204858301",
+    };
+    for (String hex: malformed) {
+      try {
+        new ISOFileInfo(Hex.hexStringToBytes(hex));
+        fail("Expected exception for " + hex);
+      } catch (CardServiceException cse) {
+        /* NOTE: expected. */
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import net.sf.scuba.smartcards.FileInfo;
+
+/**
+ * File information of a file in a {@link MemoryFileSystem}, equal for equal file identifiers.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+class MemoryFileInfo extends FileInfo {
+
+  private final short fid;
+  private final int length;
+
+  MemoryFileInfo(short fid, int length) {
+    this.fid = fid;
+    this.length = length;
+  }
+
+  @Override
+  public short getFID() {
+    return fid;
+  }
+
+  @Override
+  public int getFileLength() {
+    return length;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof MemoryFileInfo && ((MemoryFileInfo)other).fid == fid;
+  }
+
+  @Override
+  public int hashCode() {
+    return fid;
+  }
+}
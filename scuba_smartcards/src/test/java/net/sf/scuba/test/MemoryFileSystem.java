@@ -0,0 +1,101 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.FileInfo;
+import net.sf.scuba.smartcards.FileSystemStructured;
+
+/**
+ * Transparent files in a single DF, for tests. Counts SELECT and READ BINARY
+ * commands, and records the offset and length of each READ BINARY.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+class MemoryFileSystem implements FileSystemStructured {
+
+  final Map<Short, byte[]> files = new HashMap<Short, byte[]>();
+
+  /** File lengths to report instead of the lengths of the contents, by file identifier. */
+  final Map<Short, Integer> fileLengths = new HashMap<Short, Integer>();
+
+  final List<String> reads = new ArrayList<String>();
+  int maxReadLength = Integer.MAX_VALUE;
+  int selectCount;
+  int readCount;
+  private short selectedFID = -1;
+
+  /**
+   * Constructs a file system without files.
+   */
+  MemoryFileSystem() {
+  }
+
+  /**
+   * Constructs a file system with a single file, which is selected.
+   *
+   * @param fid the file identifier of the file
+   * @param content the contents of the file, not copied
+   */
+  MemoryFileSystem(short fid, byte[] content) {
+    files.put(fid, content);
+    selectedFID = fid;
+  }
+
+  public void selectFile(short fid) throws CardServiceException {
+    if (!files.containsKey(fid)) {
+      throw new CardServiceException("File not found", 0x6A82);
+    }
+    selectCount++;
+    selectedFID = fid;
+  }
+
+  public byte[] readBinary(int offset, int length) throws CardServiceException {
+    byte[] content = files.get(selectedFID);
+    if (content == null) {
+      throw new CardServiceException("No file selected", 0x6986);
+    }
+    readCount++;
+    reads.add(offset + "+" + length);
+    int end = Math.min(content.length, offset + Math.min(length, maxReadLength));
+    return Arrays.copyOfRange(content, Math.min(content.length, offset), end);
+  }
+
+  public FileInfo[] getSelectedPath() {
+    Integer length = fileLengths.get(selectedFID);
+    if (length == null) {
+      byte[] content = files.get(selectedFID);
+      length = content == null ? 0 : content.length;
+    }
+    return new FileInfo[] { new MemoryFileInfo(selectedFID, length) };
+  }
+}
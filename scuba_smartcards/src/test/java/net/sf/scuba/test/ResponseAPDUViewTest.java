@@ -0,0 +1,92 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.ResponseAPDU;
+import net.sf.scuba.smartcards.ResponseAPDUView;
+
+public class ResponseAPDUViewTest extends TestCase {
+
+  private static final byte[] APDU = { 0x6F, 0x03, (byte)0x83, 0x01, 0x1E, (byte)0x90, 0x00 };
+
+  public void testView() {
+    byte[] buffer = new byte[APDU.length + 4];
+    System.arraycopy(APDU, 0, buffer, 2, APDU.length);
+    ResponseAPDUView view = new ResponseAPDUView(buffer, 2, APDU.length);
+    ResponseAPDU response = new ResponseAPDU(APDU);
+
+    assertEquals(response.getNr(), view.getNr());
+    assertEquals(0x90, view.getSW1());
+    assertEquals(0x00, view.getSW2());
+    assertEquals(response.getSW(), view.getSW());
+    assertEquals(ByteBuffer.wrap(response.getData()), view.dataBuffer());
+    assertEquals(response, view.toResponseAPDU());
+
+    byte[] data = new byte[view.getNr() + 1];
+    assertEquals(5, view.copyDataTo(data, 1));
+    assertTrue(Arrays.equals(response.getData(), Arrays.copyOfRange(data, 1, data.length)));
+
+    /* The view is not a copy. */
+    buffer[2 + APDU.length - 1] = 0x01;
+    assertEquals(0x9001, view.getSW());
+    assertEquals(0x9000, response.getSW());
+
+    try {
+      view.copyDataTo(new byte[4], 0);
+      fail("Expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException expected) {
+      /* NOTE: expected. */
+    }
+  }
+
+  public void testBufferPositionUnchanged() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+    buffer.put(APDU);
+    buffer.flip();
+    ResponseAPDUView view = new ResponseAPDUView(buffer);
+    assertEquals(0, buffer.position());
+    assertEquals(APDU.length, buffer.limit());
+    assertTrue(view.dataBuffer().isReadOnly());
+    assertEquals(0x9000, view.getSW());
+    byte[] data = new byte[view.getNr()];
+    assertEquals(5, view.copyDataTo(data, 0));
+    assertTrue(Arrays.equals(Arrays.copyOf(APDU, 5), data));
+  }
+
+  public void testResponseAPDUData() {
+    ResponseAPDU response = new ResponseAPDU(APDU);
+    ByteBuffer data = response.dataBuffer();
+    assertTrue(data.isReadOnly());
+    assertEquals(ByteBuffer.wrap(response.getData()), data);
+    byte[] copy = new byte[5];
+    assertEquals(5, response.copyDataTo(copy, 0));
+    assertTrue(Arrays.equals(response.getData(), copy));
+
+    assertEquals(0, new ResponseAPDU(new byte[] { 0x6A, (byte)0x82 }).dataBuffer().remaining());
+  }
+}
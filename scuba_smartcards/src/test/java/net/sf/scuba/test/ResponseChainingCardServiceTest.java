@@ -0,0 +1,199 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+import net.sf.scuba.smartcards.ResponseChainingCardService;
+
+public class ResponseChainingCardServiceTest extends TestCase {
+
+  /** The data the fake card returns. */
+  private static final byte[] DATA = new byte[600];
+  static {
+    for (int i = 0; i < DATA.length; i++) {
+      DATA[i] = (byte)i;
+    }
+  }
+
+  public void testGetResponse() throws Exception {
+    T0CardService card = new T0CardService();
+    ResponseChainingCardService service = new ResponseChainingCardService(card);
+
+    /* INS 0xCA returns all data, through 61XX. */
+    ResponseAPDU response = service.transmit(new CommandAPDU(0x01, 0xCA, 0x00, 0x00, 256));
+    assertEquals(0x9000, response.getSW());
+    assertTrue(Arrays.equals(DATA, response.getData()));
+    assertEquals(4, card.commands.size());
+    assertEquals(0x01, card.commands.get(1).getCLA());
+    assertEquals(0xC0, card.commands.get(1).getINS());
+    assertEquals(256, card.commands.get(1).getNe());
+    assertEquals(88, card.commands.get(3).getNe());
+  }
+
+  public void testCorrectedLength() throws Exception {
+    T0CardService card = new T0CardService();
+    ResponseChainingCardService service = new ResponseChainingCardService(card);
+
+    /* INS 0x84 wants Le 8 exactly. */
+    ResponseAPDU response = service.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 256));
+    assertEquals(0x9000, response.getSW());
+    assertEquals(8, response.getNr());
+    assertEquals(2, card.commands.size());
+
+    /* The corrected Le is remembered. */
+    card.commands.clear();
+    response = service.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 256));
+    assertEquals(8, response.getNr());
+    assertEquals(1, card.commands.size());
+    assertEquals(8, card.commands.get(0).getNe());
+
+    /* But not for a different Le. */
+    card.commands.clear();
+    service.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 16));
+    assertEquals(2, card.commands.size());
+
+    service.clearCorrectedLengths();
+    card.commands.clear();
+    service.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 256));
+    assertEquals(2, card.commands.size());
+  }
+
+  public void testCorrectedLengthPerObject() throws Exception {
+    T0CardService card = new T0CardService();
+    ResponseChainingCardService service = new ResponseChainingCardService(card);
+
+    /* INS 0xCB wants Le equal to P2, so objects have different lengths. */
+    assertEquals(16, service.transmit(new CommandAPDU(0x00, 0xCB, 0x00, 0x10, 256)).getNr());
+    card.commands.clear();
+    assertEquals(32, service.transmit(new CommandAPDU(0x00, 0xCB, 0x00, 0x20, 256)).getNr());
+    assertEquals(2, card.commands.size());
+    card.commands.clear();
+    assertEquals(16, service.transmit(new CommandAPDU(0x00, 0xCB, 0x00, 0x10, 256)).getNr());
+    assertEquals(1, card.commands.size());
+  }
+
+  public void testReadBinaryLengthNotRemembered() throws Exception {
+    T0CardService card = new T0CardService();
+    ResponseChainingCardService service = new ResponseChainingCardService(card);
+
+    /* Near the end of the file. */
+    assertEquals(4, service.transmit(new CommandAPDU(0x00, 0xB0, 0x00, 0x10, 8)).getNr());
+    card.commands.clear();
+    assertEquals(8, service.transmit(new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 8)).getNr());
+    assertEquals(1, card.commands.size());
+    assertEquals(8, card.commands.get(0).getNe());
+    card.commands.clear();
+    assertEquals(4, service.transmit(new CommandAPDU(0x00, 0xB0, 0x00, 0x10, 8)).getNr());
+    assertEquals(2, card.commands.size());
+  }
+
+  public void testNoContinuation() throws Exception {
+    T0CardService card = new T0CardService();
+    ResponseChainingCardService service = new ResponseChainingCardService(card);
+    ResponseAPDU response = service.transmit(new CommandAPDU(0x00, 0xA4, 0x00, 0x00, 4));
+    assertEquals(0x6A82, response.getSW());
+    assertEquals(1, card.commands.size());
+  }
+
+  public void testGetResponseWithoutData() throws Exception {
+    T0CardService card = new T0CardService();
+    card.isStuck = true;
+    ResponseChainingCardService service = new ResponseChainingCardService(card);
+    try {
+      service.transmit(new CommandAPDU(0x00, 0xCA, 0x01, 0x01, 256));
+      fail("Expected exception");
+    } catch (CardServiceException cse) {
+      /* NOTE: expected. */
+      assertEquals(0x6110, cse.getSW());
+    }
+    assertEquals(2, card.commands.size());
+  }
+
+  /**
+   * A fake card that returns data in chunks of at most 256 bytes through 61XX
+   * for GET DATA, wants an exact Le for GET CHALLENGE, and for INS 0xCB wants Le equal to P2.
+   * READ BINARY reads a file of 20 bytes, and wants an exact Le near its end.
+   * Otherwise it returns 6A82. A stuck card answers GET RESPONSE with 6110 and no data.
+   */
+  private static class T0CardService extends StubCardService {
+
+    private List<CommandAPDU> commands = new ArrayList<CommandAPDU>();
+    private int offset;
+    private boolean isStuck;
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU commandAPDU) {
+      commands.add(commandAPDU);
+      switch (commandAPDU.getINS()) {
+        case 0xCA:
+          offset = 0;
+          return respond(0, 0, 0x6100 | (Math.min(256, DATA.length) & 0xFF));
+        case 0xC0:
+          if (isStuck) {
+            return respond(0, 0, 0x6110);
+          }
+          int start = offset;
+          int length = Math.min(commandAPDU.getNe(), DATA.length - offset);
+          offset += length;
+          int remaining = DATA.length - offset;
+          return respond(start, length, remaining == 0 ? 0x9000 : 0x6100 | (Math.min(256, remaining) & 0xFF));
+        case 0x84:
+          if (commandAPDU.getNe() != 8) {
+            return respond(0, 0, 0x6C08);
+          }
+          return respond(0, 8, 0x9000);
+        case 0xCB:
+          int p2 = commandAPDU.getP2();
+          if (commandAPDU.getNe() != p2) {
+            return respond(0, 0, 0x6C00 | p2);
+          }
+          return respond(0, p2, 0x9000);
+        case 0xB0:
+          int fileOffset = (commandAPDU.getP1() << 8) | commandAPDU.getP2();
+          int available = 20 - fileOffset;
+          if (commandAPDU.getNe() > available) {
+            return respond(0, 0, 0x6C00 | available);
+          }
+          return respond(fileOffset, commandAPDU.getNe(), 0x9000);
+        default:
+          return respond(0, 0, 0x6A82);
+      }
+    }
+
+    private ResponseAPDU respond(int dataOffset, int length, int sw) {
+      byte[] apdu = new byte[length + 2];
+      System.arraycopy(DATA, dataOffset, apdu, 0, length);
+      apdu[length] = (byte)(sw >> 8);
+      apdu[length + 1] = (byte)sw;
+      return new ResponseAPDU(apdu);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+/**
+ * A card service for tests, with an empty ATR, that answers every command with 6D00.
+ * Tests override {@link #transmit(CommandAPDU)} to fake a card.
+ *
+ * @author The SCUBA team
+ *
+ * @version $Revision$
+ */
+class StubCardService extends CardService {
+
+  @Override
+  public void open() {
+    notifySessionStarted();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  @Override
+  public ResponseAPDU transmit(CommandAPDU commandAPDU) throws CardServiceException {
+    return new ResponseAPDU(new byte[] { 0x6D, 0x00 });
+  }
+
+  @Override
+  public byte[] getATR() {
+    return new byte[0];
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public boolean isConnectionLost(Exception e) {
+    return false;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.scuba.tlv.TLVArchive;
+import net.sf.scuba.tlv.TLVCursor;
+import net.sf.scuba.tlv.TLVOutputStream;
+import net.sf.scuba.tlv.TLVRecordProcessor;
+import net.sf.scuba.util.Hex;
+
+public class TLVArchiveTest extends TestCase {
+
+  public void testProcess() throws Exception {
+    int count = 3000;
+    FileOutputStream out = null;
+    File file = File.createTempFile("archive", ".tlv");
+    file.deleteOnExit();
+    try {
+      out = new FileOutputStream(file);
+      for (int i = 0; i < count; i++) {
+        if (i % 7 == 0) {
+          /* Padding between records. */
+          out.write(new byte[] { 0x00, (byte)0xFF });
+        }
+        /* 61 { 5F1F { i } 04 { i % 300 bytes } } */
+        TLVOutputStream tlvOutputStream = new TLVOutputStream(out);
+        tlvOutputStream.writeTag(0x61);
+        tlvOutputStream.writeTag(0x5F1F);
+        tlvOutputStream.writeValue(new byte[] { (byte)(i >> 8), (byte)i });
+        tlvOutputStream.writeTag(0x04);
+        tlvOutputStream.writeValue(new byte[i % 300]);
+        tlvOutputStream.writeValueEnd(); /* 0x61 */
+        tlvOutputStream.flush();
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+
+    TLVArchive archive = new TLVArchive(file);
+    try {
+      assertEquals(count, archive.getRecordCount());
+      assertEquals(2, archive.getRecordOffset(0));
+      archive.validate();
+
+      List<Integer> results = archive.process(new TLVRecordProcessor<Integer>() {
+        public Integer process(int index, ByteBuffer record) {
+          TLVCursor cursor = new TLVCursor(record);
+          cursor.skipToTag(0x5F1F);
+          return (int)cursor.getValue().getShort();
+        }
+      });
+      for (int i = 0; i < count; i++) {
+        assertEquals(i, results.get(i).intValue());
+      }
+    } finally {
+      archive.close();
+    }
+  }
+
+  public void testMalformed() throws Exception {
+    File file = File.createTempFile("archive", ".tlv");
+    file.deleteOnExit();
+
+    /* Second record is truncated. */
+    write(file, Hex.hexStringToBytes("040101" + "0405010203"));
+    try {
+      new TLVArchive(file);
+      fail("Expected exception");
+    } catch (EOFException expected) {
+      /* Expected. */
+    }
+
+    /* Child longer than parent, only detected by validating. */
+    write(file, Hex.hexStringToBytes("040101" + "610404050102"));
+    TLVArchive archive = new TLVArchive(file);
+    try {
+      assertEquals(2, archive.getRecordCount());
+      archive.validate();
+      fail("Expected exception");
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().contains("record 1"));
+    } finally {
+      archive.close();
+    }
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+}
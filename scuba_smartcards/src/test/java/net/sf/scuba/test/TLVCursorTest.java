@@ -0,0 +1,131 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+package net.sf.scuba.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.scuba.tlv.TLVCursor;
+import net.sf.scuba.tlv.TLVInputStream;
+import net.sf.scuba.tlv.TLVOutputStream;
+import net.sf.scuba.util.Hex;
+
+public class TLVCursorTest extends TestCase {
+
+  public void testNested() throws Exception {
+    Random random = new Random();
+    byte[] firstValue = new byte[300];
+    random.nextBytes(firstValue);
+    byte[] secondValue = new byte[17];
+    random.nextBytes(secondValue);
+    byte[] encoded = encodeNested(firstValue, secondValue);
+
+    testNested(new TLVCursor(encoded), firstValue, secondValue);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+    direct.put(encoded);
+    direct.flip();
+    testNested(new TLVCursor(direct), firstValue, secondValue);
+  }
+
+  public void testPaddingAndSkipToTag() throws Exception {
+    byte[] encoded = encodeNested(new byte[] { 0x01, 0x02 }, new byte[] { 0x03 });
+    byte[] padded = new byte[encoded.length + 4];
+    padded[0] = (byte)0xFF;
+    padded[1] = 0x00;
+    System.arraycopy(encoded, 0, padded, 2, encoded.length);
+
+    TLVInputStream tlvInputStream = new TLVInputStream(new ByteArrayInputStream(padded));
+    tlvInputStream.skipToTag(0x5F1F);
+    int expectedLength = tlvInputStream.readLength();
+    byte[] expectedValue = tlvInputStream.readValue();
+    tlvInputStream.close();
+
+    TLVCursor cursor = new TLVCursor(padded);
+    assertTrue(cursor.skipToTag(0x5F1F));
+    assertEquals(expectedLength, cursor.getLength());
+    byte[] actualValue = new byte[cursor.getLength()];
+    cursor.copyValue(actualValue, 0);
+    assertTrue(Arrays.equals(expectedValue, actualValue));
+    assertFalse(cursor.skipToTag(0x42));
+  }
+
+  public void testTruncated() {
+    TLVCursor cursor = new TLVCursor(new byte[] { 0x61, 0x05, 0x01 });
+    try {
+      cursor.next();
+      fail("Expected exception");
+    } catch (IllegalArgumentException expected) {
+      /* Expected. */
+    }
+  }
+
+  public void testIllegalLength() {
+    /* Five length bytes, which used to wrap to a length of 2, and indefinite length. */
+    String[] hostiles = { "0485010000000241420401", "04800000" };
+    for (String hostile: hostiles) {
+      TLVCursor cursor = new TLVCursor(Hex.hexStringToBytes(hostile));
+      try {
+        cursor.next();
+        fail("Expected exception");
+      } catch (IllegalArgumentException expected) {
+        /* Expected. */
+      }
+    }
+  }
+
+  private void testNested(TLVCursor cursor, byte[] firstValue, byte[] secondValue) {
+    assertTrue(cursor.next());
+    assertEquals(0x61, cursor.getTag());
+    assertFalse(cursor.isPrimitive());
+    cursor.enter();
+    assertTrue(cursor.next());
+    assertEquals(0x5F1F, cursor.getTag());
+    assertEquals(firstValue.length, cursor.getLength());
+    assertEquals(ByteBuffer.wrap(firstValue), cursor.getValue());
+    assertTrue(cursor.next());
+    assertEquals(0x04, cursor.getTag());
+    assertEquals(ByteBuffer.wrap(secondValue), cursor.getValue());
+    assertFalse(cursor.next());
+    cursor.exit();
+    assertFalse(cursor.next());
+    assertEquals(0, cursor.getDepth());
+  }
+
+  private static byte[] encodeNested(byte[] firstValue, byte[] secondValue) throws Exception {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    TLVOutputStream tlvOutputStream = new TLVOutputStream(byteArrayOutputStream);
+    tlvOutputStream.writeTag(0x61);
+    tlvOutputStream.writeTag(0x5F1F);
+    tlvOutputStream.writeValue(firstValue);
+    tlvOutputStream.writeTag(0x04);
+    tlvOutputStream.writeValue(secondValue);
+    tlvOutputStream.writeValueEnd();
+    tlvOutputStream.close();
+    return byteArrayOutputStream.toByteArray();
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+import net.sf.scuba.tlv.TLVIndex;
+import net.sf.scuba.util.Hex;
+
+public class TLVIndexTest extends TestCase {
+
+  /*
+   * 75 {
+   *   7F61 {
+   *     02 { 03 }
+   *     7F60 { 5F2E { 01 02 } }
+   *     7F60 { 5F2E { 03 } }
+   *   }
+   *   5F1F { 04 }
+   * }
+   */
+  private static final byte[] ENCODED = Hex.hexStringToBytes("75197F61120201037F60055F2E0201027F60045F2E01035F1F0104");
+
+  public void testFind() {
+    testFind(new TLVIndex(ENCODED));
+
+    byte[] padded = new byte[ENCODED.length + 3];
+    System.arraycopy(ENCODED, 0, padded, 3, ENCODED.length);
+    ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+    direct.put(padded);
+    direct.position(3);
+    TLVIndex index = new TLVIndex(direct);
+    assertEquals(3, direct.position());
+    testFind(index);
+    assertEquals(3, index.getTagOffset(0));
+  }
+
+  private void testFind(TLVIndex index) {
+    assertEquals(8, index.getElementCount());
+
+    int element = index.find("0x75/0x7F61/0x7F60/0x5F2E");
+    assertTrue(element >= 0);
+    assertEquals(0x5F2E, index.getTag(element));
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x01, 0x02 }), index.getValue(element));
+
+    /* Repeated elements with the same path. */
+    element = index.findNext(element);
+    assertTrue(element >= 0);
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x03 }), index.getValue(element));
+    assertEquals(-1, index.findNext(element));
+
+    assertEquals(index.find(0x75, 0x5F1F), index.find("75/5F1F"));
+    assertEquals(-1, index.find(0x7F61));
+    assertEquals(-1, index.find(0x75, 0x7F61, 0x5F2E));
+
+    /* Navigation. */
+    int root = index.find(0x75);
+    assertEquals(0, root);
+    assertEquals(-1, index.getParent(root));
+    int first = index.getFirstChild(root);
+    assertEquals(0x7F61, index.getTag(first));
+    assertEquals(0x5F1F, index.getTag(index.getNextSibling(first)));
+    assertEquals(-1, index.getNextSibling(index.getNextSibling(first)));
+    assertEquals(-1, index.getFirstChild(index.find(0x75, 0x5F1F)));
+
+    int secondTemplate = index.findNext(index.find(0x75, 0x7F61, 0x7F60));
+    int child = index.findChild(secondTemplate, 0x5F2E);
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x03 }), index.getValue(child));
+    assertEquals(-1, index.findChild(secondTemplate, 0x02));
+
+    ByteBuffer encoded = index.getEncoded(child);
+    byte[] encodedBytes = new byte[encoded.remaining()];
+    encoded.get(encodedBytes);
+    assertTrue(Arrays.equals(Hex.hexStringToBytes("5F2E0103"), encodedBytes));
+  }
+
+  public void testInterpretedValue() {
+    /* 30 { 0C "abc", 18 "20231231235958.5Z" } */
+    byte[] encoded = Hex.hexStringToBytes("3018" + "0C03616263" + "1811" + Hex.bytesToHexString("20231231235958.5Z".getBytes()));
+    TLVIndex index = new TLVIndex(encoded);
+    int string = index.find(0x30, 0x0C);
+    assertEquals("abc", index.getInterpretedValue(string).getValue());
+    assertSame(index.getInterpretedValue(string), index.getInterpretedValue(string));
+    int time = index.find(0x30, 0x18);
+    assertEquals(500, ((Date)index.getInterpretedValue(time).getValue()).getTime() % 1000);
+    try {
+      index.getInterpretedValue(0);
+      fail("Expected exception");
+    } catch (IllegalArgumentException iae) {
+      /* NOTE: expected. */
+    }
+  }
+
+  public void testIllegalLength() {
+    /* Five length bytes, rejected by the cursor that builds the index. */
+    try {
+      new TLVIndex(Hex.hexStringToBytes("0485010000000241420401"));
+      fail("Expected exception");
+    } catch (IllegalArgumentException iae) {
+      /* NOTE: expected. */
+    }
+  }
+
+  public void testManyPaths() {
+    /* Enough distinct and repeated paths to grow the tables. */
+    int count = 200;
+    ByteBuffer buffer = ByteBuffer.allocate(count * 6);
+    for (int i = 0; i < count; i++) {
+      buffer.put((byte)0x61);
+      buffer.put((byte)0x04);
+      buffer.put((byte)0x9F);
+      buffer.put((byte)(i % 50));
+      buffer.put((byte)0x01);
+      buffer.put((byte)i);
+    }
+    TLVIndex index = new TLVIndex(buffer.array());
+    assertEquals(2 * count, index.getElementCount());
+    for (int i = 0; i < 50; i++) {
+      int element = index.find(0x61, 0x9F00 | i);
+      int occurrences = 0;
+      while (element >= 0) {
+        assertEquals(i, (index.getValue(element).get(0) & 0xFF) % 50);
+        occurrences++;
+        element = index.findNext(element);
+      }
+      assertEquals(count / 50, occurrences);
+    }
+  }
+
+  public void testParsePath() {
+    assertTrue(Arrays.equals(new int[] { 0x75, 0x7F61, 0x5F2E }, TLVIndex.parsePath("0x75/0x7F61/0x5F2E")));
+    assertTrue(Arrays.equals(new int[] { 0xFF000001 }, TLVIndex.parsePath("FF000001")));
+    try {
+      TLVIndex.parsePath("75/x");
+      fail("Expected exception");
+    } catch (IllegalArgumentException expected) {
+      /* Expected. */
+    }
+  }
+}
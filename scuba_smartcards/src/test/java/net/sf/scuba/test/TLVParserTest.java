@@ -0,0 +1,192 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.scuba.tlv.TLVListener;
+import net.sf.scuba.tlv.TLVOutputStream;
+import net.sf.scuba.tlv.TLVParser;
+import net.sf.scuba.util.Hex;
+
+public class TLVParserTest extends TestCase {
+
+  public void testChunks() throws Exception {
+    Random random = new Random();
+    byte[] largeValue = new byte[70000];
+    random.nextBytes(largeValue);
+
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    TLVOutputStream tlvOutputStream = new TLVOutputStream(byteArrayOutputStream);
+    tlvOutputStream.writeTag(0x75);
+    tlvOutputStream.writeTag(0x7F61);
+    tlvOutputStream.writeTag(0x5F1F);
+    tlvOutputStream.writeValue(new byte[] { 0x01, 0x02 });
+    tlvOutputStream.writeTag(0x61);
+    tlvOutputStream.writeLength(0);
+    tlvOutputStream.writeTag(0x5F2E);
+    tlvOutputStream.writeValue(largeValue);
+    tlvOutputStream.writeValueEnd(); /* 0x7F61 */
+    tlvOutputStream.writeTag(0x04);
+    tlvOutputStream.writeValue(new byte[0]);
+    tlvOutputStream.writeValueEnd(); /* 0x75 */
+    tlvOutputStream.close();
+    byte[] encoded = byteArrayOutputStream.toByteArray();
+
+    String expected = "<75 <7F61 5F1F:2 <61 61> 5F2E:70000 7F61> 4:0 75>";
+
+    /* In one go. */
+    EventRecorder recorder = new EventRecorder();
+    TLVParser parser = new TLVParser(recorder);
+    parser.feed(encoded);
+    parser.close();
+    assertEquals(expected, recorder.toString());
+
+    /* Byte by byte. */
+    recorder = new EventRecorder();
+    parser = new TLVParser(recorder);
+    for (int i = 0; i < encoded.length; i++) {
+      parser.feed(encoded, i, 1);
+      assertEquals(i == encoded.length - 1, parser.isComplete());
+    }
+    assertTrue(parser.isComplete());
+    assertEquals(expected, recorder.toString());
+
+    /* In APDU sized chunks. */
+    recorder = new EventRecorder();
+    parser = new TLVParser(recorder);
+    for (int offset = 0; offset < encoded.length; offset += 223) {
+      parser.feed(encoded, offset, Math.min(223, encoded.length - offset));
+    }
+    parser.close();
+    assertEquals(expected, recorder.toString());
+    assertTrue(Arrays.equals(largeValue, recorder.values.get(0x5F2E)));
+  }
+
+  public void testPadding() throws Exception {
+    /* Padding before and inside the constructed element, counted in its length. */
+    byte[] encoded = Hex.hexStringToBytes("FF00610600040100FFFF0000");
+    EventRecorder recorder = new EventRecorder();
+    TLVParser parser = new TLVParser(recorder);
+    parser.feed(encoded);
+    parser.close();
+    assertEquals("<61 4:1 61>", recorder.toString());
+  }
+
+  public void testStop() throws Exception {
+    byte[] encoded = Hex.hexStringToBytes("610A5F1F01015F2E0102");
+    final TLVParser[] parser = new TLVParser[1];
+    parser[0] = new TLVParser(new EventRecorder() {
+      @Override
+      public void primitiveValue(int tag, byte[] value) {
+        super.primitiveValue(tag, value);
+        parser[0].stop();
+      }
+    });
+    parser[0].feed(encoded);
+    assertTrue(parser[0].isStopped());
+    assertEquals(1, parser[0].getDepth());
+    parser[0].close();
+  }
+
+  public void testMalformed() throws Exception {
+    /* Truncated. */
+    TLVParser parser = new TLVParser(new EventRecorder());
+    parser.feed(Hex.hexStringToBytes("6105040301"));
+    try {
+      parser.close();
+      fail("Expected exception");
+    } catch (EOFException expected) {
+      /* Expected. */
+    }
+
+    /* Child longer than parent. */
+    parser = new TLVParser(new EventRecorder());
+    try {
+      parser.feed(Hex.hexStringToBytes("610304030102"));
+      fail("Expected exception");
+    } catch (IOException expected) {
+      /* Expected. */
+    }
+
+    /* Exceeds maximum length. */
+    parser = new TLVParser(new EventRecorder(), 1024);
+    try {
+      parser.feed(Hex.hexStringToBytes("04847FFFFFFF"));
+      fail("Expected exception");
+    } catch (IOException expected) {
+      /* Expected. */
+    }
+
+    /* Five length bytes, which used to wrap to a length of 2, and indefinite length. */
+    String[] hostiles = { "04850100000002414204019A", "04800000" };
+    for (String hostile: hostiles) {
+      parser = new TLVParser(new EventRecorder());
+      try {
+        parser.feed(Hex.hexStringToBytes(hostile));
+        fail("Expected exception");
+      } catch (IOException expected) {
+        /* Expected. */
+      }
+    }
+  }
+
+  private static class EventRecorder implements TLVListener {
+
+    private StringBuilder events = new StringBuilder();
+    private Map<Integer, byte[]> values = new HashMap<Integer, byte[]>();
+
+    public void startElement(int tag, int length) {
+      append("<" + Integer.toHexString(tag).toUpperCase());
+    }
+
+    public void endElement(int tag) {
+      append(Integer.toHexString(tag).toUpperCase() + ">");
+    }
+
+    public void primitiveValue(int tag, byte[] value) {
+      values.put(tag, value);
+      append(Integer.toHexString(tag).toUpperCase() + ":" + value.length);
+    }
+
+    @Override
+    public String toString() {
+      return events.toString();
+    }
+
+    private void append(String event) {
+      if (events.length() > 0) {
+        events.append(' ');
+      }
+      events.append(event);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.scuba.tlv.TLVQuery;
+import net.sf.scuba.util.Hex;
+
+public class TLVQueryTest extends TestCase {
+
+  /*
+   * 61 {
+   *   75 { 5F1F { 01 } 7F2E { 02 03 } }
+   *   5F0E { 04 }
+   *   75 { 5F1F { 05 } }
+   * }
+   * 5F0E { 06 }
+   */
+  private static final byte[] ENCODED = Hex.hexStringToBytes("61157509" + "5F1F01017F2E020203" + "5F0E0104" + "75045F1F0105" + "5F0E0106");
+
+  public void testExtract() {
+    TLVQuery query = TLVQuery.compile("61/75/5F1F", "61/5F0E", "61/75/7F2E", "61/7F2E", "5F0E");
+    assertEquals(5, query.getPathCount());
+    ByteBuffer[] values = query.extract(ENCODED);
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x01 }), values[0]);
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x04 }), values[1]);
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x02, 0x03 }), values[2]);
+    assertNull(values[3]);
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x06 }), values[4]);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(ENCODED.length);
+    direct.put(ENCODED);
+    direct.flip();
+    values = query.extract(direct);
+    assertEquals(0, direct.position());
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x02, 0x03 }), values[2]);
+  }
+
+  public void testExtractAll() {
+    /* A path that is also a prefix of another path. */
+    TLVQuery query = new TLVQuery(new int[] { 0x61, 0x75, 0x5F1F }, new int[] { 0x61, 0x75 });
+    List<List<ByteBuffer>> values = query.extractAll(ENCODED);
+    assertEquals(2, values.get(0).size());
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x01 }), values.get(0).get(0));
+    assertEquals(ByteBuffer.wrap(new byte[] { 0x05 }), values.get(0).get(1));
+    assertEquals(2, values.get(1).size());
+    assertEquals(4, values.get(1).get(1).remaining());
+  }
+
+  public void testIllegalPaths() {
+    try {
+      TLVQuery.compile("61/75", "0x61/0x75");
+      fail("Expected exception");
+    } catch (IllegalArgumentException expected) {
+      /* Expected. */
+    }
+    try {
+      new TLVQuery(new int[0]);
+      fail("Expected exception");
+    } catch (IllegalArgumentException expected) {
+      /* Expected. */
+    }
+  }
+}
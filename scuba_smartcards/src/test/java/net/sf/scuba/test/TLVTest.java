@@ -24,6 +24,10 @@ package net.sf.scuba.test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.logging.Level;
@@ -34,6 +38,8 @@ import net.sf.scuba.smartcards.ISO7816;
 import net.sf.scuba.tlv.ASN1Constants;
 import net.sf.scuba.tlv.TLVInputStream;
 import net.sf.scuba.tlv.TLVOutputStream;
+import net.sf.scuba.tlv.TLVUtil;
+import net.sf.scuba.util.Hex;
 
 public class TLVTest extends TestCase {
 
@@ -254,4 +260,195 @@ public class TLVTest extends TestCase {
       fail(e.getMessage());
     }
   }
+
+  public void testDeeplyNestedTLV() {
+    Random random = new Random();
+    int depth = 7;
+    int[] valueLengths = { 0, 1, 127, 128, 255, 256, 65536 };
+    for (int valueLength: valueLengths) {
+      byte[] value = new byte[valueLength];
+      random.nextBytes(value);
+      try {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        TLVOutputStream tlvOutputStream = new TLVOutputStream(byteArrayOutputStream);
+        try {
+          for (int i = 0; i < depth; i++) {
+            tlvOutputStream.writeTag(0x30);
+          }
+          tlvOutputStream.writeTag(0x5F1F);
+          tlvOutputStream.write(value);
+          tlvOutputStream.writeValueEnd();
+          for (int i = 0; i < depth; i++) {
+            tlvOutputStream.writeValueEnd();
+          }
+        } finally {
+          tlvOutputStream.close();
+        }
+
+        byte[] encoded = byteArrayOutputStream.toByteArray();
+
+        TLVInputStream tlvInputStream = new TLVInputStream(new ByteArrayInputStream(encoded));
+        try {
+          int expectedLength = encoded.length;
+          for (int i = 0; i < depth; i++) {
+            assertEquals(0x30, tlvInputStream.readTag());
+            int length = tlvInputStream.readLength();
+            assertTrue(length < expectedLength);
+            expectedLength = length;
+          }
+          assertEquals(0x5F1F, tlvInputStream.readTag());
+          assertEquals(value.length, tlvInputStream.readLength());
+          assertTrue(Arrays.equals(value, tlvInputStream.readValue()));
+          assertEquals(-1, tlvInputStream.read());
+        } finally {
+          tlvInputStream.close();
+        }
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Exception", e);
+        fail(e.getMessage());
+      }
+    }
+  }
+
+  public void testTagAndLengthEncoding() {
+    int[] tags = { 0x01, 0x30, 0x5F1F, 0x7F61, 0x5F2E, 0xBF8101 };
+    String[] encodedTags = { "01", "30", "5F1F", "7F61", "5F2E", "BF8101" };
+    int[] lengths = { 0, 0x7F, 0x80, 0xFF, 0x100, 0xFFFF, 0x10000, 0x1000000 };
+    String[] encodedLengths = { "00", "7F", "8180", "81FF", "820100", "82FFFF", "83010000", "8401000000" };
+
+    byte[] dest = new byte[8];
+    ByteBuffer destBuffer = ByteBuffer.allocate(8);
+    for (int i = 0; i < tags.length; i++) {
+      byte[] expected = Hex.hexStringToBytes(encodedTags[i]);
+      assertTrue(Arrays.equals(expected, TLVUtil.getTagAsBytes(tags[i])));
+      assertEquals(expected.length, TLVUtil.getTagLength(tags[i]));
+      assertEquals(expected.length, TLVUtil.encodeTag(tags[i], dest, 1));
+      assertTrue(Arrays.equals(expected, Arrays.copyOfRange(dest, 1, 1 + expected.length)));
+      destBuffer.clear();
+      assertEquals(expected.length, TLVUtil.encodeTag(tags[i], destBuffer));
+      assertEquals(expected.length, destBuffer.position());
+      assertEquals((expected[0] & 0x20) == 0, TLVUtil.isPrimitive(tags[i]));
+    }
+    for (int i = 0; i < lengths.length; i++) {
+      byte[] expected = Hex.hexStringToBytes(encodedLengths[i]);
+      assertTrue(Arrays.equals(expected, TLVUtil.getLengthAsBytes(lengths[i])));
+      assertEquals(expected.length, TLVUtil.getLengthLength(lengths[i]));
+      assertEquals(expected.length, TLVUtil.encodeLength(lengths[i], dest, 0));
+      assertTrue(Arrays.equals(expected, Arrays.copyOfRange(dest, 0, expected.length)));
+      destBuffer.clear();
+      assertEquals(expected.length, TLVUtil.encodeLength(lengths[i], destBuffer));
+      assertEquals(expected.length, destBuffer.position());
+    }
+  }
+
+  public void testValueStreaming() throws Exception {
+    Random random = new Random();
+    byte[] value = new byte[100000];
+    random.nextBytes(value);
+    byte[] encoded = encode(0x5F2E, value);
+
+    TLVInputStream tlvInputStream = new TLVInputStream(new ByteArrayInputStream(encoded));
+    assertEquals(0x5F2E, tlvInputStream.readTag());
+    assertEquals(value.length, tlvInputStream.readLength());
+    ByteArrayOutputStream valueOutputStream = new ByteArrayOutputStream();
+    assertEquals(value.length, tlvInputStream.readValue(valueOutputStream));
+    assertTrue(Arrays.equals(value, valueOutputStream.toByteArray()));
+    tlvInputStream.close();
+
+    tlvInputStream = new TLVInputStream(new ByteArrayInputStream(encoded));
+    tlvInputStream.readTag();
+    tlvInputStream.readLength();
+    InputStream valueInputStream = tlvInputStream.getValueInputStream();
+    byte[] prefix = new byte[10];
+    assertEquals(prefix.length, valueInputStream.read(prefix));
+    assertTrue(Arrays.equals(Arrays.copyOf(value, prefix.length), prefix));
+    valueInputStream.close();
+    assertEquals(-1, valueInputStream.read());
+    assertEquals(-1, tlvInputStream.read());
+    tlvInputStream.close();
+  }
+
+  public void testMaxValueLength() throws Exception {
+    /* Claims a value of 0x7FFFFFFF bytes. */
+    byte[] hostile = Hex.hexStringToBytes("04847FFFFFFF0102");
+    TLVInputStream tlvInputStream = new TLVInputStream(new ByteArrayInputStream(hostile), 65536);
+    tlvInputStream.readTag();
+    try {
+      tlvInputStream.readLength();
+      fail("Expected exception");
+    } catch (IOException expected) {
+      /* Expected. */
+    } finally {
+      tlvInputStream.close();
+    }
+
+    /* Without a maximum, the truncated value is detected without allocating the claimed length. */
+    tlvInputStream = new TLVInputStream(new ByteArrayInputStream(hostile));
+    tlvInputStream.readTag();
+    tlvInputStream.readLength();
+    try {
+      tlvInputStream.readValue();
+      fail("Expected exception");
+    } catch (EOFException expected) {
+      /* Expected. */
+    } finally {
+      tlvInputStream.close();
+    }
+  }
+
+  public void testIllegalLength() throws Exception {
+    /* Four length bytes with the sign bit set, and five length bytes. */
+    String[] hostiles = { "0484FFFFFFFF0102", "0485000000000101" };
+    for (String hostile: hostiles) {
+      TLVInputStream tlvInputStream = new TLVInputStream(new ByteArrayInputStream(Hex.hexStringToBytes(hostile)));
+      tlvInputStream.readTag();
+      try {
+        tlvInputStream.readLength();
+        fail("Expected exception");
+      } catch (IOException expected) {
+        /* Expected. */
+      } finally {
+        tlvInputStream.close();
+      }
+    }
+  }
+
+  public void testMarkReset() throws Exception {
+    /* 0x7F61 { 0x5F2E { 01 02 }, 0x5F2E { 03 } } */
+    byte[] encoded = Hex.hexStringToBytes("7F61095F2E0201025F2E0103");
+    TLVInputStream tlvInputStream = new TLVInputStream(new ByteArrayInputStream(encoded));
+    try {
+      assertEquals(0x7F61, tlvInputStream.readTag());
+      assertEquals(9, tlvInputStream.readLength());
+      tlvInputStream.mark(encoded.length);
+
+      /* Peek at the next tag several times, the mark is kept. */
+      for (int i = 0; i < 3; i++) {
+        assertEquals(0x5F2E, tlvInputStream.readTag());
+        assertEquals(2, tlvInputStream.readLength());
+        tlvInputStream.reset();
+      }
+
+      assertEquals(0x5F2E, tlvInputStream.readTag());
+      assertEquals(2, tlvInputStream.readLength());
+      assertTrue(Arrays.equals(new byte[] { 0x01, 0x02 }, tlvInputStream.readValue()));
+      tlvInputStream.mark(encoded.length);
+      assertEquals(0x5F2E, tlvInputStream.readTag());
+      tlvInputStream.reset();
+      assertEquals(0x5F2E, tlvInputStream.readTag());
+      assertEquals(1, tlvInputStream.readLength());
+      assertTrue(Arrays.equals(new byte[] { 0x03 }, tlvInputStream.readValue()));
+    } finally {
+      tlvInputStream.close();
+    }
+  }
+
+  private static byte[] encode(int tag, byte[] value) throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    TLVOutputStream tlvOutputStream = new TLVOutputStream(byteArrayOutputStream);
+    tlvOutputStream.writeTag(tag);
+    tlvOutputStream.writeValue(value);
+    tlvOutputStream.close();
+    return byteArrayOutputStream.toByteArray();
+  }
 }
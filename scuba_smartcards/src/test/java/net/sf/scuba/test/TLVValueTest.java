@@ -0,0 +1,77 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+import net.sf.scuba.tlv.TLVValue;
+import net.sf.scuba.util.Hex;
+
+public class TLVValueTest extends TestCase {
+
+  public void testStrings() throws Exception {
+    assertEquals("café", new TLVValue(0x0C, "café".getBytes("UTF-8")).getValue());
+    assertEquals("ABC", new TLVValue(0x13, Hex.hexStringToBytes("414243")).getValue());
+    assertEquals("é", new TLVValue(0x1E, Hex.hexStringToBytes("00E9")).getValue());
+  }
+
+  public void testTimes() {
+    /* Hours after noon, which were misparsed with a 12 hour pattern. */
+    Date utcTime = (Date)new TLVValue(0x17, "231231235958Z".getBytes()).getValue();
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.setTime(utcTime);
+    assertEquals(2023, calendar.get(Calendar.YEAR));
+    assertEquals(23, calendar.get(Calendar.HOUR_OF_DAY));
+    assertEquals(58, calendar.get(Calendar.SECOND));
+
+    Date generalizedTime = (Date)new TLVValue(0x18, "20231231235958Z".getBytes()).getValue();
+    assertEquals(utcTime, generalizedTime);
+
+    /* Fractional seconds, with a period or a comma. */
+    Date fractionalTime = (Date)new TLVValue(0x18, "20231231235958.25Z".getBytes()).getValue();
+    assertEquals(utcTime.getTime() + 250, fractionalTime.getTime());
+    fractionalTime = (Date)new TLVValue(0x18, "20231231235958,123456Z".getBytes()).getValue();
+    assertEquals(utcTime.getTime() + 123, fractionalTime.getTime());
+    assertTrue(new TLVValue(0x18, "20231231235958.Z".getBytes()).getValue() instanceof byte[]);
+
+    /* Unparsable times are left as bytes. */
+    assertTrue(new TLVValue(0x17, "garbage".getBytes()).getValue() instanceof byte[]);
+  }
+
+  public void testCaching() {
+    TLVValue value = new TLVValue(0x0C, "abc".getBytes());
+    assertSame(value.getValue(), value.getValue());
+    assertEquals("UTF_STRING abc", value.toString());
+
+    /* Not universal, left as bytes, and callers cannot change the cached bytes. */
+    value = new TLVValue(0x5F1F, Hex.hexStringToBytes("0102"));
+    byte[] bytes = (byte[])value.getValue();
+    bytes[0] = 0x7F;
+    assertTrue(Arrays.equals(Hex.hexStringToBytes("0102"), (byte[])value.getValue()));
+  }
+}
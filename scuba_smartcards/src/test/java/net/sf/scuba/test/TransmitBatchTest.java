@@ -0,0 +1,105 @@
+/*
+ * This file is part of the SCUBA smart card framework.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ * Copyright (C) 2009 - 2023  The SCUBA team.
+ *
+ * $Id$
+ */
+
+
+package net.sf.scuba.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.scuba.smartcards.APDUWrapper;
+import net.sf.scuba.smartcards.BatchStopCondition;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+import net.sf.scuba.smartcards.WrappingCardService;
+
+public class TransmitBatchTest extends TestCase {
+
+  public void testTransmitBatch() throws CardServiceException {
+    EchoCardService service = new EchoCardService();
+    List<CommandAPDU> commands = Arrays.asList(
+        new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 8),
+        new CommandAPDU(0x00, 0xB0, 0x6A, 0x82, 8),
+        new CommandAPDU(0x00, 0xB0, 0x00, 0x08, 8));
+
+    List<ResponseAPDU> responses = service.transmitBatch(commands);
+    assertEquals(3, responses.size());
+    assertEquals(0x9000, responses.get(0).getSW());
+    assertEquals(0x6A82, responses.get(1).getSW());
+    assertEquals(3, service.count);
+
+    service.count = 0;
+    responses = service.transmitBatch(commands, BatchStopCondition.ON_ERROR);
+    assertEquals(2, responses.size());
+    assertEquals(0x6A82, responses.get(1).getSW());
+    assertEquals(2, service.count);
+  }
+
+  public void testWrappedTransmitBatch() throws CardServiceException {
+    EchoCardService service = new EchoCardService();
+    final List<String> log = new ArrayList<String>();
+    WrappingCardService wrappingService = new WrappingCardService(service, new APDUWrapper() {
+      public String getType() {
+        return "TEST";
+      }
+
+      public CommandAPDU wrap(CommandAPDU capdu) {
+        log.add("wrap");
+        return new CommandAPDU(0x0C, capdu.getINS(), capdu.getP1(), capdu.getP2(), capdu.getNe());
+      }
+
+      public ResponseAPDU unwrap(ResponseAPDU rapdu) {
+        log.add("unwrap");
+        return rapdu;
+      }
+    });
+    wrappingService.enable();
+    List<CommandAPDU> commands = Arrays.asList(
+        new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 8),
+        new CommandAPDU(0x00, 0xB0, 0x00, 0x08, 8));
+    List<ResponseAPDU> responses = wrappingService.transmitBatch(commands, BatchStopCondition.ON_ERROR);
+    assertEquals(2, responses.size());
+    assertEquals(Arrays.asList("wrap", "unwrap", "wrap", "unwrap"), log);
+    assertEquals(0x0C, service.lastCLA);
+  }
+
+  /**
+   * Responds with the status word in P1 and P2, or 0x9000 if P1 is 0.
+   */
+  private static class EchoCardService extends StubCardService {
+
+    private int count;
+    private int lastCLA;
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU commandAPDU) {
+      count++;
+      lastCLA = commandAPDU.getCLA();
+      int p1 = commandAPDU.getP1();
+      int p2 = commandAPDU.getP2();
+      return p1 == 0 ? new ResponseAPDU(new byte[] { (byte)0x90, 0x00 }) : new ResponseAPDU(new byte[] { (byte)p1, (byte)p2 });
+    }
+  }
+}
@@ -1,8 +1,6 @@
 package net.sourceforge.scuba.simservice;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -76,48 +74,69 @@ public class SIMFileSystem implements FileSystemStructured
 	 * @throws CardServiceException when called on MF, DF or non-transpartent EF
 	 */
 	public byte[] readBinary(int offset, int length) throws CardServiceException {
-		SIMFileInfo selectedFile = (SIMFileInfo)getFileInfo();
-		if (selectedFile == null) { throw new CardServiceException("No file selected"); }
-		if (!selectedFile.isEF() || !selectedFile.isTransparent()) { throw new CardServiceException("Cannot use READ BINARY: non-transpartent file " + selectedFile); }
-		length = Math.max(length, selectedFile.getLength() - offset);
+		length = getReadLength(offset, length);
+		byte[] result = new byte[length];
+		int count = readBinary(offset, result, 0, length);
+		if (count == length) { return result; }
+		byte[] shortResult = new byte[count];
+		System.arraycopy(result, 0, shortResult, 0, count);
+		return shortResult;
+	}
 
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		ResponseAPDU rapdu;
-		int blocks = length / blockSize;
-		int rest = length % blockSize;
+	/**
+	 * Reads a fragment of the currently selected file into <code>dst</code>,
+	 * in blocks of at most <code>BLOCK_SIZE</code> bytes.
+	 * Only works on transparent files.
+	 * 
+	 * @param offset an offset
+	 * @param dst the destination array
+	 * @param dstOffset the offset in <code>dst</code>
+	 * @param length a length
+	 *
+	 * @return the number of bytes read, at most <code>length</code>
+	 * 
+	 * @throws CardServiceException when called on MF, DF or non-transpartent EF
+	 */
+	public int readBinary(int offset, byte[] dst, int dstOffset, int length) throws CardServiceException {
+		SIMFileInfo selectedFile = (SIMFileInfo)getFileInfo();
+		length = getReadLength(offset, length);
 
-		for (int i = 0; i < blocks; i++) {
-			short internalOffset = (short) ((offset + i * blockSize) & 0x0000FFFF);
-			byte internalLength = (byte) (blockSize & 0x000000FF);
-			rapdu = apduService.sendReadBinary(internalOffset, internalLength);
-			int sw = rapdu.getSW();
-			if (sw != GSM1111.SW_NO_ERROR) {
-				throw new CardServiceException("Error using READ BINARY: reading " + selectedFile + " resulted in SW " + Integer.toHexString(sw));
-			}
-			try {
-				out.write(rapdu.getData());
-			} catch (IOException ioe) {
-				throw new CardServiceException("Error using READ BINARY: reading " + selectedFile + " resulted in: " + ioe.getMessage());
-			}
-		}
-		if (rest > 0) {
-			int i = blocks;
-			short internalOffset = (short) ((offset + i * blockSize) & 0x0000FFFF);
-			byte internalLength = (byte) (rest & 0x000000FF);
-			rapdu = apduService.sendReadBinary(internalOffset, internalLength);
+		int count = 0;
+		while (count < length) {
+			short internalOffset = (short) ((offset + count) & 0x0000FFFF);
+			byte internalLength = (byte) (Math.min(blockSize, length - count) & 0x000000FF);
+			ResponseAPDU rapdu = apduService.sendReadBinary(internalOffset, internalLength);
 			int sw = rapdu.getSW();
 			if (sw != GSM1111.SW_NO_ERROR) {
 				throw new CardServiceException("Error using READ BINARY: reading " + selectedFile + " resulted in SW " + Integer.toHexString(sw));
 			}
-			try {
-				out.write(rapdu.getData());
-			} catch (IOException ioe) {
-				throw new CardServiceException("Error using READ BINARY: reading " + selectedFile + " resulted in: " + ioe.getMessage());
-			}
+			/* NOTE: javax.smartcardio.ResponseAPDU only hands out copies of its data. */
+			byte[] data = rapdu.getData();
+			if (data.length == 0) { break; }
+			int n = Math.min(data.length, length - count);
+			System.arraycopy(data, 0, dst, dstOffset + count, n);
+			count += n;
 		}
-		return out.toByteArray();
+		return count;
 	}
 	
+	/**
+	 * Clamps the length of a READ BINARY to the end of the currently selected file.
+	 * 
+	 * @param offset an offset
+	 * @param length a length
+	 *
+	 * @return the number of bytes that can be read, at most <code>length</code>
+	 * 
+	 * @throws CardServiceException when called on MF, DF or non-transpartent EF
+	 */
+	private int getReadLength(int offset, int length) throws CardServiceException {
+		SIMFileInfo selectedFile = (SIMFileInfo)getFileInfo();
+		if (selectedFile == null) { throw new CardServiceException("No file selected"); }
+		if (!selectedFile.isEF() || !selectedFile.isTransparent()) { throw new CardServiceException("Cannot use READ BINARY: non-transpartent file " + selectedFile); }
+		return Math.max(0, Math.min(length, selectedFile.getLength() - offset));
+	}
+
 	public void setPIN(String pin) throws CardServiceException {
 		if (pin == null || pin.length() > 8) { throw new CardServiceException("Illegal PIN \"" + pin + "\""); }
 		byte[] chv = new byte[8];